@@ -0,0 +1,118 @@
+/*
+ * AllocationSiteIndex.java - part of the GATOR project
+ *
+ * Copyright (c) 2014, 2015 The Ohio State University
+ *
+ * This file is distributed under the terms described in LICENSE in the
+ * root directory.
+ */
+package presto.android;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import soot.Body;
+import soot.Scene;
+import soot.SootClass;
+import soot.SootMethod;
+import soot.Unit;
+import soot.Value;
+import soot.jimple.AssignStmt;
+import soot.jimple.Expr;
+import soot.jimple.NewExpr;
+import soot.jimple.Stmt;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * The "new C" expressions of the application code, collected in a single pass
+ * over the bodies of all application classes: for every class, the statements
+ * allocating it, and for every such expression, its statement and method.
+ */
+public class AllocationSiteIndex {
+    private static AllocationSiteIndex theInstance;
+
+    // allocated class -> "x = new C" statements, in body order
+    private final Map<SootClass, List<Stmt>> sites = Maps.newHashMap();
+
+    // new expression -> the statement it appears in
+    private final Map<Expr, Stmt> allocStmts = Maps.newHashMap();
+
+    // allocation statement -> the method it appears in
+    private final Map<Stmt, SootMethod> allocMethods = Maps.newHashMap();
+
+    private AllocationSiteIndex() {
+        int numSites = 0;
+        for (SootClass d : Lists.newArrayList(Scene.v().getApplicationClasses())) {
+            //There might be a bug in soot here, as the List returned by d.getMethods is reported to be
+            //modified by soot during the execution.
+            //Only few apps have this issue, e.g. it.greenaddress.cordova_72.apk
+            for (SootMethod m : Lists.newArrayList(d.getMethods())) {
+                if (!m.isConcrete()) {
+                    continue;
+                }
+                Body b = m.retrieveActiveBody();
+                for (Unit unit : b.getUnits()) {
+                    Stmt stmt = (Stmt) unit;
+                    if (!(stmt instanceof AssignStmt)) {
+                        continue;
+                    }
+                    Value rhs = ((AssignStmt) stmt).getRightOp();
+                    if (!(rhs instanceof NewExpr)) {
+                        continue;
+                    }
+                    SootClass c = ((NewExpr) rhs).getBaseType().getSootClass();
+                    List<Stmt> classSites = sites.get(c);
+                    if (classSites == null) {
+                        classSites = Lists.newArrayList();
+                        sites.put(c, classSites);
+                    }
+                    classSites.add(stmt);
+                    allocStmts.put((Expr) rhs, stmt);
+                    allocMethods.put(stmt, m);
+                    numSites++;
+                }
+            }
+        }
+        System.out.println("[AllocationSiteIndex] " + numSites + " allocation sites of "
+                + sites.size() + " classes");
+    }
+
+    public static synchronized AllocationSiteIndex v() {
+        if (theInstance == null) {
+            theInstance = new AllocationSiteIndex();
+        }
+        return theInstance;
+    }
+
+    public static synchronized void reset() {
+        theInstance = null;
+    }
+
+    // Is c allocated anywhere in the application code?
+    public boolean isInstantiated(SootClass c) {
+        return sites.containsKey(c);
+    }
+
+    public Set<SootClass> getAllocatedClasses() {
+        return Collections.unmodifiableSet(sites.keySet());
+    }
+
+    public List<Stmt> getAllocStmts(SootClass c) {
+        List<Stmt> result = sites.get(c);
+        return result == null ? Collections.<Stmt>emptyList() : Collections.unmodifiableList(result);
+    }
+
+    // The statement of an application-code new expression, or null
+    public Stmt getAllocStmt(Expr e) {
+        return allocStmts.get(e);
+    }
+
+    // The method of an allocation statement, or null
+    public SootMethod getAllocMethod(Stmt s) {
+        return allocMethods.get(s);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * AnalysisDaemon.java - part of the GATOR project
+ *
+ * Copyright (c) 2014, 2015 The Ohio State University
+ *
+ * This file is distributed under the terms described in LICENSE in the
+ * root directory.
+ */
+package presto.android;
+
+import com.google.common.collect.Lists;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Resident analysis process, started with "-daemon <port>".
+ *
+ * Clients connect to the loopback port and send one job per line, written
+ * exactly like the command-line arguments of Main (double quotes group
+ * arguments containing spaces). Each job is answered with one line, either
+ * "OK <millis>" or "FAILED <reason>". The line "shutdown" stops the daemon.
+ * Jobs run one at a time in this JVM, so they share its warmed-up code, the
+ * parsed specification files and the framework classes kept by
+ * ResidentScene, while Main.runJob() drops all per-app state in between.
+ */
+public class AnalysisDaemon {
+    private static final String SHUTDOWN = "shutdown";
+
+    private static AnalysisDaemon theInstance;
+
+    private boolean running;
+
+    private AnalysisDaemon() {
+    }
+
+    public static synchronized AnalysisDaemon v() {
+        if (theInstance == null) {
+            theInstance = new AnalysisDaemon();
+        }
+        return theInstance;
+    }
+
+    public void serve(int port) {
+        running = true;
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.out.println("[Daemon] Listening on " + server.getLocalSocketAddress());
+            while (running) {
+                try (Socket client = server.accept()) {
+                    serveClient(client);
+                } catch (IOException e) {
+                    System.out.println("[Daemon] Connection dropped: " + e);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        System.out.println("[Daemon] Stopped");
+    }
+
+    private void serveClient(Socket client) throws IOException {
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+        PrintWriter out = new PrintWriter(client.getOutputStream(), true);
+        String line;
+        while (running && (line = in.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (SHUTDOWN.equals(line)) {
+                running = false;
+                out.println("OK 0");
+                break;
+            }
+            out.println(runJob(tokenize(line)));
+        }
+    }
+
+    /**
+     * Runs one job and returns its status line. A failing job does not take
+     * the daemon down; the next job starts from a reset state anyway.
+     */
+    static String runJob(String[] args) {
+        long start = System.currentTimeMillis();
+        try {
+            Main.runJob(args);
+            return "OK " + (System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return "FAILED " + String.valueOf(e.getMessage()).replace('\n', ' ');
+        }
+    }
+
+    /**
+     * Splits a line into arguments at whitespace, keeping double-quoted
+     * sections together.
+     */
+    static String[] tokenize(String line) {
+        List<String> tokens = Lists.newArrayList();
+        StringBuilder current = new StringBuilder();
+        boolean quoted = false;
+        boolean inToken = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+                inToken = true;
+            } else if (Character.isWhitespace(c) && !quoted) {
+                if (inToken) {
+                    tokens.add(current.toString());
+                    current.setLength(0);
+                    inToken = false;
+                }
+            } else {
+                current.append(c);
+                inToken = true;
+            }
+        }
+        if (inToken) {
+            tokens.add(current.toString());
+        }
+        return tokens.toArray(new String[0]);
+    }
+}
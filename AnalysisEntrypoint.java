@@ -31,6 +31,10 @@ public class AnalysisEntrypoint {
         System.out.println("[Stat] #Classes: " + Scene.v().getClasses().size() +
                 ", #AppClasses: " + Scene.v().getApplicationClasses().size());
 
+        // Snapshot (or finish restoring) the app classes as Soot loaded them,
+        // before any of them are turned into library classes below.
+        SceneCache.v().sceneLoaded();
+
         if (Configs.libraryPackages == null || Configs.libraryPackages.isEmpty()) {
             Configs.addLibraryPackage("android.support.*");
             Configs.addLibraryPackage("com.google.android.gms.*");
@@ -49,6 +53,8 @@ public class AnalysisEntrypoint {
         guiAnalysis.run();
         Date endTime = new Date();
         System.out.println("Soot stopped on " + endTime);
-        System.exit(0);
+        if (!Configs.multiJob) {
+            System.exit(0);
+        }
     }
 }
@@ -0,0 +1,151 @@
+/*
+ * BatchRunner.java - part of the GATOR project
+ *
+ * Copyright (c) 2014, 2015 The Ohio State University
+ *
+ * This file is distributed under the terms described in LICENSE in the
+ * root directory.
+ */
+package presto.android;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Analyzes several apps in one JVM, started with "-batch <file>".
+ *
+ * Each non-empty line of the file that does not start with '#' names one app
+ * as "<apk> <resourcePath> <manifestFile>"; double quotes group paths that
+ * contain spaces. All other options on the command line are shared by every
+ * job, and each job writes to Configs.outFile/<apk name>/event.xml as a
+ * single run would. Apps whose apk files have the same name are told apart by
+ * their line number, e.g. base-3.apk and base-7.apk. A failing job is
+ * reported and the batch goes on.
+ */
+public class BatchRunner {
+    private static BatchRunner theInstance;
+
+    private BatchRunner() {
+    }
+
+    public static synchronized BatchRunner v() {
+        if (theInstance == null) {
+            theInstance = new BatchRunner();
+        }
+        return theInstance;
+    }
+
+    /**
+     * Returns the command-line arguments without "-batch <file>".
+     */
+    static List<String> commonArgs(String[] args) {
+        List<String> common = Lists.newArrayList();
+        for (int i = 0; i < args.length; i++) {
+            if ("-batch".equals(args[i])) {
+                i++;
+                continue;
+            }
+            common.add(args[i]);
+        }
+        return common;
+    }
+
+    /**
+     * Returns the jobs of a batch file as <apk> <resourcePath> <manifestFile>
+     * <benchmarkName>.
+     */
+    static List<String[]> readJobs(String batchFile) {
+        List<String[]> jobs = Lists.newArrayList();
+        List<Integer> lineNumbers = Lists.newArrayList();
+        try (BufferedReader br = new BufferedReader(new FileReader(batchFile))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = br.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] triple = AnalysisDaemon.tokenize(line);
+                if (triple.length != 3) {
+                    throw new RuntimeException("[Batch] " + batchFile + ":" + lineNumber
+                            + ": expected <apk> <resourcePath> <manifestFile>");
+                }
+                jobs.add(new String[]{triple[0], triple[1], triple[2], new File(triple[0]).getName()});
+                lineNumbers.add(lineNumber);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        // the benchmark name keys the output and checkpoint directories
+        Map<String, Integer> count = Maps.newHashMap();
+        for (String[] job : jobs) {
+            Integer n = count.get(job[3]);
+            count.put(job[3], n == null ? 1 : n + 1);
+        }
+        for (int i = 0; i < jobs.size(); i++) {
+            String[] job = jobs.get(i);
+            if (count.get(job[3]) > 1) {
+                int dot = job[3].lastIndexOf('.');
+                String stem = dot > 0 ? job[3].substring(0, dot) : job[3];
+                job[3] = stem + "-" + lineNumbers.get(i) + (dot > 0 ? job[3].substring(dot) : "");
+            }
+        }
+        Set<String> names = Sets.newHashSet();
+        for (int i = 0; i < jobs.size(); i++) {
+            if (!names.add(jobs.get(i)[3])) {
+                throw new RuntimeException("[Batch] " + batchFile + ":" + lineNumbers.get(i)
+                        + ": benchmark name " + jobs.get(i)[3] + " is used twice");
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * Returns the arguments of the job for one line of the batch file.
+     */
+    static String[] jobArgs(List<String> common, String[] job) {
+        List<String> args = Lists.newArrayList(common);
+        String apk = job[0];
+        args.add("-project");
+        args.add(apk);
+        args.add("-classFiles");
+        args.add(apk);
+        args.add("-resourcePath");
+        args.add(job[1]);
+        args.add("-manifestFile");
+        args.add(job[2]);
+        args.add("-benchmarkName");
+        args.add(job[3]);
+        return args.toArray(new String[0]);
+    }
+
+    public void run(String batchFile, List<String> common) {
+        List<String[]> jobs = readJobs(batchFile);
+        List<String> failed = Lists.newArrayList();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < jobs.size(); i++) {
+            String apk = jobs.get(i)[0];
+            System.out.printf("[Batch] (%d/%d) %s%n", i + 1, jobs.size(), apk);
+            String status = AnalysisDaemon.runJob(jobArgs(common, jobs.get(i)));
+            System.out.printf("[Batch] (%d/%d) %s: %s%n", i + 1, jobs.size(), apk, status);
+            if (!status.startsWith("OK")) {
+                failed.add(apk);
+            }
+        }
+        System.out.printf("[Batch] %d jobs, %d failed, %d ms%n", jobs.size(), failed.size(),
+                System.currentTimeMillis() - start);
+        for (String apk : failed) {
+            System.out.println("[Batch] Failed: " + apk);
+        }
+    }
+}
@@ -124,6 +124,54 @@ public class Configs {
 
   public static Map<String, String> widgetMap = Maps.newHashMap();
 
+  // directory of cached Jimple snapshots of loaded apps; empty to disable
+  public static String sceneCacheDir = "";
+
+  // upper bound of the total size of sceneCacheDir, in megabytes
+  public static long sceneCacheLimit = 4096;
+
+  // the process serves several jobs (see AnalysisDaemon and BatchRunner), so
+  // analysis runs must return instead of exiting the JVM. Not cleared by
+  // reset().
+  public static boolean multiJob = false;
+
+  // manifest of the apps to analyze in one process; empty for a single app
+  public static String batchFile = "";
+
+  // [farm] manifest of the apps to spread over child JVMs (same format as
+  // batchFile), the directory holding the job queue, and the heap, time limit
+  // in seconds and number of retries of each child
+  public static String farmFile = "";
+  public static String farmDir = "";
+  public static String jobHeap = "4g";
+  public static long jobTimeout = 3600;
+  public static int jobRetries = 2;
+
+  // [farm] file a child JVM writes its runtime and peak RSS to on exit
+  public static String reportFile = "";
+
+  // restrict targets at virtual calls to the classes that are actually
+  // instantiated (rapid type analysis) instead of all concrete subtypes
+  public static boolean rta = false;
+
+  // keep no call-site statements on flow graph edges, which halves the
+  // memory of the edges
+  public static boolean slim = false;
+
+  // wall-clock budget in seconds of building the flow graph and solving,
+  // and upper bound of the propagation rounds of the solver; 0 for none.
+  // Once used up, the analysis stops and writes its partial results.
+  public static long budget = 0;
+  public static long maxIterations = 0;
+
+  // directory to write checkpoints of the flow graph and solver to, and
+  // directory of the checkpoints to resume from (also written to); empty
+  // for none. See gui.Checkpoint.
+  public static String checkpointDir = "";
+  public static String resumeDir = "";
+  // minimum seconds between two checkpoints of the propagation rounds
+  public static long checkpointInterval = 60;
+
   public static void addLibraryPackage(String packageName) {
     if (libraryPackages == null) {
       libraryPackages = Lists.newArrayList();
@@ -214,20 +262,89 @@ public class Configs {
     Class<Configs> cls = Configs.class;
     for (Field f : cls.getFields()) {
       if (f.getType().equals(String.class)) {
+        Object res = null;
         try {
-          Object res = f.get(null);
-          if (res == null) {
-            System.err.println("[Configs] You need to set `Configs."
-                + f.getName() + "'");
-            System.exit(-1);
-          }
+          res = f.get(null);
         } catch (Exception e) {
           e.printStackTrace();
         }
+        if (res == null) {
+          String msg = "[Configs] You need to set `Configs." + f.getName() + "'";
+          if (multiJob) {
+            // Only this job is broken, the process goes on with the next one
+            throw new RuntimeException(msg);
+          }
+          System.err.println(msg);
+          System.exit(-1);
+        }
       }
     }
   }
 
+  /**
+   * Restores every per-job option to its default, so that a resident process
+   * can parse the arguments of the next job from a clean state. The widget
+   * map only depends on gatorRoot and is reloaded by Main when that changes.
+   */
+  public static void reset() {
+    benchmarkName = null;
+    project = null;
+    manifestLocation = null;
+    gatorRoot = null;
+    resourceLocation = null;
+    resourceLocationList = Lists.newArrayList();
+    classfileLocation = null;
+    sdkDir = null;
+    apiLevel = null;
+    numericApiLevel = 0;
+    sysProj = null;
+    bytecodes = null;
+    depJars = null;
+    extLibs = null;
+    android = null;
+    jre = "";
+    listenerSpecFile = null;
+    clients = Sets.newHashSet();
+    withCHA = false;
+    wtgSpecFile = null;
+    implicitIntent = false;
+    resolveContext = true;
+    trackWholeExec = false;
+    hardwareEvent = true;
+    workerNum = 16;
+    detectLeak = -1;
+    sDepth = 4;
+    asyncStrategy = AsyncOpStrategy.Default_EventHandler_Async;
+    allowLoop = false;
+    epDepth = 3;
+    sanityCheck = false;
+    mockScene = false;
+    outFile = "";
+    monitoredClass = "";
+    classListFile = "";
+    widgetMapFile = "/SootAndroid/scripts/consts/widgetMap";
+    libraryPackageFile = "";
+    libraryPackages = null;
+    preRun = false;
+    onDemandClassSet = Sets.newHashSet();
+    sceneCacheDir = "";
+    sceneCacheLimit = 4096;
+    batchFile = "";
+    farmFile = "";
+    farmDir = "";
+    jobHeap = "4g";
+    jobTimeout = 3600;
+    jobRetries = 2;
+    reportFile = "";
+    rta = false;
+    slim = false;
+    budget = 0;
+    maxIterations = 0;
+    checkpointDir = "";
+    resumeDir = "";
+    checkpointInterval = 60;
+  }
+
   public static int getAndroidAPILevel() {
     Preconditions.checkNotNull(apiLevel);
     if (apiLevel.startsWith("android-")) {
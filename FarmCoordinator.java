@@ -0,0 +1,361 @@
+/*
+ * FarmCoordinator.java - part of the GATOR project
+ *
+ * Copyright (c) 2014, 2015 The Ohio State University
+ *
+ * This file is distributed under the terms described in LICENSE in the
+ * root directory.
+ */
+package presto.android;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spreads a corpus over child JVMs, started with "-farm <file>".
+ *
+ * The file has the same format as for -batch. Every app becomes a job file in
+ * <farmDir>/queue; Configs.workerNum slots claim jobs by atomically renaming
+ * them into running/, analyze each one in a fresh child JVM with its own heap
+ * (-jobHeap) and time limit (-jobTimeout, in seconds), and move the job to
+ * done/ with its status. Crashed or timed-out jobs are put back into the
+ * queue until they have used -jobRetries retries. Jobs found in done/ are not
+ * run again, so an interrupted farm can be restarted on the same farmDir.
+ * The child JVMs run with "-worker 1", as the parallelism is across apps.
+ *
+ * When the queue is drained, <farmDir>/summary.tsv lists every app with its
+ * status, attempts, runtime and peak RSS.
+ */
+public class FarmCoordinator {
+    private static final String QUEUE = "queue";
+    private static final String RUNNING = "running";
+    private static final String DONE = "done";
+    private static final String REPORTS = "reports";
+    private static final String LOGS = "logs";
+    private static final String JOB_SUFFIX = ".job";
+
+    // Options not passed on to the children, each followed by a value
+    private static final Set<String> FARM_OPTIONS = Sets.newHashSet(
+            "-farm", "-farmDir", "-jobHeap", "-jobTimeout", "-jobRetries", "-worker");
+
+    private static FarmCoordinator theInstance;
+
+    private File farmDir;
+    private List<String> childArgs;
+
+    private FarmCoordinator() {
+    }
+
+    public static synchronized FarmCoordinator v() {
+        if (theInstance == null) {
+            theInstance = new FarmCoordinator();
+        }
+        return theInstance;
+    }
+
+    /**
+     * Returns the command-line arguments shared by all children.
+     */
+    static List<String> childArgs(String[] args) {
+        List<String> common = Lists.newArrayList();
+        for (int i = 0; i < args.length; i++) {
+            if (FARM_OPTIONS.contains(args[i])) {
+                i++;
+                continue;
+            }
+            common.add(args[i]);
+        }
+        common.add("-worker");
+        common.add("1");
+        return common;
+    }
+
+    public void run(String corpusFile, String[] args) {
+        farmDir = new File(Configs.farmDir.isEmpty()
+                ? new File(Configs.outFile, "farm").getPath() : Configs.farmDir);
+        childArgs = childArgs(args);
+        List<String[]> jobs = BatchRunner.readJobs(corpusFile);
+        for (String sub : new String[]{QUEUE, RUNNING, DONE, REPORTS, LOGS}) {
+            File dir = new File(farmDir, sub);
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new RuntimeException("[Farm] Cannot create " + dir);
+            }
+        }
+        enqueue(jobs);
+
+        System.out.printf("[Farm] %d jobs, %d workers, heap %s, timeout %d s, %d retries%n",
+                jobs.size(), Configs.workerNum, Configs.jobHeap, Configs.jobTimeout,
+                Configs.jobRetries);
+        long start = System.currentTimeMillis();
+        List<Thread> workers = Lists.newArrayList();
+        for (int i = 0; i < Configs.workerNum; i++) {
+            Thread t = new Thread(this::work, "farm-worker-" + i);
+            workers.add(t);
+            t.start();
+        }
+        for (Thread t : workers) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+        writeSummary(jobs);
+        System.out.printf("[Farm] Finished in %d ms, summary in %s%n",
+                System.currentTimeMillis() - start, new File(farmDir, "summary.tsv"));
+    }
+
+    // Creates the job files that are not already queued or done, and puts jobs
+    // left running by an interrupted coordinator back into the queue.
+    private void enqueue(List<String[]> jobs) {
+        File queue = new File(farmDir, QUEUE);
+        File[] stale = new File(farmDir, RUNNING).listFiles();
+        if (stale != null) {
+            for (File f : stale) {
+                if (!f.renameTo(new File(queue, f.getName()))) {
+                    throw new RuntimeException("[Farm] Cannot requeue " + f);
+                }
+            }
+        }
+        for (int i = 0; i < jobs.size(); i++) {
+            String name = jobName(i);
+            if (new File(queue, name).exists() || new File(farmDir, DONE + "/" + name).exists()) {
+                continue;
+            }
+            Job job = new Job(i, jobs.get(i), 0);
+            job.writeTo(new File(queue, name));
+        }
+    }
+
+    private static String jobName(int index) {
+        return String.format("%06d%s", index, JOB_SUFFIX);
+    }
+
+    private void work() {
+        Job job;
+        while ((job = claim()) != null) {
+            runJob(job);
+        }
+    }
+
+    // Takes the lowest-numbered queued job. Renaming is atomic, so when two
+    // workers race for a job only one of them gets it. With an empty queue, a
+    // worker waits as long as other jobs are running, since they may fail and
+    // be queued again.
+    private Job claim() {
+        File queue = new File(farmDir, QUEUE);
+        while (true) {
+            String[] names = queue.list();
+            if (names == null || names.length == 0) {
+                String[] running = new File(farmDir, RUNNING).list();
+                if (running == null || running.length == 0) {
+                    return null;
+                }
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+                continue;
+            }
+            Arrays.sort(names);
+            for (String name : names) {
+                File claimed = new File(farmDir, RUNNING + "/" + name);
+                if (new File(queue, name).renameTo(claimed)) {
+                    return Job.readFrom(claimed);
+                }
+            }
+        }
+    }
+
+    private void runJob(Job job) {
+        job.attempts++;
+        String name = jobName(job.index);
+        File report = new File(farmDir, REPORTS + "/" + name.replace(JOB_SUFFIX, ".report"));
+        File log = new File(farmDir, LOGS + "/" + name.replace(JOB_SUFFIX, ".log"));
+        report.delete();
+
+        List<String> command = Lists.newArrayList(
+                new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-Xmx" + Configs.jobHeap,
+                "-cp", System.getProperty("java.class.path"),
+                Main.class.getName());
+        command.addAll(Arrays.asList(BatchRunner.jobArgs(childArgs, job.app)));
+        command.add("-reportFile");
+        command.add(report.getPath());
+
+        long start = System.currentTimeMillis();
+        String status;
+        try {
+            Process p = new ProcessBuilder(command)
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.appendTo(log))
+                    .start();
+            if (!p.waitFor(Configs.jobTimeout, TimeUnit.SECONDS)) {
+                p.destroyForcibly();
+                p.waitFor();
+                status = "TIMEOUT";
+            } else if (p.exitValue() != 0) {
+                status = "CRASHED(" + p.exitValue() + ")";
+            } else {
+                status = "OK";
+            }
+        } catch (IOException e) {
+            status = "CRASHED(" + e.getMessage() + ")";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        job.runtimeMs = System.currentTimeMillis() - start;
+        job.status = status;
+        job.peakRssKb = readPeakRss(report);
+
+        File running = new File(farmDir, RUNNING + "/" + name);
+        boolean retry = !"OK".equals(status) && job.attempts <= Configs.jobRetries;
+        File target = new File(farmDir, (retry ? QUEUE : DONE) + "/" + name);
+        job.writeTo(running);
+        if (!running.renameTo(target)) {
+            throw new RuntimeException("[Farm] Cannot move " + running + " to " + target);
+        }
+        System.out.printf("[Farm] %s: %s after %d ms (attempt %d%s)%n", job.app[0], status,
+                job.runtimeMs, job.attempts, retry ? ", will retry" : "");
+    }
+
+    private static long readPeakRss(File report) {
+        if (!report.isFile()) {
+            return -1;
+        }
+        try {
+            for (String line : Files.readAllLines(report.toPath(), StandardCharsets.UTF_8)) {
+                if (line.startsWith("peakRssKb=")) {
+                    return Long.parseLong(line.substring("peakRssKb=".length()).trim());
+                }
+            }
+        } catch (IOException | NumberFormatException ignored) {
+        }
+        return -1;
+    }
+
+    private void writeSummary(List<String[]> jobs) {
+        File summary = new File(farmDir, "summary.tsv");
+        int ok = 0;
+        try (PrintWriter out = new PrintWriter(summary, "UTF-8")) {
+            out.println("apk\tstatus\tattempts\truntimeMs\tpeakRssKb");
+            for (int i = 0; i < jobs.size(); i++) {
+                File done = new File(farmDir, DONE + "/" + jobName(i));
+                Job job = done.isFile() ? Job.readFrom(done) : null;
+                if (job == null) {
+                    out.printf("%s\tMISSING\t0\t-1\t-1%n", jobs.get(i)[0]);
+                    continue;
+                }
+                if ("OK".equals(job.status)) {
+                    ok++;
+                }
+                out.printf("%s\t%s\t%d\t%d\t%d%n", job.app[0], job.status, job.attempts,
+                        job.runtimeMs, job.peakRssKb);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        System.out.printf("[Farm] %d of %d jobs OK%n", ok, jobs.size());
+    }
+
+    /**
+     * Makes this JVM write its runtime and peak resident set size to the given
+     * file when it exits, which is how farm children report to the
+     * coordinator. The peak RSS comes from /proc and is -1 where that is not
+     * available.
+     */
+    static void installReportHook(final String reportFile) {
+        final long start = System.currentTimeMillis();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try (PrintWriter out = new PrintWriter(reportFile, "UTF-8")) {
+                out.println("runtimeMs=" + (System.currentTimeMillis() - start));
+                out.println("peakRssKb=" + currentPeakRss());
+            } catch (IOException ignored) {
+            }
+        }));
+    }
+
+    private static long currentPeakRss() {
+        File status = new File("/proc/self/status");
+        if (!status.isFile()) {
+            return -1;
+        }
+        try (BufferedReader br = new BufferedReader(new FileReader(status))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.substring("VmHWM:".length())
+                            .replace("kB", "").trim());
+                }
+            }
+        } catch (IOException | NumberFormatException ignored) {
+        }
+        return -1;
+    }
+
+    /**
+     * A job file: the job index on the first line, the app (apk, resource
+     * path, manifest and benchmark name) on the next four, then the outcome
+     * of the last attempt.
+     */
+    private static class Job {
+        final int index;
+        final String[] app;
+        int attempts;
+        String status = "QUEUED";
+        long runtimeMs = -1;
+        long peakRssKb = -1;
+
+        Job(int index, String[] app, int attempts) {
+            this.index = index;
+            this.app = app;
+            this.attempts = attempts;
+        }
+
+        void writeTo(File f) {
+            try (PrintWriter out = new PrintWriter(f, "UTF-8")) {
+                out.println(index);
+                for (String s : app) {
+                    out.println(s);
+                }
+                out.println(attempts);
+                out.println(status);
+                out.println(runtimeMs);
+                out.println(peakRssKb);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        static Job readFrom(File f) {
+            try {
+                List<String> lines = Files.readAllLines(f.toPath(), StandardCharsets.UTF_8);
+                Job job = new Job(Integer.parseInt(lines.get(0)),
+                        new String[]{lines.get(1), lines.get(2), lines.get(3), lines.get(4)},
+                        Integer.parseInt(lines.get(5)));
+                job.status = lines.get(6);
+                job.runtimeMs = Long.parseLong(lines.get(7));
+                job.peakRssKb = Long.parseLong(lines.get(8));
+                return job;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
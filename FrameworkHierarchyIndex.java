@@ -0,0 +1,607 @@
+/*
+ * FrameworkHierarchyIndex.java - part of the GATOR project
+ *
+ * Copyright (c) 2014, 2015 The Ohio State University
+ *
+ * This file is distributed under the terms described in LICENSE in the
+ * root directory.
+ */
+package presto.android;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * The subtype encoding of Hierarchy for the classes of android.jar,
+ * precomputed once per API level.
+ *
+ * The index lives in SootAndroid/scripts/consts/android-NN/ next to the
+ * resource constants. It is generated from the class file headers of
+ * android.jar the first time a level is used, stamped with the size,
+ * modification time and SHA-256 of that jar, and memory-mapped by later runs.
+ * Within one process the index is loaded once and kept across jobs.
+ *
+ * It covers the jar classes whose supertypes are all in the jar, except for
+ * java.lang.Object. Their ids are preorder numbers of the superclass tree,
+ * so the subclasses of id are id + 1 to last(id). Interfaces get a second,
+ * dense numbering, and every class a row of bits for the interfaces it
+ * implements or extends, including itself. Hierarchy takes the intervals
+ * and rows of the framework classes from here, and only computes them for
+ * the other classes of the Scene.
+ *
+ * File layout, all big-endian: magic, version, jar size, jar mtime, jar
+ * digest (32 bytes), class count n, interface count m, then the int arrays
+ * last[n], superclass[n], interfaceNumber[n], interfaceOffsets[n + 1],
+ * interfaces[], rowOffsets[n + 1], nameOffsets[n + 1], the flags[n] bytes,
+ * the UTF-8 class names, padding to 8 bytes and the long words of the rows.
+ */
+public class FrameworkHierarchyIndex {
+    public static final int INTERFACE = 1;
+    public static final int ABSTRACT = 1 << 1;
+    public static final int VIEW = 1 << 2;
+    public static final int MENU = 1 << 3;
+    public static final int MENU_ITEM = 1 << 4;
+    public static final int DIALOG = 1 << 5;
+    public static final int ACTIVITY = 1 << 6;
+
+    private static final int MAGIC = 0x47484958; // "GHIX"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 32 + 4 + 4;
+    private static final String FILE_NAME = "framework_hierarchy.idx";
+    private static final String OBJECT = "java.lang.Object";
+
+    // Framework types that give their subtypes one of the category flags
+    private static final String[] CATEGORY_CLASSES = {
+            "android.view.View",
+            "android.view.Menu",
+            "android.view.MenuItem",
+            "android.content.DialogInterface",
+            "android.app.Activity",
+    };
+    private static final int[] CATEGORY_FLAGS = {VIEW, MENU, MENU_ITEM, DIALOG, ACTIVITY};
+
+    // The index loaded last, and the jar it was loaded for
+    private static FrameworkHierarchyIndex loaded;
+    private static File loadedFile;
+    private static long loadedJarSize;
+    private static long loadedJarTime;
+
+    private final int numClasses;
+    private final int numInterfaces;
+    private final IntBuffer last;
+    private final IntBuffer superclasses;
+    private final IntBuffer interfaceNumbers;
+    private final IntBuffer interfaceOffsets;
+    private final IntBuffer interfaces;
+    private final IntBuffer rowOffsets;
+    private final LongBuffer rows;
+    private final ByteBuffer flags;
+    private final Map<String, Integer> ids;
+
+    private FrameworkHierarchyIndex(ByteBuffer buf) {
+        numClasses = buf.getInt(HEADER_SIZE - 8);
+        numInterfaces = buf.getInt(HEADER_SIZE - 4);
+        int pos = HEADER_SIZE;
+        last = slice(buf, pos, numClasses);
+        pos += 4 * numClasses;
+        superclasses = slice(buf, pos, numClasses);
+        pos += 4 * numClasses;
+        interfaceNumbers = slice(buf, pos, numClasses);
+        pos += 4 * numClasses;
+        interfaceOffsets = slice(buf, pos, numClasses + 1);
+        pos += 4 * (numClasses + 1);
+        interfaces = slice(buf, pos, interfaceOffsets.get(numClasses));
+        pos += 4 * interfaceOffsets.get(numClasses);
+        rowOffsets = slice(buf, pos, numClasses + 1);
+        pos += 4 * (numClasses + 1);
+        IntBuffer nameOffsets = slice(buf, pos, numClasses + 1);
+        pos += 4 * (numClasses + 1);
+        ByteBuffer dup = buf.duplicate();
+        dup.position(pos);
+        dup.limit(pos + numClasses);
+        flags = dup.slice();
+        pos += numClasses;
+
+        ids = Maps.newHashMapWithExpectedSize(numClasses);
+        byte[] names = new byte[nameOffsets.get(numClasses)];
+        dup = buf.duplicate();
+        dup.position(pos);
+        dup.get(names);
+        for (int i = 0; i < numClasses; i++) {
+            int start = nameOffsets.get(i);
+            ids.put(new String(names, start, nameOffsets.get(i + 1) - start,
+                    StandardCharsets.UTF_8), i);
+        }
+        pos = align(pos + names.length);
+
+        dup = buf.duplicate();
+        dup.position(pos);
+        dup.limit(pos + 8 * rowOffsets.get(numClasses));
+        rows = dup.slice().asLongBuffer();
+    }
+
+    private static IntBuffer slice(ByteBuffer buf, int pos, int length) {
+        ByteBuffer dup = buf.duplicate();
+        dup.position(pos);
+        dup.limit(pos + 4 * length);
+        return dup.slice().asIntBuffer();
+    }
+
+    private static int align(int pos) {
+        return (pos + 7) & ~7;
+    }
+
+    public int size() {
+        return numClasses;
+    }
+
+    public int interfaceCount() {
+        return numInterfaces;
+    }
+
+    /**
+     * Returns the id of a class, or -1 if the index does not cover it.
+     */
+    public int idOf(String className) {
+        Integer id = ids.get(className);
+        return id == null ? -1 : id;
+    }
+
+    // Last id of the subclasses of id, which are numbered right after it
+    public int last(int id) {
+        return last.get(id);
+    }
+
+    // Id of the superclass, or -1 if that is java.lang.Object outside of the
+    // index (or id is java.lang.Object itself)
+    public int superclassOf(int id) {
+        return superclasses.get(id);
+    }
+
+    // Interface number of an interface, -1 for classes
+    public int interfaceNumber(int id) {
+        return interfaceNumbers.get(id);
+    }
+
+    // Ids of the interfaces the class directly implements or extends
+    public int[] directInterfaces(int id) {
+        int from = interfaceOffsets.get(id);
+        int[] result = new int[interfaceOffsets.get(id + 1) - from];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = interfaces.get(from + i);
+        }
+        return result;
+    }
+
+    // Interface numbers of all interfaces of the class, including itself
+    public BitSet interfaceRow(int id) {
+        LongBuffer words = rows.duplicate();
+        words.position(rowOffsets.get(id));
+        words.limit(rowOffsets.get(id + 1));
+        return BitSet.valueOf(words);
+    }
+
+    public boolean isInterface(int id) {
+        return hasFlag(id, INTERFACE);
+    }
+
+    public boolean isConcrete(int id) {
+        return (flags.get(id) & (INTERFACE | ABSTRACT)) == 0;
+    }
+
+    public boolean hasFlag(int id, int flag) {
+        return (flags.get(id) & flag) != 0;
+    }
+
+    // --- loading
+
+    /**
+     * Returns the index of Configs.android, generating it if it is missing or
+     * stale, or null if no index can be had (in which case Hierarchy computes
+     * everything from the Scene).
+     */
+    public static synchronized FrameworkHierarchyIndex load() {
+        File jar = new File(Configs.android);
+        if (!jar.isFile() || Configs.gatorRoot == null) {
+            return null;
+        }
+        File file = new File(Configs.gatorRoot + "/SootAndroid/scripts/consts/"
+                + Configs.apiLevel, FILE_NAME);
+        if (loaded != null && file.equals(loadedFile) && jar.length() == loadedJarSize
+                && jar.lastModified() == loadedJarTime) {
+            return loaded;
+        }
+        loaded = null;
+        try {
+            ByteBuffer mapped = map(file, jar);
+            if (mapped == null) {
+                long start = System.currentTimeMillis();
+                byte[] bytes = generate(jar);
+                System.out.println("[HIERARCHY] Generated framework index for " + jar + " in "
+                        + (System.currentTimeMillis() - start) + " ms");
+                if (write(file, bytes)) {
+                    mapped = map(file, jar);
+                } else {
+                    System.out.println("[HIERARCHY] Cannot store framework index at " + file);
+                }
+                if (mapped == null) {
+                    mapped = ByteBuffer.wrap(bytes);
+                }
+            }
+            loaded = new FrameworkHierarchyIndex(mapped);
+            loadedFile = file;
+            loadedJarSize = jar.length();
+            loadedJarTime = jar.lastModified();
+            return loaded;
+        } catch (IOException e) {
+            System.out.println("[HIERARCHY] Framework index unavailable: " + e);
+            return null;
+        }
+    }
+
+    // Maps the index file if its stamp matches the jar. When only the
+    // modification time differs, the digest decides.
+    private static ByteBuffer map(File file, File jar) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        ByteBuffer buf;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buf.capacity() < HEADER_SIZE || buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION
+                || buf.getLong(8) != jar.length()) {
+            return null;
+        }
+        if (buf.getLong(16) != jar.lastModified()) {
+            byte[] stored = new byte[32];
+            ByteBuffer dup = buf.duplicate();
+            dup.position(24);
+            dup.get(stored);
+            if (!Arrays.equals(stored, digest(jar))) {
+                return null;
+            }
+        }
+        return buf;
+    }
+
+    private static boolean write(File file, byte[] bytes) {
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            return false;
+        }
+        try {
+            File tmp = File.createTempFile(FILE_NAME, ".tmp", dir);
+            Files.write(tmp.toPath(), bytes);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static byte[] digest(File f) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        byte[] buf = new byte[1 << 16];
+        try (InputStream in = new FileInputStream(f)) {
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                md.update(buf, 0, n);
+            }
+        }
+        return md.digest();
+    }
+
+    // --- generation
+
+    // A class file header: the class, its access flags, its superclass (null
+    // for java.lang.Object) and its interfaces
+    private static class Header {
+        String name;
+        int access;
+        String superclass;
+        String[] interfaces;
+    }
+
+    static byte[] generate(File jar) throws IOException {
+        Map<String, Header> headers = Maps.newTreeMap();
+        try (JarFile jf = new JarFile(jar)) {
+            Enumeration<JarEntry> entries = jf.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry e = entries.nextElement();
+                if (!e.getName().endsWith(".class")) {
+                    continue;
+                }
+                try (InputStream in = jf.getInputStream(e)) {
+                    Header h = readHeader(new DataInputStream(in));
+                    if (h != null && !headers.containsKey(h.name)) {
+                        headers.put(h.name, h);
+                    }
+                }
+            }
+        }
+
+        // the covered classes, numbered in preorder of the superclass tree
+        Map<String, Boolean> covered = Maps.newHashMap();
+        Map<String, List<Header>> children = Maps.newHashMap();
+        List<Header> roots = Lists.newArrayList();
+        for (Header h : headers.values()) {
+            if (!isCovered(h.name, headers, covered)) {
+                continue;
+            }
+            if (h.superclass == null || !headers.containsKey(h.superclass)) {
+                roots.add(h);
+            } else {
+                List<Header> siblings = children.get(h.superclass);
+                if (siblings == null) {
+                    siblings = Lists.newArrayList();
+                    children.put(h.superclass, siblings);
+                }
+                siblings.add(h);
+            }
+        }
+        List<Header> order = Lists.newArrayList();
+        Map<String, Integer> ids = Maps.newHashMap();
+        List<Integer> lastList = Lists.newArrayList();
+        for (Header root : roots) {
+            number(root, children, order, ids, lastList);
+        }
+        int n = order.size();
+        int[] last = new int[n];
+        int[] superclass = new int[n];
+        int[] interfaceNumber = new int[n];
+        int[][] direct = new int[n][];
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            Header h = order.get(i);
+            last[i] = lastList.get(i);
+            Integer s = h.superclass == null ? null : ids.get(h.superclass);
+            superclass[i] = s == null ? -1 : s;
+            interfaceNumber[i] = (h.access & 0x0200) != 0 ? m++ : -1;
+            direct[i] = new int[h.interfaces.length];
+            for (int k = 0; k < h.interfaces.length; k++) {
+                direct[i][k] = ids.get(h.interfaces[k]);
+            }
+        }
+        BitSet[] rows = new BitSet[n];
+        for (int i = 0; i < n; i++) {
+            row(i, superclass, interfaceNumber, direct, rows);
+        }
+
+        byte[] flagBytes = new byte[n];
+        for (int i = 0; i < n; i++) {
+            int access = order.get(i).access;
+            int f = 0;
+            if ((access & 0x0200) != 0) {
+                f |= INTERFACE;
+            }
+            if ((access & 0x0400) != 0) {
+                f |= ABSTRACT;
+            }
+            for (int c = 0; c < CATEGORY_CLASSES.length; c++) {
+                Integer t = ids.get(CATEGORY_CLASSES[c]);
+                if (t == null) {
+                    continue;
+                }
+                boolean subtype = interfaceNumber[t] >= 0 ? rows[i].get(interfaceNumber[t])
+                        : t <= i && i <= last[t];
+                if (subtype) {
+                    f |= CATEGORY_FLAGS[c];
+                }
+            }
+            flagBytes[i] = (byte) f;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(jar.length());
+        out.writeLong(jar.lastModified());
+        out.write(digest(jar));
+        out.writeInt(n);
+        out.writeInt(m);
+        writeInts(out, last);
+        writeInts(out, superclass);
+        writeInts(out, interfaceNumber);
+        int offset = 0;
+        for (int[] d : direct) {
+            out.writeInt(offset);
+            offset += d.length;
+        }
+        out.writeInt(offset);
+        for (int[] d : direct) {
+            writeInts(out, d);
+        }
+        long[][] words = new long[n][];
+        offset = 0;
+        for (int i = 0; i < n; i++) {
+            words[i] = rows[i].toLongArray();
+            out.writeInt(offset);
+            offset += words[i].length;
+        }
+        out.writeInt(offset);
+        byte[][] encoded = new byte[n][];
+        offset = 0;
+        for (int i = 0; i < n; i++) {
+            encoded[i] = order.get(i).name.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(offset);
+            offset += encoded[i].length;
+        }
+        out.writeInt(offset);
+        out.write(flagBytes);
+        for (byte[] e : encoded) {
+            out.write(e);
+        }
+        while (out.size() != align(out.size())) {
+            out.writeByte(0);
+        }
+        for (long[] w : words) {
+            for (long v : w) {
+                out.writeLong(v);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    // A class is covered when its superclass is java.lang.Object or a
+    // covered class, and its interfaces are covered
+    private static boolean isCovered(String name, Map<String, Header> headers,
+                                     Map<String, Boolean> covered) {
+        Boolean known = covered.get(name);
+        if (known != null) {
+            return known;
+        }
+        Header h = headers.get(name);
+        if (h == null) {
+            return false;
+        }
+        // guards against cycles in a malformed jar
+        covered.put(name, false);
+        boolean result = h.superclass == null ? name.equals(OBJECT)
+                : h.superclass.equals(OBJECT) || isCovered(h.superclass, headers, covered);
+        for (String i : h.interfaces) {
+            result = result && isCovered(i, headers, covered);
+        }
+        covered.put(name, result);
+        return result;
+    }
+
+    private static void number(Header h, Map<String, List<Header>> children, List<Header> order,
+                               Map<String, Integer> ids, List<Integer> last) {
+        int id = order.size();
+        order.add(h);
+        ids.put(h.name, id);
+        last.add(id);
+        List<Header> subclasses = children.get(h.name);
+        for (Header sub : subclasses == null ? Collections.<Header>emptyList() : subclasses) {
+            number(sub, children, order, ids, last);
+        }
+        last.set(id, order.size() - 1);
+    }
+
+    private static BitSet row(int id, int[] superclass, int[] interfaceNumber, int[][] direct,
+                              BitSet[] rows) {
+        if (rows[id] != null) {
+            return rows[id];
+        }
+        BitSet row = new BitSet();
+        rows[id] = row;
+        if (interfaceNumber[id] >= 0) {
+            row.set(interfaceNumber[id]);
+        }
+        if (superclass[id] >= 0) {
+            row.or(row(superclass[id], superclass, interfaceNumber, direct, rows));
+        }
+        for (int i : direct[id]) {
+            row.or(row(i, superclass, interfaceNumber, direct, rows));
+        }
+        return row;
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        for (int v : values) {
+            out.writeInt(v);
+        }
+    }
+
+    // Reads the class, its access flags, superclass and interfaces from a
+    // class file, skipping over the constant pool. Returns null for files
+    // that are not class files.
+    private static Header readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != 0xCAFEBABE) {
+            return null;
+        }
+        in.readUnsignedShort();
+        in.readUnsignedShort();
+        int count = in.readUnsignedShort();
+        String[] utf8 = new String[count];
+        int[] classNameIndex = new int[count];
+        for (int i = 1; i < count; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case 1:
+                    utf8[i] = in.readUTF();
+                    break;
+                case 7:
+                    classNameIndex[i] = in.readUnsignedShort();
+                    break;
+                case 8:
+                case 16:
+                case 19:
+                case 20:
+                    in.readUnsignedShort();
+                    break;
+                case 15:
+                    in.readUnsignedByte();
+                    in.readUnsignedShort();
+                    break;
+                case 3:
+                case 4:
+                case 9:
+                case 10:
+                case 11:
+                case 12:
+                case 17:
+                case 18:
+                    in.readInt();
+                    break;
+                case 5:
+                case 6:
+                    in.readLong();
+                    i++;
+                    break;
+                default:
+                    throw new IOException("Bad constant pool tag " + tag);
+            }
+        }
+        Header h = new Header();
+        h.access = in.readUnsignedShort();
+        h.name = className(utf8, classNameIndex, in.readUnsignedShort());
+        int superIndex = in.readUnsignedShort();
+        h.superclass = superIndex == 0 ? null : className(utf8, classNameIndex, superIndex);
+        h.interfaces = new String[in.readUnsignedShort()];
+        for (int i = 0; i < h.interfaces.length; i++) {
+            h.interfaces[i] = className(utf8, classNameIndex, in.readUnsignedShort());
+        }
+        return h;
+    }
+
+    private static String className(String[] utf8, int[] classNameIndex, int index) {
+        return utf8[classNameIndex[index]].replace('/', '.');
+    }
+}
@@ -8,21 +8,27 @@
  */
 package presto.android;
 
-import java.util.HashSet;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 
 import com.google.common.collect.Lists;
-import soot.Body;
 import soot.Scene;
 import soot.SootClass;
 import soot.SootMethod;
-import soot.Unit;
-import soot.Value;
-import soot.jimple.AssignStmt;
-import soot.jimple.NewExpr;
-import soot.jimple.Stmt;
+import soot.util.NumberedString;
 
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
@@ -33,6 +39,11 @@ public class Hierarchy {
     private final SootClass dialogInterface;
 
     public boolean isSubclassOf(final SootClass child, final SootClass parent) {
+        int c = preNumber(child);
+        int p = preNumber(parent);
+        if (c >= 0 && p >= 0) {
+            return isSubtype(c, p);
+        }
         Set<SootClass> superTypes = getSupertypes(child);
         if (superTypes != null) {
             return superTypes.contains(parent);
@@ -67,29 +78,63 @@ public class Hierarchy {
         return isSubclassOf(c, menuItemClass);
     }
 
-    private boolean isDialog(final SootClass c) {
-        return isSubclassOf(c, dialogInterface);
-    }
-
     // -----------------------------------------
     // Returns a set of SootClasses: all transitive subtypes of c,
     // including c
     public Set<SootClass> getSubtypes(SootClass c) {
-        return classAndItsSubTypes.get(c);
+        int p = preNumber(c);
+        if (p < 0) {
+            return c != null && fakeListenerClasses.containsKey(c) ? ImmutableSet.of(c) : null;
+        }
+        if (interfaceOf[p] >= 0) {
+            return new TypeSet(implementors[interfaceOf[p]], 0, types.length - 1, c);
+        }
+        return new TypeSet(null, p, last[p], c);
     }
 
     // -----------------------------------------
     // Returns a set of SootClasses: all transitive SUPERtypes of c,
     // including c
     public Set<SootClass> getSupertypes(SootClass c) {
-        return classAndItsSuperTypes.get(c);
+        int p = preNumber(c);
+        if (p < 0) {
+            SootClass listenerInterface = c == null ? null : fakeListenerClasses.get(c);
+            return listenerInterface == null ? null : ImmutableSet.of(c, listenerInterface);
+        }
+        return new SupertypeSet(p);
     }
 
     // ----------------------------------------------------------
     // Returns a set of SootClasses: all transitive subtypes of c
     // (including c) for which SootClass.isConcrete() is true
     public Set<SootClass> getConcreteSubtypes(SootClass c) {
-        return classAndItsConcreteSubTypes.get(c);
+        int p = preNumber(c);
+        if (p < 0) {
+            return c != null && fakeListenerClasses.containsKey(c) ? ImmutableSet.of(c) : null;
+        }
+        if (interfaceOf[p] >= 0) {
+            return new TypeSet(concreteImplementors[interfaceOf[p]], 0, types.length - 1, c);
+        }
+        return new TypeSet(concreteTypes, p, last[p], c);
+    }
+
+    // The position of c in the preorder numbering, or -1 for classes that
+    // were not in the Scene when the hierarchy was built
+    private int preNumber(SootClass c) {
+        if (c == null) {
+            return -1;
+        }
+        int n = c.getNumber();
+        return n < preOf.length ? preOf[n] - 1 : -1;
+    }
+
+    // Whether the type numbered c is a subtype of the type numbered p
+    private boolean isSubtype(int c, int p) {
+        int i = interfaceOf[p];
+        if (i >= 0) {
+            return interfaceRows[c].get(i);
+        }
+        return p <= c && c <= last[p];
     }
 
     // ---------------------------------------------------------
@@ -108,36 +153,61 @@ public class Hierarchy {
             }
         }
         // look up the method
-        SootClass curr = receiverClass;
-        while (curr != null) {
-            if (curr.declaresMethod((staticTarget.getSubSignature()))) {
-                return curr.getMethod(staticTarget.getSubSignature());
-            }
-            if (curr.hasSuperclass()) {
-                curr = curr.getSuperclass();
-            } else {
-                curr = null; // for java.lang.Object
-            }
-        }
-
-        return null;
+        NumberedString subsig = staticTarget.getNumberedSubSignature();
+        SootClass matched = dispatch(receiverClass, subsig);
+        return matched == null ? null : matched.getMethod(subsig);
     }
 
     public SootClass matchForVirtualDispatch(String staticTargetSubsig,
                                              SootClass receiverClass) {
-        // look up the method
-        SootClass currentClass = receiverClass;
-        while (currentClass != null) {
-            if (currentClass.declaresMethod(staticTargetSubsig)) {
-                return currentClass;
-            }
-            if (currentClass.hasSuperclass()) {
-                currentClass = currentClass.getSuperclass();
-            } else {
-                currentClass = null; // for java.lang.Object
+        return dispatch(receiverClass, Scene.v().getSubSigNumberer().findOrAdd(staticTargetSubsig));
+    }
+
+    // The first class on the superclass chain of receiverClass that
+    // declares a method with the given subsignature, or null. Results
+    // are memoized for the whole chain.
+    private SootClass dispatch(SootClass receiverClass, NumberedString subsig) {
+        int p = preNumber(receiverClass);
+        if (p < 0) {
+            // fake listener classes get their methods after being
+            // created, so they are looked up every time
+            for (SootClass curr = receiverClass; curr != null;
+                 curr = curr.hasSuperclass() ? curr.getSuperclass() : null) {
+                if (curr.declaresMethod(subsig)) {
+                    return curr;
+                }
             }
+            return null;
+        }
+        ConcurrentMap<NumberedString, Object> row = dispatchCache.get(p);
+        if (row == null) {
+            dispatchCache.compareAndSet(p, null, Maps.<NumberedString, Object>newConcurrentMap());
+            row = dispatchCache.get(p);
+        }
+        Object cached = row.get(subsig);
+        if (cached != null) {
+            dispatchCacheHits.increment();
+            return cached == NO_MATCH ? null : (SootClass) cached;
         }
-        return null;
+        dispatchCacheMisses.increment();
+        SootClass matched;
+        if (receiverClass.declaresMethod(subsig)) {
+            matched = receiverClass;
+        } else if (receiverClass.hasSuperclass()) {
+            matched = dispatch(receiverClass.getSuperclass(), subsig);
+        } else {
+            matched = null; // for java.lang.Object
+        }
+        row.put(subsig, matched == null ? NO_MATCH : matched);
+        return matched;
+    }
+
+    public long getDispatchCacheHits() {
+        return dispatchCacheHits.sum();
+    }
+
+    public long getDispatchCacheMisses() {
+        return dispatchCacheMisses.sum();
     }
 
     private static Hierarchy instance;
@@ -149,6 +219,10 @@ public class Hierarchy {
         return instance;
     }
 
+    public static synchronized void reset() {
+        instance = null;
+    }
+
     private Hierarchy() {
         Scene scene = Scene.v();
 
@@ -159,11 +233,14 @@ public class Hierarchy {
 
         simpleClassStatistics();
 
-        // next, for each class/interface C, recursively traverse
-        // all supertypes of C and add C to the appropriate sets
-        for (SootClass c : scene.getClasses()) {
-            traverse(c, c);
-        }
+        // next, number all classes/interfaces and compute, for each
+        // of them, the interfaces it implements. The framework classes
+        // get both from the index.
+        frameworkIndex = FrameworkHierarchyIndex.load();
+        matchFrameworkIndex();
+        numberTypes();
+        interfaceRows();
+        dispatchCache = new AtomicReferenceArray<>(types.length);
 
         // Look at activities
         activityClasses();
@@ -177,18 +254,228 @@ public class Hierarchy {
         recordFrameworkInvokedCallbacks();
     } // Hierarchy()
 
+    // Finds the library classes of the Scene whose direct supertypes are
+    // those recorded in the framework index. As their supertypes match
+    // too, the index has their subclass intervals and interface rows.
+    void matchFrameworkIndex() {
+        Scene scene = Scene.v();
+        indexIdOf = new int[scene.getClassNumberer().size() + 1];
+        if (frameworkIndex == null) {
+            return;
+        }
+        indexed = new SootClass[frameworkIndex.size()];
+        int matched = 0;
+        for (SootClass c : scene.getClasses()) {
+            if (indexId(c) >= 0) {
+                matched++;
+            }
+        }
+        System.out.println("[HIERARCHY] Framework index: " + frameworkIndex.size()
+                + " classes, " + matched + " in Scene");
+    }
+
+    // The index id of c, or -1 if c does not match the index
+    private int indexId(SootClass c) {
+        int n = c.getNumber();
+        if (frameworkIndex == null || n >= indexIdOf.length) {
+            return -1;
+        }
+        if (indexIdOf[n] == 0) {
+            // guards against cycles
+            indexIdOf[n] = -1;
+            int id = matchIndex(c);
+            if (id >= 0) {
+                indexIdOf[n] = id + 1;
+                indexed[id] = c;
+            }
+        }
+        return indexIdOf[n] > 0 ? indexIdOf[n] - 1 : -1;
+    }
+
+    private int matchIndex(SootClass c) {
+        int id = frameworkIndex.idOf(c.getName());
+        if (id < 0 || !c.isLibraryClass() || c.isInterface() != frameworkIndex.isInterface(id)
+                || c.isConcrete() != frameworkIndex.isConcrete(id)) {
+            return -1;
+        }
+        int superclass = frameworkIndex.superclassOf(id);
+        if (superclass >= 0) {
+            if (!c.hasSuperclass() || indexId(c.getSuperclass()) != superclass) {
+                return -1;
+            }
+        } else if (c.getName().equals("java.lang.Object")) {
+            if (c.hasSuperclass()) {
+                return -1;
+            }
+        } else if (!c.hasSuperclass() || !c.getSuperclass().getName().equals("java.lang.Object")) {
+            return -1;
+        }
+        int[] direct = frameworkIndex.directInterfaces(id);
+        if (direct.length != c.getInterfaceCount()) {
+            return -1;
+        }
+        Arrays.sort(direct);
+        for (SootClass i : c.getInterfaces()) {
+            int interfaceId = indexId(i);
+            if (interfaceId < 0 || Arrays.binarySearch(direct, interfaceId) < 0) {
+                return -1;
+            }
+        }
+        return id;
+    }
+
+    // Numbers the types of the Scene in preorder of the tree of
+    // superclasses. Interfaces, whose superclass is java.lang.Object, are
+    // leaves of that tree. The interfaces get a second, dense numbering,
+    // which starts with the numbers of the index.
+    void numberTypes() {
+        Scene scene = Scene.v();
+        List<SootClass> roots = Lists.newArrayList();
+        Map<SootClass, List<SootClass>> children = Maps.newHashMap();
+        int numTypes = 0;
+        int numInterfaceTypes = 0;
+        for (SootClass c : scene.getClasses()) {
+            numTypes++;
+            int id = indexId(c);
+            if (id < 0 && c.isInterface()) {
+                numInterfaceTypes++;
+            }
+            if (id >= 0 && frameworkIndex.superclassOf(id) >= 0) {
+                // numbered with its superclass, in the order of the index
+                continue;
+            }
+            if (c.hasSuperclass() && c.getSuperclass().isInScene()) {
+                List<SootClass> siblings = children.get(c.getSuperclass());
+                if (siblings == null) {
+                    siblings = Lists.newArrayList();
+                    children.put(c.getSuperclass(), siblings);
+                }
+                siblings.add(c);
+            } else {
+                roots.add(c);
+            }
+        }
+        preOf = new int[scene.getClassNumberer().size() + 1];
+        types = new SootClass[numTypes];
+        last = new int[numTypes];
+        interfaceOf = new int[numTypes];
+        if (frameworkIndex != null) {
+            numInterfaces = frameworkIndex.interfaceCount();
+        }
+        interfaces = new SootClass[numInterfaces + numInterfaceTypes];
+        int next = 0;
+        for (SootClass root : roots) {
+            next = numberSubtree(root, children, next) + 1;
+        }
+        if (next != numTypes) {
+            throw new Error("[HIERARCHY] Superclass tree does not cover all classes");
+        }
+    }
+
+    // Numbers c as pre and its subclasses right after it, returning the
+    // last number used
+    private int numberSubtree(SootClass c, Map<SootClass, List<SootClass>> children, int pre) {
+        types[pre] = c;
+        preOf[c.getNumber()] = pre + 1;
+        if (c.isConcrete()) {
+            concreteTypes.set(pre);
+        }
+        interfaceOf[pre] = -1;
+        int id = indexId(c);
+        if (id >= 0 && c.isInterface()) {
+            interfaceOf[pre] = frameworkIndex.interfaceNumber(id);
+            interfaces[interfaceOf[pre]] = c;
+        } else if (c.isInterface()) {
+            interfaceOf[pre] = numInterfaces;
+            interfaces[numInterfaces++] = c;
+        }
+        int end = pre;
+        List<SootClass> subclasses = children.get(c);
+        if (subclasses != null) {
+            for (SootClass sub : subclasses) {
+                end = numberSubtree(sub, children, end + 1);
+            }
+        }
+        if (id >= 0) {
+            // the direct subclasses in the index, skipping those (and thus
+            // their subclasses) that are not in the Scene
+            for (int j = id + 1; j <= frameworkIndex.last(id); j = frameworkIndex.last(j) + 1) {
+                if (indexed[j] != null) {
+                    end = numberSubtree(indexed[j], children, end + 1);
+                }
+            }
+        }
+        last[pre] = end;
+        return end;
+    }
+
+    // Computes the interfaces of every type, and from them the
+    // implementors of every interface
+    void interfaceRows() {
+        interfaceRows = new BitSet[types.length];
+        for (int p = 0; p < types.length; p++) {
+            interfaceRow(p);
+        }
+        implementors = new BitSet[interfaces.length];
+        concreteImplementors = new BitSet[interfaces.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            implementors[i] = new BitSet();
+            concreteImplementors[i] = new BitSet();
+        }
+        for (int p = 0; p < types.length; p++) {
+            BitSet row = interfaceRows[p];
+            for (int i = row.nextSetBit(0); i >= 0; i = row.nextSetBit(i + 1)) {
+                implementors[i].set(p);
+                if (concreteTypes.get(p)) {
+                    concreteImplementors[i].set(p);
+                }
+            }
+        }
+    }
+
+    // The interfaces of a type are its own and those of its direct
+    // supertypes
+    private BitSet interfaceRow(int p) {
+        BitSet row = interfaceRows[p];
+        if (row != null) {
+            return row;
+        }
+        SootClass c = types[p];
+        int id = indexId(c);
+        if (id >= 0) {
+            // the index numbers interfaces like the Scene does
+            row = frameworkIndex.interfaceRow(id);
+            interfaceRows[p] = row;
+            return row;
+        }
+        row = new BitSet();
+        interfaceRows[p] = row;
+        if (interfaceOf[p] >= 0) {
+            row.set(interfaceOf[p]);
+        }
+        if (c.hasSuperclass()) {
+            int q = preNumber(c.getSuperclass());
+            if (q >= 0) {
+                row.or(interfaceRow(q));
+            }
+        }
+        for (SootClass i : c.getInterfaces()) {
+            int q = preNumber(i);
+            if (q >= 0) {
+                row.or(interfaceRow(q));
+            }
+        }
+        return row;
+    }
+
     void simpleClassStatistics() {
         Scene scene = Scene.v();
         int numClasses = 0;
-        // first, create an empty set for each class/interface
         for (SootClass c : scene.getClasses()) {
             numClasses++;
             if (c.isApplicationClass()) {
                 appClasses.add(c);
             }
-            classAndItsConcreteSubTypes.put(c, new HashSet<>());
-            classAndItsSubTypes.put(c, new HashSet<>());
-            classAndItsSuperTypes.put(c, new HashSet<>());
         }
         System.out.print("[HIERARCHY] All classes: " + numClasses);
         System.out.print(" [App: " + appClasses.size());
@@ -303,7 +590,7 @@ public class Hierarchy {
             }
         }
         for (SootClass c : Scene.v().getLibraryClasses()) {
-            if (getSupertypes(c).contains(act)) {
+            if (hasSupertype(c, act, FrameworkHierarchyIndex.ACTIVITY)) {
                 libActivityClasses.add(c);
             }
         }
@@ -336,15 +623,14 @@ public class Hierarchy {
         }
         int numLibViews = 0;
         for (SootClass c : scene.getLibraryClasses()) {
-            Set<SootClass> superClzSet = getSupertypes(c);
-            if (superClzSet.contains(view)) {
+            if (hasSupertype(c, view, FrameworkHierarchyIndex.VIEW)) {
                 numLibViews++;
                 viewClasses.add(c);
             }
-            if (superClzSet.contains(menuItem)) {
+            if (hasSupertype(c, menuItem, FrameworkHierarchyIndex.MENU_ITEM)) {
                 menuItemClasses.add(c);
             }
-            if (superClzSet.contains(menu)) {
+            if (hasSupertype(c, menu, FrameworkHierarchyIndex.MENU)) {
                 menuClasses.add(c);
             }
         }
@@ -354,7 +640,7 @@ public class Hierarchy {
 
     void dialogs() {
         for (SootClass c : Scene.v().getClasses()) {
-            if (isDialog(c)) {
+            if (hasSupertype(c, dialogInterface, FrameworkHierarchyIndex.DIALOG)) {
                 if (c.isApplicationClass()) {
                     applicationDialogClasses.add(c);
                 } else {
@@ -366,109 +652,228 @@ public class Hierarchy {
                 + ", Lib Dialogs: " + libraryDialogClasses.size());
     }
 
-    //TODO: OPTIMIZATION
-    //This method is run for every class that is in the Application Class
-    //Can we change it so it only run once as it fairly expensive.
+    // Category test that reads the flags of the index for matched classes
+    private boolean hasSupertype(SootClass c, SootClass type, int indexFlag) {
+        int id = indexId(c);
+        if (id >= 0 && indexId(type) >= 0) {
+            return frameworkIndex.hasFlag(id, indexFlag);
+        }
+        return isSubclassOf(c, type);
+    }
+
     boolean instantiatedInApplicationCode(SootClass c) {
-        for (SootClass d : appClasses) {
-            //There might be a bug in soot here, as the List returned by d.getMethods is reported to be
-            //modified by soot during the execution.
-            //Only few apps have this issue, e.g. it.greenaddress.cordova_72.apk
-            for (SootMethod m : Lists.newArrayList(d.getMethods())) {
-                if (!m.isConcrete()) {
-                    continue;
-                }
-                Body b = m.retrieveActiveBody();
-                for (Unit unit : b.getUnits()) {
-                    Stmt stmt = (Stmt) unit;
-                    if (!(stmt instanceof AssignStmt)) {
-                        continue;
-                    }
-                    Value rhs = ((AssignStmt) stmt).getRightOp();
-                    if (!(rhs instanceof NewExpr)) {
-                        continue;
-                    }
-                    if (((NewExpr) rhs).getBaseType().getSootClass() == c) {
-                        return true;
-                    }
-                }
+        return AllocationSiteIndex.v().isInstantiated(c);
+    }
+
+    public void addFakeListenerClass(SootClass listenerClass,
+                                     SootClass listenerInterface) {
+        fakeListenerClasses.put(listenerClass, listenerInterface);
+        Set<SootClass> added = fakeSubtypes.get(listenerInterface);
+        if (added == null) {
+            added = Sets.newSetFromMap(Maps.<SootClass, Boolean>newConcurrentMap());
+            Set<SootClass> previous = fakeSubtypes.putIfAbsent(listenerInterface, added);
+            if (previous != null) {
+                added = previous;
             }
         }
-        return false;
+        added.add(listenerClass);
     }
 
-    // -------------------------------------------------------
-    // recursive traversal of superclasses and superinterfaces
-    private void traverse(SootClass sub, SootClass supr) {
+    // A read-only set of numbered types: those numbered from..to that are
+    // in bits (all of them if bits is null), plus the fake listener classes
+    // added below the given type.
+    private class TypeSet extends AbstractSet<SootClass> {
+        private final BitSet bits;
+        private final int from;
+        private final int to;
+        private final SootClass type;
+
+        TypeSet(BitSet bits, int from, int to, SootClass type) {
+            this.bits = bits;
+            this.from = from;
+            this.to = to;
+            this.type = type;
+        }
 
-        // sub is a subtype of supr (or possibly supr == sub)
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof SootClass)) {
+                return false;
+            }
+            int p = preNumber((SootClass) o);
+            if (p >= from && p <= to) {
+                return bits == null || bits.get(p);
+            }
+            Set<SootClass> added = fakeSubtypes.get(type);
+            return added != null && added.contains(o);
+        }
 
-        // first, add sub to the all_tbl set for supr
-        classAndItsSubTypes.get(supr).add(sub);
+        @Override
+        public int size() {
+            int size;
+            if (bits == null) {
+                size = to - from + 1;
+            } else if (from == 0 && to == types.length - 1) {
+                size = bits.cardinality();
+            } else {
+                size = bits.get(from, to + 1).cardinality();
+            }
+            Set<SootClass> added = fakeSubtypes.get(type);
+            return added == null ? size : size + added.size();
+        }
 
-        // also, add supr to the all_super_tbl set for sub
-        classAndItsSuperTypes.get(sub).add(supr);
+        @Override
+        public Iterator<SootClass> iterator() {
+            Iterator<SootClass> numbered = new Iterator<SootClass>() {
+                private int next = advance(from);
 
-        // next, if sub is a non-interface non-abstract class, add it
-        // to the tbl set for supr
-        if (sub.isConcrete()) {
-            classAndItsConcreteSubTypes.get(supr).add(sub);
-        }
+                private int advance(int p) {
+                    if (bits != null) {
+                        p = bits.nextSetBit(p);
+                    }
+                    return p < 0 || p > to ? -1 : p;
+                }
 
-        // traverse parent classes/interfaces of supr
+                @Override
+                public boolean hasNext() {
+                    return next >= 0;
+                }
 
-        if (supr.hasSuperclass()) {
-            traverse(sub, supr.getSuperclass());
-        }
+                @Override
+                public SootClass next() {
+                    if (next < 0) {
+                        throw new NoSuchElementException();
+                    }
+                    SootClass c = types[next];
+                    next = advance(next + 1);
+                    return c;
+                }
 
-        for (SootClass sootClass : supr.getInterfaces()) {
-            traverse(sub, sootClass);
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+            Set<SootClass> added = fakeSubtypes.get(type);
+            return added == null ? numbered : Iterators.concat(numbered, added.iterator());
         }
     }
 
-    public void addFakeListenerClass(SootClass listenerClass,
-                                     SootClass listenerInterface) {
-        classAndItsSuperTypes.put(
-                listenerClass,
-                Sets.newHashSet(listenerClass, listenerInterface));
+    // The supertypes of a numbered type: its superclass chain, then its
+    // interfaces. Membership is the interval or bit test of isSubtype().
+    private class SupertypeSet extends AbstractSet<SootClass> {
+        private final int pre;
 
-        classAndItsSubTypes.put(listenerClass, Sets.newHashSet(listenerClass));
-        classAndItsConcreteSubTypes.put(listenerClass, Sets.newHashSet(listenerClass));
+        SupertypeSet(int pre) {
+            this.pre = pre;
+        }
 
-        classAndItsSubTypes.get(listenerInterface).add(listenerClass);
-        classAndItsConcreteSubTypes.get(listenerInterface).add(listenerClass);
-    }
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof SootClass)) {
+                return false;
+            }
+            int p = preNumber((SootClass) o);
+            return p >= 0 && isSubtype(pre, p);
+        }
 
-    // -------------------------------------------------------------
-    // this hash table contains a pair (C,X) for each class C in the
-    // program. Here by "class" we mean SootClass, which could be a
-    // Java class or a Java interface. The set of possible values of C
-    // covers all SootClasses that are application classes or library
-    // classes. X is a HashSet that contains SootClasses for all
-    // elements of the set { C } union { D | D is a direct or
-    // transitive subtype of C }, **excluding** all D that are
-    // interfaces or abstract classes.
-    private final Map<SootClass, Set<SootClass>> classAndItsConcreteSubTypes = Maps.newHashMap();
+        @Override
+        public int size() {
+            return superclassChain().size() + interfaceRows[pre].cardinality()
+                    - (interfaceOf[pre] >= 0 ? 1 : 0);
+        }
 
-    // -------------------------------------------------------------
-    // this hash table contains a pair (C,X) for each class C in the
-    // program. Here by "class" we mean SootClass, which could be a
-    // Java class or a Java interface. The set of possible values of C
-    // covers all SootClasses that are application classes or library
-    // classes. X is a HashSet that contains SootClasses for all
-    // elements of the set { C } union { D | D is a direct or
-    // transitive subtype of C }.
-    private final Map<SootClass, Set<SootClass>> classAndItsSubTypes = Maps.newHashMap();
+        @Override
+        public Iterator<SootClass> iterator() {
+            List<SootClass> result = superclassChain();
+            BitSet row = interfaceRows[pre];
+            for (int i = row.nextSetBit(0); i >= 0; i = row.nextSetBit(i + 1)) {
+                if (i != interfaceOf[pre]) {
+                    result.add(interfaces[i]);
+                }
+            }
+            return Collections.unmodifiableList(result).iterator();
+        }
+
+        private List<SootClass> superclassChain() {
+            List<SootClass> chain = Lists.newArrayList();
+            SootClass c = types[pre];
+            while (true) {
+                chain.add(c);
+                if (!c.hasSuperclass() || preNumber(c.getSuperclass()) < 0) {
+                    return chain;
+                }
+                c = c.getSuperclass();
+            }
+        }
+    }
 
     // -------------------------------------------------------------
-    // this hash table contains a pair (C,X) for each class C in the
-    // program. Here by "class" we mean SootClass, which could be a
-    // Java class or a Java interface. The set of possible values of C
-    // covers all SootClasses that are application classes or library
-    // classes. X is a HashSet that contains SootClasses for all
-    // elements of the set { C } union { D | D is a direct or
-    // transitive SUPERtype of C }.
-    private final Map<SootClass, Set<SootClass>> classAndItsSuperTypes = Maps.newHashMap();
+    // The subtype relation over all SootClasses of the Scene, which
+    // could be Java classes or Java interfaces. Each of them gets a
+    // number from a preorder walk of the tree of superclasses, so
+    // that the subclasses of a class C are numbered from C's own
+    // number to last[C]. On top of that, every type has a row of bits
+    // for the interfaces it implements or extends (including itself),
+    // and every interface a column of bits for the types implementing
+    // it. isSubclassOf() is a single interval or bit test, and
+    // getSupertypes(), getSubtypes() and getConcreteSubtypes() return
+    // read-only views of these rows.
+
+    // SootClass.getNumber() -> preorder number + 1, 0 for none
+    private int[] preOf;
+
+    // preorder number -> SootClass
+    private SootClass[] types;
+
+    // preorder number -> last preorder number of its subclasses
+    private int[] last;
+
+    // preorder numbers of the types for which SootClass.isConcrete()
+    // is true
+    private final BitSet concreteTypes = new BitSet();
+
+    // preorder number -> interface number, -1 for classes
+    private int[] interfaceOf;
+
+    // interface number -> SootClass
+    private SootClass[] interfaces;
+    private int numInterfaces;
+
+    // preorder number -> interface numbers of its interfaces
+    private BitSet[] interfaceRows;
+
+    // Precomputed numbering and interface rows of the android.jar
+    // classes, or null. The framework classes that match it keep the
+    // order of the index, and their interfaces the numbers of the index.
+    private FrameworkHierarchyIndex frameworkIndex;
+
+    // SootClass.getNumber() -> index id + 1 for the classes that match
+    // the index, -1 for those that do not, 0 for not yet known
+    private int[] indexIdOf;
+
+    // index id -> the Scene class matching it, or null
+    private SootClass[] indexed;
+
+    // interface number -> preorder numbers of all (concrete) types
+    // implementing it
+    private BitSet[] implementors;
+    private BitSet[] concreteImplementors;
+
+    // Memoized virtual dispatch: preorder number of the receiver class
+    // -> interned subsignature -> the class declaring the target, or
+    // NO_MATCH
+    private AtomicReferenceArray<ConcurrentMap<NumberedString, Object>> dispatchCache;
+    private static final Object NO_MATCH = new Object();
+    private final LongAdder dispatchCacheHits = new LongAdder();
+    private final LongAdder dispatchCacheMisses = new LongAdder();
+
+    // Fake listener classes created during flow graph construction,
+    // mapped to the listener interface they implement, and each such
+    // interface to its fake listener classes. They are outside of the
+    // numbering.
+    private final Map<SootClass, SootClass> fakeListenerClasses = Maps.newConcurrentMap();
+    private final ConcurrentMap<SootClass, Set<SootClass>> fakeSubtypes = Maps.newConcurrentMap();
 
     public Set<SootClass> applicationActivityClasses = Sets.newHashSet();
     public Set<SootClass> libActivityClasses = Sets.newHashSet(); // not in app
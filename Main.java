@@ -8,24 +8,67 @@
  */
 package presto.android;
 
+import com.google.common.collect.Lists;
 import presto.android.Configs.AsyncOpStrategy;
+import presto.android.gui.GUIAnalysis;
+import presto.android.xml.XMLParser;
 import soot.Pack;
 import soot.PackManager;
 import soot.SceneTransformer;
 import soot.Transform;
+import soot.options.Options;
 
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 
 public class Main {
 
+    // gatorRoot + widgetMapFile that Configs.widgetMap was read from
+    private static String loadedWidgetMap;
+
     public static void main(String[] args) {
+        if (args.length == 2 && "-daemon".equals(args[0])) {
+            Configs.multiJob = true;
+            AnalysisDaemon.v().serve(Integer.parseInt(args[1]));
+            return;
+        }
+        parseArgs(args);
+        if (!Configs.farmFile.isEmpty()) {
+            FarmCoordinator.v().run(Configs.farmFile, args);
+            return;
+        }
+        if (!Configs.batchFile.isEmpty()) {
+            Configs.multiJob = true;
+            BatchRunner.v().run(Configs.batchFile, BatchRunner.commonArgs(args));
+            return;
+        }
+        setupAndInvokeSoot();
+    }
+
+    /**
+     * Runs one complete analysis in the current JVM. Our singletons are reset
+     * first, and ResidentScene gives the job the same Soot classes as a fresh
+     * process would load, so the result is the same as for a fresh process.
+     */
+    public static void runJob(String[] args) {
+        resetGlobalState();
         parseArgs(args);
         setupAndInvokeSoot();
     }
 
+    static void resetGlobalState() {
+        Configs.reset();
+        SceneCache.reset();
+        Hierarchy.reset();
+        AllocationSiteIndex.reset();
+        XMLParser.Factory.reset();
+        GUIAnalysis.reset();
+    }
+
     public static void parseArgs(String[] args) {
         for (int i = 0; i < args.length; i++) {
             String s = args[i];
@@ -97,10 +140,68 @@ public class Main {
                 Configs.manifestLocation = args[++i];
             } else if ("-resourcePath".equals(s)) {
                 Configs.resourceLocation = args[++i];
-            }else {
+            } else if ("-batch".equals(s)) {
+                Configs.batchFile = args[++i];
+            } else if ("-farm".equals(s)) {
+                Configs.farmFile = args[++i];
+            } else if ("-farmDir".equals(s)) {
+                Configs.farmDir = args[++i];
+            } else if ("-jobHeap".equals(s)) {
+                Configs.jobHeap = args[++i];
+            } else if ("-jobTimeout".equals(s)) {
+                Configs.jobTimeout = Long.parseLong(args[++i]);
+                if (!(Configs.jobTimeout > 0)) {
+                    System.out.println("[Error]: job timeout should be >= 1 second");
+                    throw new RuntimeException();
+                }
+            } else if ("-jobRetries".equals(s)) {
+                Configs.jobRetries = Integer.parseInt(args[++i]);
+            } else if ("-reportFile".equals(s)) {
+                Configs.reportFile = args[++i];
+                // Installed right away so that jobs failing early report too
+                FarmCoordinator.installReportHook(Configs.reportFile);
+            } else if ("-rta".equals(s)) {
+                Configs.rta = true;
+            } else if ("-slim".equals(s)) {
+                Configs.slim = true;
+            } else if ("-budget".equals(s)) {
+                Configs.budget = Long.parseLong(args[++i]);
+                if (!(Configs.budget > 0)) {
+                    System.out.println("[Error]: budget should be >= 1 second");
+                    throw new RuntimeException();
+                }
+            } else if ("-maxIterations".equals(s)) {
+                Configs.maxIterations = Long.parseLong(args[++i]);
+                if (!(Configs.maxIterations > 0)) {
+                    System.out.println("[Error]: max iterations should be >= 1");
+                    throw new RuntimeException();
+                }
+            } else if ("-checkpoint".equals(s)) {
+                Configs.checkpointDir = args[++i];
+            } else if ("-resume".equals(s)) {
+                Configs.resumeDir = args[++i];
+            } else if ("-checkpointInterval".equals(s)) {
+                Configs.checkpointInterval = Long.parseLong(args[++i]);
+                if (Configs.checkpointInterval < 0) {
+                    System.out.println("[Error]: checkpoint interval should be >= 0 seconds");
+                    throw new RuntimeException();
+                }
+            } else if ("-sceneCache".equals(s)) {
+                Configs.sceneCacheDir = args[++i];
+            } else if ("-sceneCacheLimit".equals(s)) {
+                Configs.sceneCacheLimit = Long.parseLong(args[++i]);
+                if (!(Configs.sceneCacheLimit > 0)) {
+                    System.out.println("[Error]: scene cache limit should be >= 1 MB");
+                    throw new RuntimeException();
+                }
+            } else {
                 throw new RuntimeException("Unknown option: " + s);
             }
         }
+        if (!Configs.batchFile.isEmpty() || !Configs.farmFile.isEmpty()) {
+            // The per-app options come from the batch file, one job at a time
+            return;
+        }
         Configs.processing();
     }
 
@@ -126,46 +227,60 @@ public class Main {
         return classpathBuffer.toString();
     }
 
-    @SuppressWarnings("SpellCheckingInspection")
     static void setupAndInvokeSoot() {
         String classpath = computeClasspath();
+        readWidgetMap();
+        if (Configs.multiJob) {
+            // Keeps the framework classes loaded from one job to the next
+            ResidentScene.v().runJob(classpath);
+            return;
+        }
+        PreRunEntrypoint.v().run();
+        String processDir = computeProcessDir();
         // set up an artificial phase to call into our analysis entrypoint. We can
         // run it with or without call graph construction (CHA is chosen here).
+        String packName = Configs.withCHA ? "wjtp" : "cg";
+        String phaseName = packName + ".gui";
+        setupAndInvokeSootHelper(packName, phaseName, sootArgs(phaseName, processDir, classpath));
+    }
+
+    /**
+     * Returns the Soot command line for the current configuration; phaseName,
+     * if not null, is enabled.
+     */
+    @SuppressWarnings("SpellCheckingInspection")
+    static String[] sootArgs(String phaseName, String processDir, String classpath) {
+        List<String> args = Lists.newArrayList("-w");
         if (Configs.withCHA) {
-            String packName = "wjtp";
-            String phaseName = "wjtp.gui";
-            String[] sootArgs = {
-                    "-w",
+            args.addAll(Arrays.asList(
                     "-p", "cg", "all-reachable:true",
-                    "-p", "cg.cha", "enabled:true",
-                    "-p", phaseName, "enabled:true",
-                    "-f", "n",
-                    "-keep-line-number",
-                    "-process-multiple-dex",
-                    "-allow-phantom-refs",
-                    "-process-dir", Configs.bytecodes,
-                    "-cp", classpath,
-            };
-            readWidgetMap();
-            PreRunEntrypoint.v().run();
-            setupAndInvokeSootHelper(packName, phaseName, sootArgs);
-        } else {
-            String packName = "cg";
-            String phaseName = "cg.gui";
-            String[] sootArgs = {
-                    "-w",
-                    "-p", phaseName, "enabled:true",
-                    "-f", "n",
-                    "-keep-line-number",
-                    "-allow-phantom-refs",
-                    "-process-multiple-dex",
-                    "-process-dir", Configs.bytecodes,
-                    "-cp", classpath,
-            };
-            readWidgetMap();
-            PreRunEntrypoint.v().run();
-            setupAndInvokeSootHelper(packName, phaseName, sootArgs);
+                    "-p", "cg.cha", "enabled:true"));
+        }
+        if (phaseName != null) {
+            args.addAll(Arrays.asList("-p", phaseName, "enabled:true"));
         }
+        args.addAll(Arrays.asList(
+                "-f", "n",
+                "-keep-line-number",
+                "-process-multiple-dex",
+                "-allow-phantom-refs",
+                "-process-dir", processDir,
+                "-cp", classpath));
+        return args.toArray(new String[0]);
+    }
+
+    /**
+     * Returns the directory Soot should load application classes from: a
+     * cached Jimple snapshot of the same inputs if there is one, otherwise the
+     * original bytecodes.
+     */
+    static String computeProcessDir() {
+        String snapshot = SceneCache.v().lookup();
+        if (snapshot == null) {
+            return Configs.bytecodes;
+        }
+        Options.v().set_src_prec(Options.src_prec_jimple);
+        return snapshot;
     }
 
     /**
@@ -189,9 +304,13 @@ public class Main {
 
     static void readWidgetMap() {
         //This is an on demand implementation of signature patch
+        String path = Configs.gatorRoot + Configs.widgetMapFile;
+        if (path.equals(loadedWidgetMap)) {
+            return;
+        }
+        Configs.widgetMap.clear();
         try {
-            String GatorRootPath = Configs.gatorRoot;
-            FileReader fr = new FileReader(GatorRootPath + Configs.widgetMapFile);
+            FileReader fr = new FileReader(path);
             BufferedReader br = new BufferedReader(fr);
             String curLine;
             while ((curLine = br.readLine()) != null) {
@@ -205,6 +324,7 @@ public class Main {
                     Configs.widgetMap.put(curLineArr[0], curLineArr[1]);
                 }
             }
+            loadedWidgetMap = path;
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -1,13 +1,19 @@
 package presto.android;
 
 
+import com.google.common.collect.Lists;
 import presto.android.xml.PrerunXMLParser;
 import soot.Scene;
 import soot.SootClass;
 
+import java.util.List;
+
 public class PreRunEntrypoint {
     private static PreRunEntrypoint instance;
 
+    // Classes the last run asked Soot to load besides the app classes
+    private final List<String> basicClasses = Lists.newArrayList();
+
     private PreRunEntrypoint() {
 
     }
@@ -21,30 +27,40 @@ public class PreRunEntrypoint {
 
     public void run() {
         Configs.preRun = true;
+        basicClasses.clear();
         PrerunXMLParser ignored = PrerunXMLParser.v();
         for (String str: Configs.onDemandClassSet) {
-            Scene.v().addBasicClass(str, SootClass.SIGNATURES);
+            addBasicClass(str);
         }
         //Load basic classes
-        Scene.v().addBasicClass("android.R$id", SootClass.SIGNATURES);
-        Scene.v().addBasicClass("com.android.internal.R$id", SootClass.SIGNATURES);
-        Scene.v().addBasicClass("android.R$layout", SootClass.SIGNATURES);
-        Scene.v().addBasicClass("com.android.internal.R$layout", SootClass.SIGNATURES);
-        Scene.v().addBasicClass("android.R$menu", SootClass.SIGNATURES);
-        Scene.v().addBasicClass("com.android.internal.R$menu", SootClass.SIGNATURES);
-        Scene.v().addBasicClass("android.R$string", SootClass.SIGNATURES);
-        Scene.v().addBasicClass("com.android.internal.R$string", SootClass.SIGNATURES);
-        Scene.v().addBasicClass("android.app.Activity", SootClass.SIGNATURES);
-        Scene.v().addBasicClass("android.app.ListActivity", SootClass.SIGNATURES);
-        Scene.v().addBasicClass("android.widget.TabHost", SootClass.SIGNATURES);
-        Scene.v().addBasicClass("android.widget.TabHost$TabSpec", SootClass.SIGNATURES);
-        Scene.v().addBasicClass("android.widget.TabHost$TabContentFactory", SootClass.SIGNATURES);
-        Scene.v().addBasicClass("android.view.LayoutInflater", SootClass.SIGNATURES);
-        Scene.v().addBasicClass("android.view.View", SootClass.SIGNATURES);
-        Scene.v().addBasicClass("android.content.DialogInterface$OnCancelListener", SootClass.SIGNATURES);
-        Scene.v().addBasicClass("android.content.DialogInterface$OnKeyListener", SootClass.SIGNATURES);
-        Scene.v().addBasicClass("android.content.DialogInterface$OnShowListener", SootClass.SIGNATURES);
-        Scene.v().addBasicClass("android.app.AlertDialog", SootClass.SIGNATURES);
+        addBasicClass("android.R$id");
+        addBasicClass("com.android.internal.R$id");
+        addBasicClass("android.R$layout");
+        addBasicClass("com.android.internal.R$layout");
+        addBasicClass("android.R$menu");
+        addBasicClass("com.android.internal.R$menu");
+        addBasicClass("android.R$string");
+        addBasicClass("com.android.internal.R$string");
+        addBasicClass("android.app.Activity");
+        addBasicClass("android.app.ListActivity");
+        addBasicClass("android.widget.TabHost");
+        addBasicClass("android.widget.TabHost$TabSpec");
+        addBasicClass("android.widget.TabHost$TabContentFactory");
+        addBasicClass("android.view.LayoutInflater");
+        addBasicClass("android.view.View");
+        addBasicClass("android.content.DialogInterface$OnCancelListener");
+        addBasicClass("android.content.DialogInterface$OnKeyListener");
+        addBasicClass("android.content.DialogInterface$OnShowListener");
+        addBasicClass("android.app.AlertDialog");
         Configs.preRun = false;
     }
+
+    private void addBasicClass(String className) {
+        Scene.v().addBasicClass(className, SootClass.SIGNATURES);
+        basicClasses.add(className);
+    }
+
+    public List<String> getBasicClasses() {
+        return basicClasses;
+    }
 }
@@ -0,0 +1,491 @@
+/*
+ * ResidentScene.java - part of the GATOR project
+ *
+ * Copyright (c) 2014, 2015 The Ohio State University
+ *
+ * This file is distributed under the terms described in LICENSE in the
+ * root directory.
+ */
+package presto.android;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+import soot.ArrayType;
+import soot.ClassProvider;
+import soot.ClassSource;
+import soot.CoffiClassProvider;
+import soot.DexClassProvider;
+import soot.G;
+import soot.JavaClassProvider;
+import soot.JimpleClassProvider;
+import soot.PackManager;
+import soot.RefType;
+import soot.Scene;
+import soot.SootClass;
+import soot.SootField;
+import soot.SootMethod;
+import soot.SourceLocator;
+import soot.Type;
+import soot.asm.AsmClassProvider;
+import soot.javaToJimple.IInitialResolver.Dependencies;
+import soot.options.Options;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Soot Scene that stays loaded across the jobs of a -batch or -daemon run, so
+ * that android.jar, the JRE and the other classpath jars are parsed once
+ * rather than once per app.
+ *
+ * Soot is only reset when the classpath or the Soot options change, or when
+ * the heap is nearly full after a job. Every class Soot resolves is recorded
+ * with the names of the classes it refers to. A job loads the app classes
+ * into the resident Scene and then takes out every resident class that is
+ * not reachable from the app and the basic classes, so the analysis sees the
+ * same classes as in a fresh process. Resident classes that the app ships
+ * its own copy of, and the classes that refer to them, are taken out before
+ * loading so that Soot resolves them against the app's copy. After the job,
+ * the app classes, the classes the analysis created and whatever refers to
+ * them are removed for good, the classes taken out come back, and the
+ * library classes the job loaded stay for the next one.
+ */
+public class ResidentScene {
+    // Soot is reset before the next job once this much of the heap is still
+    // in use after a collection
+    private static final double MAX_HEAP_FRACTION = 0.7;
+
+    private static ResidentScene theInstance;
+
+    // Soot arguments and classpath file stamps the Scene was built for, or
+    // null if the next job has to start from a fresh Soot
+    private String key;
+
+    private int defaultSrcPrec;
+
+    // Basic classes Soot itself asks for, without those of PreRunEntrypoint
+    private Set<String> sootBasicClasses;
+
+    // Classes kept across jobs, including the ones taken out for this job
+    private final Set<SootClass> resident = Sets.newLinkedHashSet();
+
+    // Types the ClassSource of each class reported when Soot resolved it
+    private final Map<SootClass, Set<String>> dependencies = Maps.newHashMap();
+
+    // App classes and resident classes taken out of the Scene for this job
+    private Set<String> appClasses = Collections.emptySet();
+    private final List<SootClass> hidden = Lists.newArrayList();
+
+    private ResidentScene() {
+    }
+
+    public static synchronized ResidentScene v() {
+        if (theInstance == null) {
+            theInstance = new ResidentScene();
+        }
+        return theInstance;
+    }
+
+    /**
+     * Loads the app described by Configs into the resident Scene, runs the
+     * analysis on it and removes the app again.
+     */
+    public void runJob(String classpath) {
+        long start = System.currentTimeMillis();
+        String jobKey = computeKey(classpath);
+        if (!jobKey.equals(key)) {
+            reload(classpath);
+            key = jobKey;
+        }
+        Options.v().set_src_prec(defaultSrcPrec);
+        PreRunEntrypoint.v().run();
+        String processDir = Main.computeProcessDir();
+        Options.v().set_process_dir(Collections.singletonList(processDir));
+        Scene.v().setSootClassPath(null);
+        SourceLocator.v().setClassProviders(classProviders());
+        // After the first job Soot is done resolving and would refuse to
+        // fill in the classes it loads now
+        boolean ignoreResolvingLevels = Options.v().ignore_resolving_levels();
+        try {
+            Options.v().set_ignore_resolving_levels(true);
+            loadClasses(processDir);
+            Options.v().set_ignore_resolving_levels(ignoreResolvingLevels);
+            int reused = resident.size() - hidden.size();
+            System.out.println("[Resident] Scene ready in " + (System.currentTimeMillis() - start)
+                    + " ms: " + reused + " classes reused, "
+                    + (Scene.v().getClasses().size() - reused) + " loaded");
+            if (Configs.withCHA) {
+                PackManager.v().getPack("cg").apply();
+            }
+            AnalysisEntrypoint.v().run();
+        } finally {
+            Options.v().set_ignore_resolving_levels(ignoreResolvingLevels);
+            jobFinished();
+        }
+    }
+
+    private static String computeKey(String classpath) {
+        StringBuilder sb = new StringBuilder();
+        for (String arg : Main.sootArgs(null, "", classpath)) {
+            sb.append(arg).append('\n');
+        }
+        for (String entry : classpath.split(File.pathSeparator)) {
+            File f = new File(entry);
+            sb.append(entry).append(' ').append(f.length()).append(' ')
+                    .append(f.lastModified()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private void reload(String classpath) {
+        System.out.println("[Resident] Starting a new Scene");
+        G.reset();
+        resident.clear();
+        dependencies.clear();
+        if (!Options.v().parse(Main.sootArgs(null, Configs.bytecodes, classpath))) {
+            throw new RuntimeException("[Resident] Soot rejected the options");
+        }
+        defaultSrcPrec = Options.v().src_prec();
+        sootBasicClasses = Scene.v().getBasicClasses();
+    }
+
+    /**
+     * Does what Scene.loadNecessaryClasses() does on a fresh Scene, then
+     * takes out the resident classes a fresh Scene would not have.
+     */
+    private void loadClasses(String processDir) {
+        Scene scene = Scene.v();
+        appClasses = Sets.newLinkedHashSet(SourceLocator.v().getClassesUnder(processDir));
+        Set<String> shadowed = Sets.newHashSet();
+        for (SootClass c : resident) {
+            if (appClasses.contains(c.getName())) {
+                shadowed.add(c.getName());
+            }
+        }
+        if (!shadowed.isEmpty()) {
+            hide(dependents(shadowed));
+        }
+
+        List<String> roots = Lists.newArrayList(sootBasicClasses);
+        roots.addAll(PreRunEntrypoint.v().getBasicClasses());
+        for (String name : roots) {
+            scene.tryLoadClass(name, SootClass.SIGNATURES);
+        }
+        for (String name : appClasses) {
+            scene.loadClassAndSupport(name).setApplicationClass();
+        }
+        scene.loadDynamicClasses();
+        for (SootClass c : scene.dynamicClasses()) {
+            roots.add(c.getName());
+        }
+        for (String name : appClasses) {
+            SootClass c = scene.getSootClass(name);
+            if (scene.isExcluded(c)) {
+                c.setLibraryClass();
+            }
+        }
+        scene.setDoneResolving();
+
+        roots.addAll(appClasses);
+        Set<String> reached = Sets.newHashSet();
+        Deque<String> worklist = new ArrayDeque<>(roots);
+        while (!worklist.isEmpty()) {
+            String name = worklist.pop();
+            if (reached.add(name) && scene.containsClass(name)) {
+                worklist.addAll(dependenciesOf(scene.getSootClass(name)));
+            }
+        }
+        List<SootClass> unreached = Lists.newArrayList();
+        for (SootClass c : resident) {
+            if (c.isInScene() && !reached.contains(c.getName())) {
+                unreached.add(c);
+            }
+        }
+        hide(unreached);
+    }
+
+    /**
+     * Returns the resident classes with the given names and those that refer
+     * to them, directly or not.
+     */
+    private Set<SootClass> dependents(Set<String> names) {
+        Multimap<String, SootClass> users = HashMultimap.create();
+        for (SootClass c : resident) {
+            users.put(c.getName(), c);
+            for (String d : dependenciesOf(c)) {
+                users.put(d, c);
+            }
+        }
+        Set<SootClass> result = Sets.newLinkedHashSet();
+        Deque<String> worklist = new ArrayDeque<>(names);
+        while (!worklist.isEmpty()) {
+            for (SootClass c : users.get(worklist.pop())) {
+                if (result.add(c)) {
+                    worklist.add(c.getName());
+                }
+            }
+        }
+        return result;
+    }
+
+    private void hide(Collection<SootClass> classes) {
+        Map<String, RefType> nameToClass = nameToClass();
+        for (SootClass c : classes) {
+            if (c.isInScene()) {
+                Scene.v().removeClass(c);
+                nameToClass.remove(c.getName());
+                hidden.add(c);
+            }
+        }
+    }
+
+    /**
+     * Returns the map from class names to RefTypes of the Scene. Soot cannot
+     * forget a name, and a name whose RefType has no class resolves to an
+     * empty library class, where a fresh Scene would make a phantom one.
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, RefType> nameToClass() {
+        try {
+            Field field = Scene.class.getDeclaredField("nameToClass");
+            field.setAccessible(true);
+            return (Map<String, RefType>) field.get(Scene.v());
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("[Resident] Unsupported Soot version", e);
+        }
+    }
+
+    /**
+     * Removes what the job added to the Scene, except for library classes
+     * that do not depend on the app, and puts back the classes taken out. If
+     * that fails, or the heap is nearly full, the next job starts from a
+     * fresh Soot instead.
+     */
+    private void jobFinished() {
+        try {
+            Scene scene = Scene.v();
+            scene.releaseCallGraph();
+            scene.releaseReachableMethods();
+            scene.releasePointsToAnalysis();
+            scene.releaseSideEffectAnalysis();
+            scene.releaseFastHierarchy();
+            scene.releaseActiveHierarchy();
+            scene.setEntryPoints(null);
+
+            List<SootClass> created = Lists.newArrayList();
+            for (SootClass c : scene.getClasses()) {
+                if (!resident.contains(c)) {
+                    created.add(c);
+                }
+            }
+            // Classes the next job must not see: the app's, the analysis'
+            // own, copies of the classes taken out, and whatever refers to them
+            Set<String> dropped = Sets.newHashSet(appClasses);
+            for (SootClass c : hidden) {
+                dropped.add(c.getName());
+            }
+            Set<SootClass> removed = Sets.newHashSet();
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (SootClass c : created) {
+                    if (!removed.contains(c) && (c.isApplicationClass() || dropped.contains(c.getName())
+                            || !Collections.disjoint(dependenciesOf(c), dropped))) {
+                        removed.add(c);
+                        dropped.add(c.getName());
+                        changed = true;
+                    }
+                }
+            }
+            // Removed classes keep their numbers: Soot's ArrayNumberer gives
+            // out a freed number twice. The heap check below bounds the leak.
+            for (SootClass c : created) {
+                if (removed.contains(c)) {
+                    scene.removeClass(c);
+                } else {
+                    resident.add(c);
+                }
+            }
+            for (SootClass c : hidden) {
+                // addClass() makes it a non-phantom library class
+                boolean phantom = c.isPhantom();
+                scene.addClass(c);
+                if (phantom) {
+                    c.setPhantomClass();
+                }
+            }
+            // Soot drops a class again when its source turns out to be broken
+            for (Iterator<SootClass> it = resident.iterator(); it.hasNext(); ) {
+                if (!it.next().isInScene()) {
+                    it.remove();
+                }
+            }
+            for (Iterator<RefType> it = nameToClass().values().iterator(); it.hasNext(); ) {
+                RefType t = it.next();
+                if (!t.hasSootClass() || !t.getSootClass().isInScene()) {
+                    it.remove();
+                }
+            }
+            dependencies.keySet().retainAll(resident);
+            if (heapIsFull()) {
+                System.out.println("[Resident] Heap is nearly full, the next job starts a new Scene");
+                key = null;
+            }
+        } catch (RuntimeException e) {
+            System.out.println("[Resident] Could not clean up the Scene, the next job starts a new one: " + e);
+            key = null;
+        } finally {
+            hidden.clear();
+            appClasses = Collections.emptySet();
+        }
+    }
+
+    private static boolean heapIsFull() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage afterGc = pool.getCollectionUsage();
+            if (pool.getType() == MemoryType.HEAP && afterGc != null) {
+                used += afterGc.getUsed();
+            }
+        }
+        return used > MAX_HEAP_FRACTION * Runtime.getRuntime().maxMemory();
+    }
+
+    /**
+     * Returns the names of the classes c refers to in its hierarchy, members
+     * and method bodies.
+     */
+    private Set<String> dependenciesOf(SootClass c) {
+        Set<String> names = Sets.newHashSet();
+        Set<String> recorded = dependencies.get(c);
+        if (recorded != null) {
+            names.addAll(recorded);
+        }
+        SootClass superclass = c.getSuperclassUnsafe();
+        if (superclass != null) {
+            names.add(superclass.getName());
+        }
+        SootClass outer = c.getOuterClassUnsafe();
+        if (outer != null) {
+            names.add(outer.getName());
+        }
+        for (SootClass i : c.getInterfaces()) {
+            names.add(i.getName());
+        }
+        if (c.resolvingLevel() < SootClass.SIGNATURES) {
+            return names;
+        }
+        for (SootField f : c.getFields()) {
+            addName(names, f.getType());
+        }
+        for (SootMethod m : c.getMethods()) {
+            addName(names, m.getReturnType());
+            for (Type t : m.getParameterTypes()) {
+                addName(names, t);
+            }
+            if (m.getExceptionsUnsafe() != null) {
+                for (SootClass e : m.getExceptionsUnsafe()) {
+                    names.add(e.getName());
+                }
+            }
+        }
+        return names;
+    }
+
+    private static void addName(Set<String> names, Type t) {
+        if (t instanceof ArrayType) {
+            t = ((ArrayType) t).baseType;
+        }
+        if (t instanceof RefType) {
+            names.add(((RefType) t).getClassName());
+        }
+    }
+
+    /**
+     * Returns the class providers Soot would use for the current source
+     * precedence, each recording what the classes it resolves refer to.
+     */
+    private List<ClassProvider> classProviders() {
+        ClassProvider bytecode = Options.v().coffi() ? new CoffiClassProvider() : new AsmClassProvider();
+        List<ClassProvider> providers;
+        switch (Options.v().src_prec()) {
+            case Options.src_prec_class:
+                providers = Lists.newArrayList(bytecode, new JimpleClassProvider(), new JavaClassProvider());
+                break;
+            case Options.src_prec_only_class:
+                providers = Lists.newArrayList(bytecode);
+                break;
+            case Options.src_prec_jimple:
+                providers = Lists.newArrayList(new JimpleClassProvider(), bytecode, new JavaClassProvider());
+                break;
+            case Options.src_prec_java:
+                providers = Lists.newArrayList(new JavaClassProvider(), bytecode, new JimpleClassProvider());
+                break;
+            case Options.src_prec_apk:
+                providers = Lists.newArrayList(new DexClassProvider(), bytecode, new JavaClassProvider(),
+                        new JimpleClassProvider());
+                break;
+            case Options.src_prec_apk_class_jimple:
+                providers = Lists.newArrayList(new DexClassProvider(), bytecode, new JimpleClassProvider());
+                break;
+            default:
+                throw new RuntimeException("[Resident] Unknown source precedence " + Options.v().src_prec());
+        }
+        List<ClassProvider> recording = Lists.newArrayList();
+        for (ClassProvider provider : providers) {
+            recording.add(new RecordingProvider(provider));
+        }
+        return recording;
+    }
+
+    private class RecordingProvider implements ClassProvider {
+        private final ClassProvider provider;
+
+        RecordingProvider(ClassProvider provider) {
+            this.provider = provider;
+        }
+
+        @Override
+        public ClassSource find(String className) {
+            final ClassSource source = provider.find(className);
+            if (source == null) {
+                return null;
+            }
+            return new ClassSource(className) {
+                @Override
+                public Dependencies resolve(SootClass sc) {
+                    Dependencies deps = source.resolve(sc);
+                    Set<String> names = Sets.newHashSet();
+                    for (Type t : deps.typesToHierarchy) {
+                        addName(names, t);
+                    }
+                    for (Type t : deps.typesToSignature) {
+                        addName(names, t);
+                    }
+                    dependencies.put(sc, names);
+                    return deps;
+                }
+
+                @Override
+                public void close() {
+                    source.close();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,422 @@
+/*
+ * SceneCache.java - part of the GATOR project
+ *
+ * Copyright (c) 2014, 2015 The Ohio State University
+ *
+ * This file is distributed under the terms described in LICENSE in the
+ * root directory.
+ */
+package presto.android;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import soot.Body;
+import soot.Printer;
+import soot.Scene;
+import soot.SootClass;
+import soot.SootMethod;
+import soot.Unit;
+import soot.tagkit.LineNumberTag;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * On-disk snapshot of the application classes and their Jimple bodies.
+ *
+ * An entry is keyed by a SHA-256 digest over the contents of the app bytecode,
+ * android.jar, the other classpath jars and the options that change what Soot
+ * loads. On a hit, Main points Soot at the snapshot's Jimple files instead of
+ * the dex/class files. Entries are only used when their manifest matches the
+ * current inputs exactly and their completion marker is present, and the cache
+ * directory is kept under Configs.sceneCacheLimit megabytes by evicting the
+ * least recently used entries.
+ */
+public class SceneCache {
+    private static final int FORMAT_VERSION = 1;
+
+    private static final String MANIFEST = "MANIFEST";
+    private static final String COMPLETE = "COMPLETE";
+    private static final String JIMPLE_DIR = "jimple";
+    private static final String LINES = "lines.bin";
+    private static final String TMP_PREFIX = ".tmp-";
+
+    // Leftovers of crashed writers older than this are removed during eviction
+    private static final long STALE_TMP_MILLIS = 60L * 60 * 1000;
+
+    private static SceneCache theInstance;
+
+    // Manifest text and key of the current inputs; null until computed
+    private String manifest;
+    private String key;
+
+    // Entry restored in this run, or null
+    private File restored;
+
+    private SceneCache() {
+    }
+
+    public static synchronized SceneCache v() {
+        if (theInstance == null) {
+            theInstance = new SceneCache();
+        }
+        return theInstance;
+    }
+
+    public static synchronized void reset() {
+        theInstance = null;
+    }
+
+    public boolean isEnabled() {
+        return !Configs.sceneCacheDir.isEmpty();
+    }
+
+    public boolean isRestored() {
+        return restored != null;
+    }
+
+    /**
+     * Returns the Jimple directory of a valid snapshot for the current inputs,
+     * or null if there is none. Touches the entry so that LRU eviction sees it
+     * as recently used.
+     */
+    public String lookup() {
+        if (!isEnabled()) {
+            return null;
+        }
+        computeKey();
+        if (key == null) {
+            return null;
+        }
+        File entry = new File(Configs.sceneCacheDir, key);
+        if (!isValidEntry(entry)) {
+            System.out.println("[SceneCache] Miss " + key);
+            return null;
+        }
+        new File(entry, COMPLETE).setLastModified(System.currentTimeMillis());
+        restored = entry;
+        System.out.println("[SceneCache] Hit " + key);
+        return new File(entry, JIMPLE_DIR).getAbsolutePath();
+    }
+
+    /**
+     * Called once the Scene is loaded. On a hit, re-attaches the source line
+     * numbers that the Jimple text format does not carry. On a miss, writes a
+     * snapshot of the current application classes. Must run before library
+     * packages are reclassified, so that the snapshot holds exactly the
+     * classes Soot loaded from the app.
+     */
+    public void sceneLoaded() {
+        if (!isEnabled() || key == null) {
+            return;
+        }
+        if (isRestored()) {
+            restoreLineNumbers(new File(restored, LINES));
+        } else {
+            store();
+            evict();
+        }
+    }
+
+    // --- key computation
+    private void computeKey() {
+        if (key != null) {
+            return;
+        }
+        Map<String, String> inputs = Maps.newLinkedHashMap();
+        try {
+            inputs.put("format", String.valueOf(FORMAT_VERSION));
+            inputs.put("soot", soot.Main.versionString);
+            inputs.put("bytecodes", digest(new File(Configs.bytecodes)));
+            inputs.put("android", digest(new File(Configs.android)));
+            if (!Configs.jre.isEmpty()) {
+                inputs.put("jre", digest(new File(Configs.jre)));
+            }
+            for (int i = 0; i < Configs.depJars.size(); i++) {
+                inputs.put("depJar" + i, digest(new File(Configs.depJars.get(i))));
+            }
+            inputs.put("withCHA", String.valueOf(Configs.withCHA));
+            inputs.put("apiLevel", Configs.apiLevel);
+            inputs.put("onDemandClasses", new TreeSet<>(Configs.onDemandClassSet).toString());
+        } catch (IOException e) {
+            System.out.println("[SceneCache] Cannot fingerprint inputs, cache disabled: " + e);
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> e : inputs.entrySet()) {
+            sb.append(e.getKey()).append('=').append(e.getValue()).append('\n');
+        }
+        manifest = sb.toString();
+        key = toHex(sha256().digest(manifest.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static String digest(File f) throws IOException {
+        MessageDigest md = sha256();
+        digest(f, "", md);
+        return toHex(md.digest());
+    }
+
+    // Directories are hashed by relative path and content of every file, in
+    // name order, so that the digest does not depend on listing order.
+    private static void digest(File f, String relative, MessageDigest md) throws IOException {
+        if (f.isDirectory()) {
+            File[] children = f.listFiles();
+            if (children == null) {
+                throw new IOException("Cannot list " + f);
+            }
+            Arrays.sort(children, Comparator.comparing(File::getName));
+            for (File child : children) {
+                digest(child, relative + "/" + child.getName(), md);
+            }
+            return;
+        }
+        md.update(relative.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+        byte[] buf = new byte[1 << 16];
+        try (InputStream in = new FileInputStream(f)) {
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                md.update(buf, 0, n);
+            }
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    // --- validation
+    private boolean isValidEntry(File entry) {
+        File marker = new File(entry, COMPLETE);
+        File jimpleDir = new File(entry, JIMPLE_DIR);
+        if (!marker.isFile() || !jimpleDir.isDirectory()) {
+            return false;
+        }
+        try {
+            String stored = new String(Files.readAllBytes(new File(entry, MANIFEST).toPath()),
+                    StandardCharsets.UTF_8);
+            if (!stored.equals(manifest)) {
+                System.out.println("[SceneCache] Manifest mismatch in " + entry);
+                return false;
+            }
+            int expected = Integer.parseInt(new String(Files.readAllBytes(marker.toPath()),
+                    StandardCharsets.UTF_8).trim());
+            String[] files = jimpleDir.list();
+            return files != null && files.length == expected;
+        } catch (IOException | NumberFormatException e) {
+            return false;
+        }
+    }
+
+    // --- store
+    private void store() {
+        File root = new File(Configs.sceneCacheDir);
+        if (!root.isDirectory() && !root.mkdirs()) {
+            System.out.println("[SceneCache] Cannot create " + root);
+            return;
+        }
+        File tmp = new File(root, TMP_PREFIX + key + "-" + System.nanoTime());
+        File jimpleDir = new File(tmp, JIMPLE_DIR);
+        if (!jimpleDir.mkdirs()) {
+            System.out.println("[SceneCache] Cannot create " + jimpleDir);
+            return;
+        }
+        List<SootClass> classes = Lists.newArrayList(Scene.v().getApplicationClasses());
+        classes.sort(Comparator.comparing(SootClass::getName));
+        try {
+            for (SootClass c : classes) {
+                for (SootMethod m : c.getMethods()) {
+                    if (m.isConcrete()) {
+                        m.retrieveActiveBody();
+                    }
+                }
+            }
+            for (SootClass c : classes) {
+                File out = new File(jimpleDir, c.getName() + ".jimple");
+                try (PrintWriter pw = new PrintWriter(out, "UTF-8")) {
+                    Printer.v().printTo(c, pw);
+                }
+            }
+            writeLineNumbers(classes, new File(tmp, LINES));
+            Files.write(new File(tmp, MANIFEST).toPath(), manifest.getBytes(StandardCharsets.UTF_8));
+            Files.write(new File(tmp, COMPLETE).toPath(),
+                    String.valueOf(classes.size()).getBytes(StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            // A snapshot that cannot represent every body would silently change
+            // the analysis on the next run, so give up on this entry instead.
+            System.out.println("[SceneCache] Snapshot not written: " + e);
+            deleteRecursively(tmp);
+            return;
+        }
+        File entry = new File(root, key);
+        if (entry.exists()) {
+            deleteRecursively(entry);
+        }
+        if (!tmp.renameTo(entry)) {
+            System.out.println("[SceneCache] Cannot publish " + entry);
+            deleteRecursively(tmp);
+            return;
+        }
+        System.out.println("[SceneCache] Stored " + classes.size() + " classes as " + key);
+    }
+
+    // Line numbers are keyed by method signature and unit position, which the
+    // Jimple printer and parser preserve.
+    private static void writeLineNumbers(List<SootClass> classes, File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(FORMAT_VERSION);
+            for (SootClass c : classes) {
+                for (SootMethod m : c.getMethods()) {
+                    if (!m.hasActiveBody()) {
+                        continue;
+                    }
+                    List<int[]> lines = Lists.newArrayList();
+                    int index = 0;
+                    for (Unit u : m.getActiveBody().getUnits()) {
+                        LineNumberTag tag = (LineNumberTag) u.getTag("LineNumberTag");
+                        if (tag != null) {
+                            lines.add(new int[]{index, tag.getLineNumber()});
+                        }
+                        index++;
+                    }
+                    if (lines.isEmpty()) {
+                        continue;
+                    }
+                    out.writeBoolean(true);
+                    out.writeUTF(m.getSignature());
+                    out.writeInt(lines.size());
+                    for (int[] l : lines) {
+                        out.writeInt(l[0]);
+                        out.writeInt(l[1]);
+                    }
+                }
+            }
+            out.writeBoolean(false);
+        }
+    }
+
+    private static void restoreLineNumbers(File file) {
+        if (!file.isFile()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FORMAT_VERSION) {
+                return;
+            }
+            while (in.readBoolean()) {
+                String signature = in.readUTF();
+                int n = in.readInt();
+                SootMethod m = Scene.v().grabMethod(signature);
+                Unit[] units = null;
+                if (m != null && m.isConcrete()) {
+                    Body b = m.retrieveActiveBody();
+                    units = b.getUnits().toArray(new Unit[0]);
+                }
+                for (int i = 0; i < n; i++) {
+                    int index = in.readInt();
+                    int line = in.readInt();
+                    if (units != null && index < units.length) {
+                        units[index].addTag(new LineNumberTag(line));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("[SceneCache] Cannot restore line numbers: " + e);
+        }
+    }
+
+    // --- eviction
+    private void evict() {
+        File root = new File(Configs.sceneCacheDir);
+        File[] entries = root.listFiles();
+        if (entries == null) {
+            return;
+        }
+        long limit = Configs.sceneCacheLimit * 1024L * 1024L;
+        long total = 0;
+        List<File> candidates = Lists.newArrayList();
+        for (File entry : entries) {
+            if (!entry.isDirectory()) {
+                continue;
+            }
+            if (entry.getName().startsWith(TMP_PREFIX)) {
+                if (System.currentTimeMillis() - entry.lastModified() > STALE_TMP_MILLIS) {
+                    deleteRecursively(entry);
+                }
+                continue;
+            }
+            total += sizeOf(entry);
+            if (!entry.getName().equals(key)) {
+                candidates.add(entry);
+            }
+        }
+        // Least recently used first; entries without a marker are incomplete
+        // and go before everything else.
+        Collections.sort(candidates, Comparator.comparingLong(e -> new File(e, COMPLETE).lastModified()));
+        for (File victim : candidates) {
+            if (total <= limit) {
+                break;
+            }
+            long size = sizeOf(victim);
+            deleteRecursively(victim);
+            total -= size;
+            System.out.println("[SceneCache] Evicted " + victim.getName());
+        }
+    }
+
+    private static long sizeOf(File f) {
+        if (f.isFile()) {
+            return f.length();
+        }
+        long size = 0;
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                size += sizeOf(child);
+            }
+        }
+        return size;
+    }
+
+    private static void deleteRecursively(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        f.delete();
+    }
+}
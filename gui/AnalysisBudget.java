@@ -0,0 +1,89 @@
+/*
+ * AnalysisBudget.java - part of the GATOR project
+ *
+ * Copyright (c) 2014, 2015 The Ohio State University
+ *
+ * This file is distributed under the terms described in LICENSE in the
+ * root directory.
+ */
+package presto.android.gui;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import presto.android.Configs;
+
+/**
+ * The time and iteration budget of a GUI analysis run (Configs.budget and
+ * Configs.maxIterations). FlowGraph.build() and FixpointSolver.solve() check
+ * it in their loops and stop once it is used up, leaving what they computed
+ * so far; the output is then marked incomplete.
+ */
+public class AnalysisBudget {
+    private static AnalysisBudget theInstance;
+
+    // System.nanoTime() at which the time runs out; 0 for no time limit
+    private final long deadline;
+    private final long maxIterations;
+    private final AtomicLong iterations = new AtomicLong();
+
+    // the phase that ran out of budget, or null
+    private volatile String stoppedIn;
+
+    private AnalysisBudget(long seconds, long maxIterations) {
+        this.deadline = seconds > 0 ? System.nanoTime() + seconds * 1000000000L : 0;
+        this.maxIterations = maxIterations;
+    }
+
+    public static synchronized AnalysisBudget v() {
+        if (theInstance == null) {
+            theInstance = new AnalysisBudget(Configs.budget, Configs.maxIterations);
+        }
+        return theInstance;
+    }
+
+    // Starts the clock over for a new run
+    public static synchronized AnalysisBudget start() {
+        theInstance = null;
+        return v();
+    }
+
+    public static synchronized void reset() {
+        theInstance = null;
+    }
+
+    /**
+     * Returns true if the budget is used up; phase names the loop checking,
+     * for the log and the output.
+     */
+    public boolean exhausted(String phase) {
+        if (stoppedIn == null && deadline != 0 && System.nanoTime() - deadline >= 0) {
+            stop(phase, "time");
+        }
+        return stoppedIn != null;
+    }
+
+    // Counts an iteration of phase, and returns true if the budget is used up
+    public boolean iterate(String phase) {
+        if (maxIterations > 0 && iterations.incrementAndGet() > maxIterations) {
+            stop(phase, "iteration");
+        }
+        return exhausted(phase);
+    }
+
+    private synchronized void stop(String phase, String what) {
+        if (stoppedIn == null) {
+            stoppedIn = phase;
+            System.out.println("[AnalysisBudget] Out of " + what + " budget in " + phase
+                    + ", stopping with partial results");
+        }
+    }
+
+    public boolean isComplete() {
+        return stoppedIn == null;
+    }
+
+    // The phase that ran out of budget, or null if the run is complete
+    public String getStoppedIn() {
+        return stoppedIn;
+    }
+}
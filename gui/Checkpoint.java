@@ -0,0 +1,1194 @@
+/*
+ * Checkpoint.java - part of the GATOR project
+ *
+ * Copyright (c) 2014, 2015 The Ohio State University
+ *
+ * This file is distributed under the terms described in LICENSE in the
+ * root directory.
+ */
+package presto.android.gui;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import presto.android.Configs;
+import presto.android.gui.graph.FrozenEdges;
+import presto.android.gui.graph.NAllocNode;
+import presto.android.gui.graph.NContextMenuNode;
+import presto.android.gui.graph.NDialogNode;
+import presto.android.gui.graph.NFieldNode;
+import presto.android.gui.graph.NIdNode;
+import presto.android.gui.graph.NInflNode;
+import presto.android.gui.graph.NListenerAllocNode;
+import presto.android.gui.graph.NNode;
+import presto.android.gui.graph.NOpNode;
+import presto.android.gui.graph.NOptionsMenuNode;
+import presto.android.gui.graph.NSetListenerOpNode;
+import presto.android.gui.graph.NStringConstantNode;
+import presto.android.gui.graph.NTabSpecNode;
+import presto.android.gui.graph.NVarNode;
+import presto.android.gui.graph.NViewAllocNode;
+import presto.android.gui.graph.NWindowNode;
+import presto.android.gui.graph.NodeBitSet;
+import soot.Local;
+import soot.Scene;
+import soot.SootClass;
+import soot.SootMethod;
+import soot.Unit;
+import soot.jimple.Expr;
+import soot.jimple.Stmt;
+import soot.toolkits.scalar.Pair;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Checkpoints of a GUI analysis run at its phase boundaries, written to
+ * Configs.checkpointDir/<app>/<phase>.ckp, and resuming from them
+ * (Configs.resumeDir).
+ *
+ * The graph checkpoint holds the frozen flow graph: for each node id its
+ * kind and the Soot signatures it stands for (method signature and local
+ * name or unit position, field signature, class name, ...), the inputs of
+ * op nodes, and the successors of each node. The solver
+ * checkpoints hold the maps of FixpointSolver after its reachability and path
+ * phases, by node id, and the field-name to view id tables of the classes
+ * with SetListener calls (FixpointSolver.class2IdName), by class name,
+ * along with the digest of the graph they belong to. The propagation checkpoint holds the state between two rounds of the
+ * propagation: all solver maps and the id tables, the dirty op nodes, the calls each op node
+ * has forwarded its results to, the view and listener objects each
+ * SetListener node has been processed with and the event handlers found,
+ * and the changes to the flow graph: the nodes made by the rounds (locals
+ * of event handlers), the edges added since the graph was frozen, the view
+ * hierarchy and the view ids.
+ *
+ * The graph itself is rebuilt on resume: building it also creates fake
+ * classes, locals and statements and patches the Scene and Hierarchy, which
+ * signatures cannot restore. The rebuilt graph is compared node by node with
+ * the graph checkpoint, and only if they are the same the solver maps are
+ * restored and the phases up to the last checkpoint are skipped. Inflation
+ * creates nodes too, and is run again after the path maps are restored; if
+ * it makes the same nodes as the checkpointed run, the propagation state is
+ * restored on top of it and the rounds continue from there.
+ *
+ * Everything is written and read as a stream of variable-length integers and
+ * strings, without building the file in memory first. A file is written
+ * under a temporary name and renamed when complete.
+ */
+public class Checkpoint {
+    private static final int MAGIC = 0x47434b50; // "GCKP"
+    private static final int FORMAT_VERSION = 2;
+
+    public static final String GRAPH = "graph";
+    public static final String REACHABILITY = "reachability";
+    public static final String PATHS = "paths";
+    public static final String PROPAGATION = "propagation";
+    // the solver phases, in order
+    private static final String[] SOLVER_PHASES = {REACHABILITY, PATHS, PROPAGATION};
+
+    private static final String SUFFIX = ".ckp";
+    private static final String TMP_PREFIX = ".tmp-";
+
+    private static Checkpoint theInstance;
+
+    // Directory of the checkpoints of this app; null if disabled
+    private final File dir;
+
+    // Digest of the graph checkpoint of this run; null until written or
+    // checked
+    private String graphDigest;
+
+    // The solver phase to resume after, or null
+    private String resumePhase;
+
+    // NNode.nextId once the graph is built
+    private int numGraphNodes;
+
+    // When the last checkpoint was written
+    private long lastWrite = System.nanoTime();
+
+    // Where the graph nodes come from, for describing them
+    private Map<Local, SootMethod> localMethods;
+    private final Map<SootMethod, Map<Unit, Integer>> unitIndices = Maps.newHashMap();
+    private JimpleUtil jimpleUtil;
+
+    private Checkpoint() {
+        String root = Configs.resumeDir.isEmpty() ? Configs.checkpointDir : Configs.resumeDir;
+        dir = root.isEmpty() ? null : Paths.get(root, Configs.benchmarkName.replace(".apk", "")).toFile();
+    }
+
+    public static synchronized Checkpoint v() {
+        if (theInstance == null) {
+            theInstance = new Checkpoint();
+        }
+        return theInstance;
+    }
+
+    public static synchronized void reset() {
+        theInstance = null;
+    }
+
+    public boolean isEnabled() {
+        return dir != null;
+    }
+
+    /**
+     * Called once the flow graph is built and frozen. When resuming, compares
+     * it with the graph checkpoint and picks the last solver checkpoint of
+     * that graph; otherwise, writes the graph checkpoint and drops the solver
+     * checkpoints of earlier runs.
+     */
+    public void graphBuilt(FlowGraph g) {
+        if (!isEnabled() || !AnalysisBudget.v().isComplete()) {
+            return;
+        }
+        numGraphNodes = NNode.nextId;
+        prepareDescriptions(g);
+        try {
+            if (!Configs.resumeDir.isEmpty() && checkGraph()) {
+                findResumePhase();
+            } else {
+                writeGraph();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            clearDescriptions();
+        }
+    }
+
+    // Sets up describe() for the nodes of g
+    private void prepareDescriptions(FlowGraph g) {
+        localMethods = new IdentityHashMap<>();
+        for (SootClass c : g.hierarchy.appClasses) {
+            for (SootMethod m : c.getMethods()) {
+                if (m.hasActiveBody()) {
+                    for (Local l : m.getActiveBody().getLocals()) {
+                        localMethods.put(l, m);
+                    }
+                }
+            }
+        }
+        jimpleUtil = JimpleUtil.v();
+    }
+
+    private void clearDescriptions() {
+        localMethods = null;
+        unitIndices.clear();
+    }
+
+    // The solver phase whose checkpoint was found for resuming, or null
+    public String getResumePhase() {
+        return resumePhase;
+    }
+
+    // --- graph
+    private void writeGraph() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        for (String phase : SOLVER_PHASES) {
+            Files.deleteIfExists(file(phase).toPath());
+        }
+        long start = System.nanoTime();
+        File tmp = new File(dir, TMP_PREFIX + GRAPH + SUFFIX);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            writeHeader(out, GRAPH);
+            MessageDigest md = sha256();
+            DataOutputStream graph = new DataOutputStream(new DigestOutputStream(out, md));
+            forEachGraphRecord(new GraphRecordWriter(graph));
+            graph.flush();
+            graphDigest = toHex(md.digest());
+            out.writeUTF(graphDigest);
+        }
+        publish(tmp, GRAPH, start);
+    }
+
+    // Returns true if the graph checkpoint describes the same graph
+    private boolean checkGraph() throws IOException {
+        File f = file(GRAPH);
+        if (!f.isFile()) {
+            System.out.println("[Checkpoint] No graph checkpoint in " + dir + ", solving from the start");
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            if (!readHeader(in, GRAPH)) {
+                return false;
+            }
+            MessageDigest md = sha256();
+            GraphRecordChecker checker = new GraphRecordChecker(in,
+                    new DataOutputStream(new DigestOutputStream(NULL_OUTPUT, md)));
+            forEachGraphRecord(checker);
+            if (checker.mismatch != null) {
+                System.out.println("[Checkpoint] Graph differs from the checkpoint at " + checker.mismatch
+                        + ", solving from the start");
+                return false;
+            }
+            graphDigest = toHex(md.digest());
+            if (!graphDigest.equals(in.readUTF())) {
+                System.out.println("[Checkpoint] Corrupt graph checkpoint, solving from the start");
+                return false;
+            }
+        } catch (EOFException e) {
+            System.out.println("[Checkpoint] Truncated graph checkpoint, solving from the start");
+            return false;
+        }
+        System.out.println("[Checkpoint] Graph matches " + f);
+        return true;
+    }
+
+    // Resuming from propagation also takes the maps of paths, to inflate
+    // from
+    private void findResumePhase() throws IOException {
+        for (int i = SOLVER_PHASES.length - 1; i >= 0; i--) {
+            if (isCheckpointOfGraph(SOLVER_PHASES[i])
+                    && (!PROPAGATION.equals(SOLVER_PHASES[i]) || isCheckpointOfGraph(PATHS))) {
+                resumePhase = SOLVER_PHASES[i];
+                System.out.println("[Checkpoint] Resuming after phase " + resumePhase);
+                return;
+            }
+        }
+        System.out.println("[Checkpoint] No solver checkpoint of this graph, solving from the start");
+    }
+
+    private boolean isCheckpointOfGraph(String phase) throws IOException {
+        File f = file(phase);
+        if (!f.isFile()) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            return readHeader(in, phase) && graphDigest.equals(in.readUTF());
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Each node is a record of its kind, its description and, for op nodes,
+     * whether it is artificial and the ids of its predecessors, in order,
+     * which are its receiver and parameters; the successors of every node
+     * follow.
+     */
+    private void forEachGraphRecord(GraphRecordVisitor visitor) throws IOException {
+        FrozenEdges edges = NNode.getFrozenEdges();
+        int numNodes = NNode.nextId;
+        visitor.count("count", numNodes);
+        for (int id = 1; id <= numNodes; id++) {
+            NNode n = NNode.forId(id);
+            visitor.string(id, n == null ? "" : n.getClass().getSimpleName());
+            visitor.string(id, n == null ? "" : describe(n));
+            if (n instanceof NOpNode && id < edges.nodes.length) {
+                visitor.count(id, ((NOpNode) n).artificial ? 1 : 0);
+                int from = edges.predOffsets[id];
+                int to = edges.predOffsets[id + 1];
+                visitor.count(id, to - from);
+                for (int i = from; i < to; i++) {
+                    visitor.count(id, edges.predTargets[i]);
+                }
+            }
+            if (visitor.stopped()) {
+                return;
+            }
+        }
+        for (int id = 1; id <= numNodes; id++) {
+            int from = id < edges.nodes.length ? edges.succOffsets[id] : 0;
+            int to = id < edges.nodes.length ? edges.succOffsets[id + 1] : 0;
+            visitor.count(id, to - from);
+            for (int i = from; i < to; i++) {
+                visitor.count(id, edges.succTargets[i]);
+            }
+            if (visitor.stopped()) {
+                return;
+            }
+        }
+    }
+
+    interface GraphRecordVisitor {
+        void count(Object where, int value) throws IOException;
+
+        void string(Object where, String value) throws IOException;
+
+        boolean stopped();
+    }
+
+    static class GraphRecordWriter implements GraphRecordVisitor {
+        final DataOutputStream out;
+
+        GraphRecordWriter(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void count(Object where, int value) throws IOException {
+            writeVarInt(out, value);
+        }
+
+        @Override
+        public void string(Object where, String value) throws IOException {
+            out.writeUTF(value);
+        }
+
+        @Override
+        public boolean stopped() {
+            return false;
+        }
+    }
+
+    // Compares the records with those of the checkpoint, and writes them to
+    // out for the digest
+    static class GraphRecordChecker extends GraphRecordWriter {
+        final DataInputStream in;
+        String mismatch;
+
+        GraphRecordChecker(DataInputStream in, DataOutputStream out) {
+            super(out);
+            this.in = in;
+        }
+
+        @Override
+        public void count(Object where, int value) throws IOException {
+            super.count(where, value);
+            int stored = readVarInt(in);
+            if (mismatch == null && stored != value) {
+                mismatch = "node " + where + " (" + stored + " instead of " + value + ")";
+            }
+        }
+
+        @Override
+        public void string(Object where, String value) throws IOException {
+            super.string(where, value);
+            String stored = in.readUTF();
+            if (mismatch == null && !stored.equals(value)) {
+                mismatch = "node " + where + " (" + stored + " instead of " + value + ")";
+            }
+        }
+
+        @Override
+        public boolean stopped() {
+            return mismatch != null;
+        }
+    }
+
+    // What a node stands for, by Soot signatures
+    private String describe(NNode n) {
+        if (n instanceof NVarNode) {
+            return describe(((NVarNode) n).l);
+        } else if (n instanceof NFieldNode) {
+            return ((NFieldNode) n).f.getSignature();
+        } else if (n instanceof NViewAllocNode) {
+            return ((NViewAllocNode) n).c + " " + describe(((NAllocNode) n).e);
+        } else if (n instanceof NListenerAllocNode) {
+            return ((NListenerAllocNode) n).c + " " + describe(((NAllocNode) n).e);
+        } else if (n instanceof NAllocNode) {
+            return describe(((NAllocNode) n).e);
+        } else if (n instanceof NDialogNode) {
+            return ((NDialogNode) n).c + " " + describe(((NDialogNode) n).allocStmt);
+        } else if (n instanceof NWindowNode) {
+            return String.valueOf(((NWindowNode) n).c);
+        } else if (n instanceof NTabSpecNode) {
+            return ((NTabSpecNode) n).c + " " + describe(((NTabSpecNode) n).allocStmt);
+        } else if (n instanceof NInflNode) {
+            return String.valueOf(((NInflNode) n).c);
+        } else if (n instanceof NIdNode) {
+            return String.valueOf(((NIdNode) n).getIdValue());
+        } else if (n instanceof NStringConstantNode) {
+            return ((NStringConstantNode) n).value;
+        } else if (n instanceof NOptionsMenuNode) {
+            return String.valueOf(((NOptionsMenuNode) n).ownerActivity);
+        } else if (n instanceof NContextMenuNode) {
+            NVarNode menu = ((NContextMenuNode) n).menuParameterNode;
+            return menu == null ? "" : String.valueOf(menu.id);
+        } else if (n instanceof NOpNode) {
+            NOpNode op = (NOpNode) n;
+            return op.callSite == null ? "" : describe(op.callSite.getO1()) + " " + op.callSite.getO2();
+        }
+        return "";
+    }
+
+    // Locals and statements made up while building have no method or unit
+    // position, and are described by their text
+    private String describe(Local l) {
+        if (l == null) {
+            return "";
+        }
+        SootMethod m = localMethods.get(l);
+        return m == null ? "fake " + l + ":" + l.getType() : m.getSignature() + " " + l.getName();
+    }
+
+    private String describe(Stmt s) {
+        if (s == null) {
+            return "";
+        }
+        SootMethod m = jimpleUtil.lookup(s);
+        Integer index = null;
+        if (m != null && m.hasActiveBody()) {
+            index = unitIndices.computeIfAbsent(m, k -> {
+                Map<Unit, Integer> indices = new IdentityHashMap<>();
+                int i = 0;
+                for (Unit u : k.getActiveBody().getUnits()) {
+                    indices.put(u, i++);
+                }
+                return indices;
+            }).get(s);
+        }
+        return index == null ? "fake " + s : m.getSignature() + " @" + index;
+    }
+
+    private String describe(Expr e) {
+        if (e == null) {
+            return "";
+        }
+        Stmt s = jimpleUtil.lookup(e);
+        return s == null ? "fake " + e : describe(s) + " " + e;
+    }
+
+    // --- solver
+    /**
+     * Writes the maps of the solver, unless the budget ran out and they are
+     * partial.
+     */
+    public void save(String phase, FixpointSolver solver) {
+        if (graphDigest == null || !AnalysisBudget.v().isComplete()) {
+            return;
+        }
+        long start = System.nanoTime();
+        File tmp = new File(dir, TMP_PREFIX + phase + SUFFIX);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            writeHeader(out, phase);
+            out.writeUTF(graphDigest);
+            writeMaps(out, solver.checkpointMaps());
+            writeClassIdNames(out, solver.class2IdName);
+            out.writeInt(MAGIC);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        publish(tmp, phase, start);
+    }
+
+    private static void writeMaps(DataOutputStream out,
+            Map<String, Map<? extends NNode, ? extends Set<? extends NNode>>> maps) throws IOException {
+        writeVarInt(out, maps.size());
+        for (Map.Entry<String, Map<? extends NNode, ? extends Set<? extends NNode>>> m : maps.entrySet()) {
+            out.writeUTF(m.getKey());
+            writeVarInt(out, m.getValue().size());
+            for (Map.Entry<? extends NNode, ? extends Set<? extends NNode>> entry : m.getValue().entrySet()) {
+                writeVarInt(out, entry.getKey().id);
+                writeIds(out, entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Fills the maps of the solver from the checkpoint of the resume phase,
+     * or from that of the paths when resuming the propagation. Returns false,
+     * leaving the maps as they are, if the checkpoint cannot be read; then
+     * there is nothing to resume.
+     */
+    @SuppressWarnings("unchecked")
+    public boolean restore(FixpointSolver solver) {
+        Map<String, Map<? extends NNode, ? extends Set<? extends NNode>>> maps = solver.checkpointMaps();
+        long start = System.nanoTime();
+        String phase = PROPAGATION.equals(resumePhase) ? PATHS : resumePhase;
+        File f = file(phase);
+        // read completely before touching the solver maps
+        Map<String, Map<NNode, Set<NNode>>> restored = Maps.newHashMap();
+        Map<SootClass, Set<Pair<String, String>>> class2IdName;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            if (!readHeader(in, phase) || !graphDigest.equals(in.readUTF())) {
+                throw new IOException("Not a checkpoint of this graph");
+            }
+            int numMaps = readVarInt(in);
+            for (int i = 0; i < numMaps; i++) {
+                String name = in.readUTF();
+                if (!maps.containsKey(name)) {
+                    throw new IOException("Unknown map " + name);
+                }
+                Map<NNode, Set<NNode>> map = Maps.newHashMap();
+                int numEntries = readVarInt(in);
+                for (int j = 0; j < numEntries; j++) {
+                    NNode key = node(readVarInt(in));
+                    map.put(key, readIds(in));
+                }
+                restored.put(name, map);
+            }
+            class2IdName = readClassIdNames(in);
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Corrupt checkpoint");
+            }
+        } catch (IOException e) {
+            System.out.println("[Checkpoint] Cannot restore phase " + phase + " from " + f + ": " + e
+                    + ", solving from the start");
+            resumePhase = null;
+            return false;
+        }
+        for (Map.Entry<String, Map<NNode, Set<NNode>>> entry : restored.entrySet()) {
+            ((Map<NNode, Set<NNode>>) maps.get(entry.getKey())).putAll(entry.getValue());
+        }
+        solver.class2IdName.putAll(class2IdName);
+        System.out.println(String.format("[Checkpoint] Restored phase %s from %s in %.1f ms", phase, f,
+                (System.nanoTime() - start) / 1e6));
+        return true;
+    }
+
+    // --- propagation
+    /**
+     * Writes the state of the propagation rounds, unless the budget ran out,
+     * the last checkpoint is less than Configs.checkpointInterval seconds
+     * old, or part of the state cannot be described by signatures.
+     */
+    public void savePropagation(FixpointSolver solver) {
+        if (graphDigest == null || !AnalysisBudget.v().isComplete()
+                || System.nanoTime() - lastWrite < Configs.checkpointInterval * 1000000000L) {
+            return;
+        }
+        long start = System.nanoTime();
+        FlowGraph g = solver.flowgraph;
+        prepareDescriptions(g);
+        File tmp = new File(dir, TMP_PREFIX + PROPAGATION + SUFFIX);
+        try {
+            Map<Stmt, NOpNode> callSites = callSites();
+            String missing = findUndescribable(solver, callSites);
+            if (missing != null) {
+                System.out.println("[Checkpoint] Cannot describe " + missing + ", not writing phase " + PROPAGATION);
+                return;
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                writeHeader(out, PROPAGATION);
+                out.writeUTF(graphDigest);
+                // the nodes made by inflation, which a resumed run makes again
+                writeVarInt(out, solver.numNodesBeforePropagation);
+                out.writeUTF(inflationDigest(solver.numNodesBeforePropagation));
+                // the nodes made by the rounds
+                writeVarInt(out, NNode.nextId);
+                for (int id = solver.numNodesBeforePropagation + 1; id <= NNode.nextId; id++) {
+                    Local l = ((NVarNode) NNode.forId(id)).l;
+                    out.writeUTF(localMethods.get(l).getSignature());
+                    out.writeUTF(l.getName());
+                }
+                writeMaps(out, solver.propagationMaps());
+                writeClassIdNames(out, solver.class2IdName);
+                writePropagationState(out, solver);
+                writeGraphChanges(out, callSites);
+                out.writeInt(MAGIC);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            clearDescriptions();
+        }
+        publish(tmp, PROPAGATION, start);
+    }
+
+    // The op node of each call site
+    private static Map<Stmt, NOpNode> callSites() {
+        Map<Stmt, NOpNode> callSites = new IdentityHashMap<>();
+        for (int id = 1; id <= NNode.nextId; id++) {
+            NNode n = NNode.forId(id);
+            if (n instanceof NOpNode && ((NOpNode) n).callSite != null) {
+                callSites.put(((NOpNode) n).callSite.getO1(), (NOpNode) n);
+            }
+        }
+        return callSites;
+    }
+
+    // What savePropagation() cannot write: a node made by the rounds that is
+    // not a local of an application method, or an edge site that is neither
+    // the call site of an op node nor a statement of an application method.
+    // Returns null if there is none.
+    private String findUndescribable(FixpointSolver solver, Map<Stmt, NOpNode> callSites) {
+        for (int id = solver.numNodesBeforePropagation + 1; id <= NNode.nextId; id++) {
+            NNode n = NNode.forId(id);
+            if (!(n instanceof NVarNode) || localMethods.get(((NVarNode) n).l) == null) {
+                return "node " + n;
+            }
+        }
+        for (int id = 1; id <= NNode.nextId; id++) {
+            NNode n = NNode.forId(id);
+            List<Stmt> sites = n == null ? null : n.succSites;
+            if (sites == null) {
+                continue;
+            }
+            for (Stmt s : sites) {
+                if (s != null && !callSites.containsKey(s) && unitIndex(s) < 0) {
+                    return "edge site " + s + " of node " + n;
+                }
+            }
+        }
+        return null;
+    }
+
+    // The digest of the nodes made by inflation
+    private String inflationDigest(int numNodes) throws IOException {
+        MessageDigest md = sha256();
+        DataOutputStream out = new DataOutputStream(new DigestOutputStream(NULL_OUTPUT, md));
+        for (int id = numGraphNodes + 1; id <= numNodes; id++) {
+            NNode n = NNode.forId(id);
+            out.writeUTF(n == null ? "" : n.getClass().getSimpleName());
+            out.writeUTF(n == null ? "" : describe(n));
+        }
+        out.flush();
+        return toHex(md.digest());
+    }
+
+    /**
+     * The dirty op nodes, the calls each op node has forwarded its results
+     * to, by the name of the reached* map, and for each SetListener node
+     * processed: the ids of the view and listener objects it was processed
+     * with, and the signatures of the event handlers of its call site.
+     */
+    private static void writePropagationState(DataOutputStream out, FixpointSolver solver) throws IOException {
+        List<NOpNode> dirty = Lists.newArrayList();
+        for (int i = 0; i < solver.dirty.length; i++) {
+            if (solver.dirty[i]) {
+                dirty.add(solver.propagationOrder.get(i));
+            }
+        }
+        writeIds(out, dirty);
+
+        Map<Object, String> mapNames = new IdentityHashMap<>();
+        for (Map.Entry<String, Map<? extends NNode, ? extends Set<? extends NNode>>> m
+                : solver.checkpointMaps().entrySet()) {
+            mapNames.put(m.getValue(), m.getKey());
+        }
+        writeVarInt(out, solver.propagatedCalls.size());
+        for (Map.Entry<NOpNode, Map<Map<NOpNode, Set<NOpNode>>, Set<NOpNode>>> entry
+                : solver.propagatedCalls.entrySet()) {
+            writeVarInt(out, entry.getKey().id);
+            writeVarInt(out, entry.getValue().size());
+            for (Map.Entry<Map<NOpNode, Set<NOpNode>>, Set<NOpNode>> served : entry.getValue().entrySet()) {
+                out.writeUTF(mapNames.get(served.getKey()));
+                writeIds(out, served.getValue());
+            }
+        }
+
+        FlowGraph g = solver.flowgraph;
+        writeVarInt(out, g.processedSetListenerPairs.size());
+        for (Map.Entry<NSetListenerOpNode, Set<Long>> entry : g.processedSetListenerPairs.entrySet()) {
+            NSetListenerOpNode op = entry.getKey();
+            writeVarInt(out, op.id);
+            writeVarInt(out, entry.getValue().size());
+            for (long pair : entry.getValue()) {
+                writeVarInt(out, (int) (pair >>> 32));
+                writeVarInt(out, (int) pair);
+            }
+            Collection<SootMethod> handlers = op.callSite == null ? Collections.<SootMethod>emptySet()
+                    : g.regToEventHandlers.get(op.callSite.getO1());
+            writeVarInt(out, handlers.size());
+            for (SootMethod h : handlers) {
+                out.writeUTF(h.getSignature());
+            }
+        }
+    }
+
+    /**
+     * For each node: the successors not in the frozen graph, each with its
+     * edge site (0 for none, 1 and the id of the op node whose call site it
+     * is, or 2, a method signature and a unit position); its parents in the
+     * view hierarchy; its view id node, or 0.
+     */
+    private void writeGraphChanges(DataOutputStream out, Map<Stmt, NOpNode> callSites) throws IOException {
+        for (int id = 1; id <= NNode.nextId; id++) {
+            NNode n = NNode.forId(id);
+            List<NNode> succ = n == null ? Collections.<NNode>emptyList() : n.getAddedSuccessors();
+            List<Stmt> sites = n == null ? null : n.succSites;
+            writeVarInt(out, succ.size());
+            for (int i = 0; i < succ.size(); i++) {
+                writeVarInt(out, succ.get(i).id);
+                Stmt s = sites == null ? null : sites.get(i);
+                if (s == null) {
+                    writeVarInt(out, 0);
+                } else if (callSites.containsKey(s)) {
+                    writeVarInt(out, 1);
+                    writeVarInt(out, callSites.get(s).id);
+                } else {
+                    writeVarInt(out, 2);
+                    out.writeUTF(jimpleUtil.lookup(s).getSignature());
+                    writeVarInt(out, unitIndex(s));
+                }
+            }
+        }
+        for (int id = 1; id <= NNode.nextId; id++) {
+            NNode n = NNode.forId(id);
+            writeIds(out, n == null ? Collections.<NNode>emptyList() : Lists.newArrayList(n.getParents()));
+        }
+        for (int id = 1; id <= NNode.nextId; id++) {
+            NNode n = NNode.forId(id);
+            writeVarInt(out, n == null || n.idNode == null ? 0 : n.idNode.id);
+        }
+    }
+
+    // The position of s in the body of its method, or -1 if it has none
+    private int unitIndex(Stmt s) {
+        SootMethod m = jimpleUtil.lookup(s);
+        if (m == null || !m.hasActiveBody()) {
+            return -1;
+        }
+        Integer index = unitIndices.computeIfAbsent(m, k -> {
+            Map<Unit, Integer> indices = new IdentityHashMap<>();
+            int i = 0;
+            for (Unit u : k.getActiveBody().getUnits()) {
+                indices.put(u, i++);
+            }
+            return indices;
+        }).get(s);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Called once inflation is done. When resuming from the propagation
+     * checkpoint, and inflation made the same nodes as in the checkpointed
+     * run, restores the state of the rounds. Everything is read and checked
+     * before anything is changed; returns false, changing nothing, if the
+     * checkpoint cannot be used.
+     */
+    public boolean restorePropagation(FixpointSolver solver) {
+        if (!PROPAGATION.equals(resumePhase)) {
+            return false;
+        }
+        long start = System.nanoTime();
+        File f = file(PROPAGATION);
+        PropagationState state;
+        prepareDescriptions(solver.flowgraph);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            state = readPropagation(in, solver);
+        } catch (IOException e) {
+            System.out.println("[Checkpoint] Cannot restore phase " + PROPAGATION + " from " + f + ": " + e
+                    + ", propagating from the start");
+            resumePhase = null;
+            return false;
+        } finally {
+            clearDescriptions();
+        }
+        state.apply(solver);
+        System.out.println(String.format("[Checkpoint] Restored phase %s from %s in %.1f ms", PROPAGATION, f,
+                (System.nanoTime() - start) / 1e6));
+        return true;
+    }
+
+    // The propagation checkpoint as read, by node id
+    private static class PropagationState {
+        int numNodes;
+        final List<Local> newLocals = Lists.newArrayList();
+        final Map<String, List<int[]>> maps = Maps.newLinkedHashMap();
+        Map<SootClass, Set<Pair<String, String>>> class2IdName;
+        int[] dirty;
+        final List<Integer> servedNodes = Lists.newArrayList();
+        final List<String> servedMaps = Lists.newArrayList();
+        final List<int[]> servedCalls = Lists.newArrayList();
+        final Map<Integer, Set<Long>> setListenerPairs = Maps.newLinkedHashMap();
+        final Map<Integer, List<SootMethod>> handlers = Maps.newHashMap();
+        int[][] successors;
+        Stmt[][] sites;
+        int[][] parents;
+        int[] idNodes;
+
+        @SuppressWarnings("unchecked")
+        void apply(FixpointSolver solver) {
+            FlowGraph g = solver.flowgraph;
+            for (Local l : newLocals) {
+                g.varNode(l);
+            }
+            if (NNode.nextId != numNodes) {
+                throw new RuntimeException("Restored " + NNode.nextId + " nodes instead of " + numNodes);
+            }
+            Map<String, Map<? extends NNode, ? extends Set<? extends NNode>>> solverMaps = solver.propagationMaps();
+            for (Map.Entry<String, List<int[]>> m : maps.entrySet()) {
+                Map<NNode, Set<NNode>> map = (Map<NNode, Set<NNode>>) solverMaps.get(m.getKey());
+                map.clear();
+                for (int[] entry : m.getValue()) {
+                    map.put(NNode.forId(entry[0]), nodes(entry, 1));
+                }
+            }
+            solver.class2IdName.clear();
+            solver.class2IdName.putAll(class2IdName);
+            Arrays.fill(solver.dirty, false);
+            for (int id : dirty) {
+                solver.markDirty((NOpNode) NNode.forId(id));
+            }
+            for (int i = 0; i < servedNodes.size(); i++) {
+                solver.propagatedCalls.computeIfAbsent((NOpNode) NNode.forId(servedNodes.get(i)),
+                        k -> Maps.newIdentityHashMap()).put(
+                        (Map<NOpNode, Set<NOpNode>>) solverMaps.get(servedMaps.get(i)),
+                        (Set<NOpNode>) (Set<?>) nodes(servedCalls.get(i), 0));
+            }
+            for (Map.Entry<Integer, Set<Long>> entry : setListenerPairs.entrySet()) {
+                NSetListenerOpNode op = (NSetListenerOpNode) NNode.forId(entry.getKey());
+                g.processedSetListenerPairs.put(op, entry.getValue());
+                if (op.callSite != null) {
+                    g.regToEventHandlers.putAll(op.callSite.getO1(), handlers.get(entry.getKey()));
+                }
+            }
+            for (int id = 1; id <= numNodes; id++) {
+                NNode n = NNode.forId(id);
+                for (int i = 0; i < successors[id].length; i++) {
+                    n.addEdgeTo(NNode.forId(successors[id][i]), sites[id][i]);
+                }
+                for (int p : parents[id]) {
+                    n.addParent(NNode.forId(p));
+                }
+                if (idNodes[id] != 0) {
+                    n.idNode = (NIdNode) NNode.forId(idNodes[id]);
+                }
+            }
+        }
+
+        private static Set<NNode> nodes(int[] ids, int from) {
+            Set<NNode> nodes = new NodeBitSet<>();
+            for (int i = from; i < ids.length; i++) {
+                nodes.add(NNode.forId(ids[i]));
+            }
+            return nodes;
+        }
+    }
+
+    private PropagationState readPropagation(DataInputStream in, FixpointSolver solver) throws IOException {
+        if (!readHeader(in, PROPAGATION) || !graphDigest.equals(in.readUTF())) {
+            throw new IOException("Not a checkpoint of this graph");
+        }
+        int numInflated = readVarInt(in);
+        if (numInflated != solver.numNodesBeforePropagation
+                || !inflationDigest(numInflated).equals(in.readUTF())) {
+            throw new IOException("Inflation made other nodes than in the checkpointed run");
+        }
+        PropagationState state = new PropagationState();
+        FlowGraph g = solver.flowgraph;
+        state.numNodes = readVarInt(in);
+        if (state.numNodes < numInflated) {
+            throw new IOException("Corrupt checkpoint");
+        }
+        for (int id = numInflated + 1; id <= state.numNodes; id++) {
+            SootMethod m = Scene.v().grabMethod(in.readUTF());
+            String name = in.readUTF();
+            Local local = null;
+            if (m != null && m.hasActiveBody()) {
+                for (Local l : m.getActiveBody().getLocals()) {
+                    if (l.getName().equals(name)) {
+                        local = l;
+                    }
+                }
+            }
+            if (local == null || g.allNVarNodes.containsKey(local) || state.newLocals.contains(local)) {
+                throw new IOException("Cannot make node " + id + " for local " + name + " of " + m);
+            }
+            state.newLocals.add(local);
+        }
+
+        Map<String, Map<? extends NNode, ? extends Set<? extends NNode>>> solverMaps = solver.propagationMaps();
+        int numMaps = readVarInt(in);
+        for (int i = 0; i < numMaps; i++) {
+            String name = in.readUTF();
+            if (!solverMaps.containsKey(name)) {
+                throw new IOException("Unknown map " + name);
+            }
+            List<int[]> entries = Lists.newArrayList();
+            int numEntries = readVarInt(in);
+            for (int j = 0; j < numEntries; j++) {
+                int key = readVarInt(in);
+                int[] values = readIdArray(in, state.numNodes);
+                int[] entry = new int[values.length + 1];
+                entry[0] = checkId(key, state.numNodes);
+                System.arraycopy(values, 0, entry, 1, values.length);
+                entries.add(entry);
+            }
+            state.maps.put(name, entries);
+        }
+        state.class2IdName = readClassIdNames(in);
+
+        state.dirty = readIdArray(in, numInflated);
+        checkNodes(state.dirty, NOpNode.class);
+        Map<String, Map<? extends NNode, ? extends Set<? extends NNode>>> reachedMaps = solver.checkpointMaps();
+        int numServed = readVarInt(in);
+        for (int i = 0; i < numServed; i++) {
+            int node = checkNode(readVarInt(in), numInflated, NOpNode.class);
+            int numMapsServed = readVarInt(in);
+            for (int j = 0; j < numMapsServed; j++) {
+                String name = in.readUTF();
+                if (!reachedMaps.containsKey(name)) {
+                    throw new IOException("Unknown map " + name);
+                }
+                int[] calls = readIdArray(in, numInflated);
+                checkNodes(calls, NOpNode.class);
+                state.servedNodes.add(node);
+                state.servedMaps.add(name);
+                state.servedCalls.add(calls);
+            }
+        }
+        int numSetListeners = readVarInt(in);
+        for (int i = 0; i < numSetListeners; i++) {
+            int node = checkNode(readVarInt(in), numInflated, NSetListenerOpNode.class);
+            Set<Long> pairs = Sets.newHashSet();
+            int numPairs = readVarInt(in);
+            for (int j = 0; j < numPairs; j++) {
+                long view = checkId(readVarInt(in), state.numNodes);
+                long listener = checkId(readVarInt(in), state.numNodes);
+                pairs.add(view << 32 | listener);
+            }
+            List<SootMethod> handlers = Lists.newArrayList();
+            int numHandlers = readVarInt(in);
+            for (int j = 0; j < numHandlers; j++) {
+                String signature = in.readUTF();
+                SootMethod h = Scene.v().grabMethod(signature);
+                if (h == null) {
+                    throw new IOException("Unknown event handler " + signature);
+                }
+                handlers.add(h);
+            }
+            state.setListenerPairs.put(node, pairs);
+            state.handlers.put(node, handlers);
+        }
+
+        state.successors = new int[state.numNodes + 1][];
+        state.sites = new Stmt[state.numNodes + 1][];
+        for (int id = 1; id <= state.numNodes; id++) {
+            int numSucc = readVarInt(in);
+            state.successors[id] = new int[numSucc];
+            state.sites[id] = new Stmt[numSucc];
+            for (int i = 0; i < numSucc; i++) {
+                state.successors[id][i] = checkId(readVarInt(in), state.numNodes);
+                state.sites[id][i] = readSite(in, numInflated);
+            }
+        }
+        state.parents = new int[state.numNodes + 1][];
+        for (int id = 1; id <= state.numNodes; id++) {
+            state.parents[id] = readIdArray(in, state.numNodes);
+        }
+        state.idNodes = new int[state.numNodes + 1];
+        for (int id = 1; id <= state.numNodes; id++) {
+            int idNode = readVarInt(in);
+            if (idNode != 0) {
+                checkNode(idNode, numInflated, NIdNode.class);
+            }
+            state.idNodes[id] = idNode;
+        }
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Corrupt checkpoint");
+        }
+        return state;
+    }
+
+    private Stmt readSite(DataInputStream in, int numInflated) throws IOException {
+        int kind = readVarInt(in);
+        if (kind == 0) {
+            return null;
+        } else if (kind == 1) {
+            NOpNode op = (NOpNode) NNode.forId(checkNode(readVarInt(in), numInflated, NOpNode.class));
+            if (op.callSite == null) {
+                throw new IOException("No call site at " + op);
+            }
+            return op.callSite.getO1();
+        } else if (kind == 2) {
+            String signature = in.readUTF();
+            int index = readVarInt(in);
+            SootMethod m = Scene.v().grabMethod(signature);
+            if (m != null && m.hasActiveBody() && index < m.getActiveBody().getUnits().size()) {
+                return (Stmt) Iterables.get(m.getActiveBody().getUnits(), index);
+            }
+            throw new IOException("Unknown edge site " + signature + " @" + index);
+        }
+        throw new IOException("Corrupt checkpoint");
+    }
+
+    private static int checkId(int id, int maxId) throws IOException {
+        if (id <= 0 || id > maxId) {
+            throw new IOException("Unknown node " + id);
+        }
+        return id;
+    }
+
+    // Checks that the node of id exists already and is a kind
+    private static int checkNode(int id, int maxId, Class<? extends NNode> kind) throws IOException {
+        checkId(id, maxId);
+        if (!kind.isInstance(NNode.forId(id))) {
+            throw new IOException("Node " + id + " is not a " + kind.getSimpleName());
+        }
+        return id;
+    }
+
+    private static void checkNodes(int[] ids, Class<? extends NNode> kind) throws IOException {
+        for (int id : ids) {
+            checkNode(id, Integer.MAX_VALUE, kind);
+        }
+    }
+
+    // Ids in ascending order, as differences
+    private static void writeIds(DataOutputStream out, Collection<? extends NNode> nodes) throws IOException {
+        int[] ids = new int[nodes.size()];
+        int i = 0;
+        for (NNode n : nodes) {
+            ids[i++] = n.id;
+        }
+        Arrays.sort(ids);
+        writeVarInt(out, ids.length);
+        int last = 0;
+        for (int id : ids) {
+            writeVarInt(out, id - last);
+            last = id;
+        }
+    }
+
+    // FixpointSolver.class2IdName: for each class, its name and the pairs of
+    // view id and field name
+    private static void writeClassIdNames(DataOutputStream out,
+            Map<SootClass, Set<Pair<String, String>>> class2IdName) throws IOException {
+        writeVarInt(out, class2IdName.size());
+        for (Map.Entry<SootClass, Set<Pair<String, String>>> entry : class2IdName.entrySet()) {
+            out.writeUTF(entry.getKey().getName());
+            writeVarInt(out, entry.getValue().size());
+            for (Pair<String, String> idName : entry.getValue()) {
+                out.writeUTF(idName.getO1());
+                out.writeUTF(idName.getO2());
+            }
+        }
+    }
+
+    private static Map<SootClass, Set<Pair<String, String>>> readClassIdNames(DataInputStream in)
+            throws IOException {
+        Map<SootClass, Set<Pair<String, String>>> class2IdName = Maps.newHashMap();
+        int numClasses = readVarInt(in);
+        for (int i = 0; i < numClasses; i++) {
+            String name = in.readUTF();
+            SootClass klass = Scene.v().getSootClassUnsafe(name);
+            if (klass == null) {
+                throw new IOException("Unknown class " + name);
+            }
+            Set<Pair<String, String>> idNames = Sets.newHashSet();
+            int numIdNames = readVarInt(in);
+            for (int j = 0; j < numIdNames; j++) {
+                idNames.add(new Pair<>(in.readUTF(), in.readUTF()));
+            }
+            class2IdName.put(klass, idNames);
+        }
+        return class2IdName;
+    }
+
+    private static Set<NNode> readIds(DataInputStream in) throws IOException {
+        Set<NNode> nodes = new NodeBitSet<>();
+        for (int id : readIdArray(in, NNode.nextId)) {
+            nodes.add(node(id));
+        }
+        return nodes;
+    }
+
+    // The ids of writeIds(), each checked to be at most maxId
+    private static int[] readIdArray(DataInputStream in, int maxId) throws IOException {
+        int[] ids = new int[readVarInt(in)];
+        int id = 0;
+        for (int i = 0; i < ids.length; i++) {
+            id += readVarInt(in);
+            if (id <= 0 || id > maxId) {
+                throw new IOException("Unknown node " + id);
+            }
+            ids[i] = id;
+        }
+        return ids;
+    }
+
+    private static NNode node(int id) throws IOException {
+        NNode n = id > 0 && id <= NNode.nextId ? NNode.forId(id) : null;
+        if (n == null) {
+            throw new IOException("Unknown node " + id);
+        }
+        return n;
+    }
+
+    // --- files
+    private File file(String phase) {
+        return new File(dir, phase + SUFFIX);
+    }
+
+    private void publish(File tmp, String phase, long start) {
+        File f = file(phase);
+        try {
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        lastWrite = System.nanoTime();
+        System.out.println(String.format("[Checkpoint] Wrote phase %s to %s (%.1f KB) in %.1f ms", phase, f,
+                f.length() / 1024.0, (System.nanoTime() - start) / 1e6));
+    }
+
+    private static void writeHeader(DataOutputStream out, String phase) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeUTF(phase);
+    }
+
+    private static boolean readHeader(DataInputStream in, String phase) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION || !in.readUTF().equals(phase)) {
+            System.out.println("[Checkpoint] Not a " + phase + " checkpoint of this version");
+            return false;
+        }
+        return true;
+    }
+
+    // Unsigned LEB128
+    static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed integer");
+    }
+
+    private static final OutputStream NULL_OUTPUT = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
@@ -32,6 +32,7 @@ public class DefaultGUIAnalysisOutput implements GUIAnalysisOutput {
 	JimpleUtil jimpleUtil;
 	Hierarchy hier;
 	ListenerSpecification listenerSpec;
+	AnalysisBudget budget;
 
 	Predicate<EventType> isImplicitEventTypeFilter = EventType::isImplicit;
 
@@ -45,6 +46,7 @@ public class DefaultGUIAnalysisOutput implements GUIAnalysisOutput {
 		this.jimpleUtil = JimpleUtil.v();
 		this.hier = Hierarchy.v();
 		this.listenerSpec = ListenerSpecification.v();
+		this.budget = AnalysisBudget.v();
 	}
 
 	@Override
@@ -200,4 +202,14 @@ public class DefaultGUIAnalysisOutput implements GUIAnalysisOutput {
 	public void setRunningTimeInNanoSeconds(long runningTimeInNanoSeconds) {
         // GUI analysis running time in nano seconds
     }
+
+	@Override
+	public boolean isComplete() {
+		return budget.isComplete();
+	}
+
+	@Override
+	public String getIncompletePhase() {
+		return budget.getStoppedIn();
+	}
 }
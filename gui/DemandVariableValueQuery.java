@@ -48,6 +48,10 @@ public class DemandVariableValueQuery implements VariableValueQueryInterface {
     return theInstance;
   }
 
+  public static synchronized void reset() {
+    theInstance = null;
+  }
+
   Set<NObjectNode> valueSetForRefTypes(Local local) {
     NVarNode varNode = flowgraph.lookupVarNode(local);
     if (varNode == null) {
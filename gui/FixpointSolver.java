@@ -9,6 +9,10 @@
 package presto.android.gui;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.LongAdder;
 
 import presto.android.*;
 import presto.android.Hierarchy;
@@ -41,6 +45,8 @@ import presto.android.gui.graph.NVarNode;
 import presto.android.gui.graph.NViewAllocNode;
 import presto.android.gui.graph.NWidgetIdNode;
 import presto.android.gui.graph.NWindowNode;
+import presto.android.gui.graph.NodeBitSet;
+import presto.android.gui.graph.NodeSetStore;
 import presto.android.gui.listener.ListenerSpecification;
 import presto.android.xml.AndroidView;
 import presto.android.xml.XMLParser;
@@ -103,12 +109,25 @@ public class FixpointSolver {
 
     // Mapping from an activity to the set of views that could be its root.
     public Map<NActivityNode, Set<NNode>> activityRoots;
-    public Map<NDialogNode, Set<NNode>> dialogRoots = Maps.newHashMap();
+    public Map<NDialogNode, Set<NNode>> dialogRoots = new ConcurrentHashMap<>();
 
     public Map<NNode, Set<NOpNode>> viewProducers;
     public Map<NObjectNode, Set<NIdNode>> viewLayoutIds;
     public Map<SootClass, Set<Pair<String, String>>> class2IdName;
 
+    // Runs the reachability phases during solve()
+    ForkJoinPool pool;
+
+    // Checked by the loops of solve(), which stop once it is used up
+    AnalysisBudget budget;
+
+    // phase name -> {runs, sources, wall, task and merge nanoseconds}
+    Map<String, long[]> phaseTimes = Maps.newLinkedHashMap();
+
+    // Interns the node sets of the maps, see internReachability()
+    NodeSetStore store;
+    boolean reachabilityInterned;
+
     public FixpointSolver(FlowGraph g) {
         this.flowgraph = g;
         this.graphUtil = GraphUtil.v();
@@ -134,24 +153,248 @@ public class FixpointSolver {
         reachingListeners = Maps.newHashMap();
         reachedListeners = Maps.newHashMap();
 
-        solutionParameters = Maps.newHashMap();
-        solutionReceivers = Maps.newHashMap();
+        // written by the propagation tasks of different components
+        solutionParameters = new ConcurrentHashMap<>();
+        solutionReceivers = new ConcurrentHashMap<>();
         solutionResults = Maps.newHashMap();
 
-        solutionListeners = Maps.newHashMap();
+        solutionListeners = new ConcurrentHashMap<>();
         for (NOpNode n : NOpNode.getNodes(NSetListenerOpNode.class)) {
-            solutionListeners.put(n, new HashSet<>());
+            solutionListeners.put(n, new NodeBitSet<>());
         }
 
-        activityRoots = Maps.newHashMap();
+        activityRoots = new ConcurrentHashMap<>();
 
-        viewProducers = Maps.newHashMap();
+        viewProducers = new ConcurrentHashMap<>();
         viewLayoutIds = Maps.newHashMap();
 
-        solveCore();
+        phaseTimes.clear();
+        store = new NodeSetStore();
+        reachabilityInterned = false;
+        budget = AnalysisBudget.v();
+        pool = new ForkJoinPool(Configs.workerNum);
+        try {
+            solveCore();
+        } finally {
+            pool.shutdown();
+            pool = null;
+        }
+        internSets();
+        for (Map.Entry<String, long[]> entry : phaseTimes.entrySet()) {
+            long[] t = entry.getValue();
+            System.out.println(String.format(
+                    "[FixpointSolver] %s: %d runs, %d sources, %.1f ms wall, %.1f ms in tasks, %.1f ms merge, %.2fx speedup",
+                    entry.getKey(), t[0], t[1], t[2] / 1e6, t[3] / 1e6, t[4] / 1e6,
+                    t[2] == 0 ? 1.0 : (double) t[3] / t[2]));
+        }
+    }
+
+    /**
+     * Replaces the sets of the reaching* and reached* maps by immutable ones
+     * shared among equal sets, once steps 1 and 2 of solveCore() have filled
+     * them. Many are the same, e.g. the ids reaching the FindView calls in
+     * one layout. The later steps only add a few nodes to them, through
+     * addToSet(), which copies the set on write.
+     */
+    void internReachability() {
+        internSets(reachingLayoutIds);
+        internSets(reachingMenuIds);
+        internSets(reachingViewIds);
+        internSets(reachingParameterViews);
+        internSets(reachingReceiverViews);
+        internSets(reachingWindows);
+        internSets(reachingOptionsMenus);
+        internSets(reachingContextMenus);
+        internSets(reachedParameterViews);
+        internSets(reachedReceiverViews);
+        internSets(reachingListeners);
+        internSets(reachedListeners);
+        reachabilityInterned = true;
+    }
+
+    /**
+     * Interns the sets of the remaining solver maps after solving. The
+     * solution* maps stay mutable while solving, as the propagation adds to
+     * them in its inner loops. Nothing changes them after solving.
+     */
+    void internSets() {
+        internReachability();
+        internSets(solutionParameters);
+        internSets(solutionReceivers);
+        internSets(solutionResults);
+        internSets(solutionListeners);
+        internSets(viewProducers);
+        internSets(viewLayoutIds);
+        System.out.println("[FixpointSolver] Sets: " + store.getStatistics(propagationMaps().values()));
+    }
+
+    <K, T extends NNode> void internSets(Map<K, Set<T>> map) {
+        for (Map.Entry<K, Set<T>> entry : map.entrySet()) {
+            entry.setValue(store.intern(entry.getValue()));
+        }
+    }
+
+    // Adds value to the set of key in one of the reaching* or reached* maps.
+    // Returns true if the set grew.
+    <T extends NNode> boolean addToSet(Map<NOpNode, Set<T>> map, NOpNode key, T value) {
+        if (!reachabilityInterned) {
+            return map.computeIfAbsent(key, k -> new NodeBitSet<>()).add(value);
+        }
+        Set<T> set = map.get(key);
+        Set<T> grown = store.with(set, value);
+        if (grown == set) {
+            return false;
+        }
+        map.put(key, grown);
+        return true;
+    }
+
+    // Additions to the reaching* maps made by one reachability task. They are
+    // applied in the order they were made, after the task is joined.
+    class MapAdditions {
+        final List<Object> entries = Lists.newArrayList();
+        long taskNanos;
+
+        <T extends NNode> void add(Map<NOpNode, Set<T>> map, NOpNode key, T value) {
+            entries.add(map);
+            entries.add(key);
+            entries.add(value);
+        }
+
+        void apply() {
+            apply(null);
+        }
+
+        // Also records the entries that were not in their maps yet in added,
+        // if it is not null
+        @SuppressWarnings("unchecked")
+        void apply(MapAdditions added) {
+            for (int i = 0; i < entries.size(); i += 3) {
+                NOpNode key = (NOpNode) entries.get(i + 1);
+                if (entries.get(i) == class2IdName) {
+                    Pair<NNode, String> receiver = (Pair<NNode, String>) entries.get(i + 2);
+                    fillClass2IdName(key);
+                    if (receiver != null && isSetListenerReceiver(key, receiver.getO1(), receiver.getO2())
+                            && addToSet(reachingReceiverViews, key, receiver.getO1()) && added != null) {
+                        added.add(reachingReceiverViews, key, receiver.getO1());
+                    }
+                    continue;
+                }
+                Map<NOpNode, Set<NNode>> map = (Map<NOpNode, Set<NNode>>) entries.get(i);
+                NNode value = (NNode) entries.get(i + 2);
+                if (addToSet(map, key, value) && added != null) {
+                    added.add(map, key, value);
+                }
+            }
+        }
+
+        // Records that source reaches the SetListener opNode, whose receiver
+        // is the view with id uiIdFromUnit, or null if the receiver is not
+        // reached or its id is not known. The check needs class2IdName, which
+        // is only filled while applying, so that the first call reached in
+        // source order decides its entry, as when the sources were visited
+        // one by one.
+        void addSetListenerReceiver(NOpNode opNode, NNode source, String uiIdFromUnit) {
+            entries.add(class2IdName);
+            entries.add(opNode);
+            entries.add(uiIdFromUnit == null ? null : new Pair<>(source, uiIdFromUnit));
+        }
+    }
+
+    void fillClass2IdName(NOpNode setListener) {
+        SootMethod call = setListener.callSite.getO2();
+        SootClass klass = call.getDeclaringClass();
+        if (!class2IdName.containsKey(klass)) {
+            class2IdName.put(klass, new MethodHelper(call).getClassField());
+        }
+    }
+
+    // Whether source is the receiver of the SetListener opNode, by the view
+    // id or id field name uiIdFromUnit of its receiver
+    boolean isSetListenerReceiver(NOpNode setListener, NNode source, String uiIdFromUnit) {
+        if (!uiIdFromUnit.chars().allMatch(Character::isDigit)) {
+            // if is a field name, we should turn it to numeric id
+            SootClass klass = setListener.callSite.getO2().getDeclaringClass();
+            Set<Pair<String, String>> tuple2s = class2IdName.get(klass);
+            if (tuple2s == null) {
+                return false;
+            }
+            for (Pair<String, String> tuple2 : tuple2s) {
+                String id = tuple2.getO1();
+                String name = tuple2.getO2();
+                if (uiIdFromUnit.equals(name)) {
+                    uiIdFromUnit = id;
+                    break;
+                }
+            }
+        }
+        return source.toString().contains(uiIdFromUnit);
+    }
+
+    interface ReachabilityVisitor<N extends NNode> {
+        void visit(N source, Set<NNode> reachables, MapAdditions out);
+    }
+
+    // Chunk of sources per task; Reachability traverses 64 of them at a time
+    static final int SOURCES_PER_TASK = 64;
+
+    /**
+     * Visits the nodes reachable from each source. The sources are split into
+     * chunks run as tasks on the pool; the visitors must only record their
+     * results in the task's MapAdditions, which are applied in source order,
+     * so the maps come out the same as if the sources were visited one by
+     * one.
+     */
+    <N extends NNode> void forEachReachable(String phase, List<N> sources, ReachabilityVisitor<N> visitor) {
+        forEachReachable(phase, sources, visitor, null);
+    }
+
+    // Same, and records the map entries that are new in added
+    <N extends NNode> void forEachReachable(String phase, List<N> sources, ReachabilityVisitor<N> visitor,
+            MapAdditions added) {
+        long start = System.nanoTime();
+        List<ForkJoinTask<MapAdditions>> tasks = Lists.newArrayList();
+        for (int from = 0; from < sources.size(); from += SOURCES_PER_TASK) {
+            List<N> chunk = sources.subList(from, Math.min(from + SOURCES_PER_TASK, sources.size()));
+            tasks.add(pool.submit(() -> {
+                long taskStart = System.nanoTime();
+                MapAdditions out = new MapAdditions();
+                if (budget.exhausted("FixpointSolver." + phase)) {
+                    return out;
+                }
+                List<Set<NNode>> reachables = graphUtil.reachableNodes(chunk);
+                for (int i = 0; i < chunk.size(); i++) {
+                    visitor.visit(chunk.get(i), reachables.get(i), out);
+                }
+                out.taskNanos = System.nanoTime() - taskStart;
+                return out;
+            }));
+        }
+        List<MapAdditions> results = Lists.newArrayList();
+        for (ForkJoinTask<MapAdditions> task : tasks) {
+            results.add(task.join());
+        }
+        long mergeStart = System.nanoTime();
+        long taskNanos = 0;
+        for (MapAdditions out : results) {
+            out.apply(added);
+            taskNanos += out.taskNanos;
+        }
+        long end = System.nanoTime();
+
+        long[] t = phaseTimes.computeIfAbsent(phase, k -> new long[5]);
+        t[0]++;
+        t[1] += sources.size();
+        t[2] += end - start;
+        t[3] += taskNanos;
+        t[4] += end - mergeStart;
     }
 
+    // How many of NNode.getAddedEdgeSources() the path maps account for
+    int numAddedEdgesSeen;
+
     void computePathsFromViewProducerToViewConsumer() {
+        numAddedEdgesSeen = NNode.getAddedEdgeSources().size();
         viewAndListenerAsParameterAndReceiverReachability();
 
         // reverse
@@ -166,83 +409,205 @@ public class FixpointSolver {
         solutionListenersReachability();
     }
 
+    /**
+     * Brings the path maps up to date with the edges added to the flow graph
+     * since they were computed, e.g. by SetListener, with the same result as
+     * computePathsFromViewProducerToViewConsumer(). Only the sources that
+     * reach the sources of the new edges are traversed again, and only the
+     * map entries that are new are reversed and turned into solutions. The
+     * op nodes whose solution parameters, receivers or listeners grew are
+     * marked dirty.
+     */
+    void updatePathsFromViewProducerToViewConsumer() {
+        List<NNode> addedEdgeSources = NNode.getAddedEdgeSources();
+        Set<NNode> affected = new NodeBitSet<>();
+        for (NNode n : addedEdgeSources.subList(numAddedEdgesSeen, addedEdgeSources.size())) {
+            if (n instanceof NOpNode) {
+                // the new edge is only followed from the op node itself
+                affected.add(n);
+            } else if (!affected.contains(n)) {
+                graphUtil.findBackwardReachableNodes(n, affected);
+            }
+        }
+        numAddedEdgesSeen = addedEdgeSources.size();
+        List<NNode> sources = Lists.newArrayList();
+        for (NNode n : flowgraph.allNNodes) {
+            if (affected.contains(n) && (isViewProducer(n) || n instanceof NObjectNode)) {
+                sources.add(n);
+            }
+        }
+
+        MapAdditions added = new MapAdditions();
+        forEachReachable("viewAndListenerReachability", sources, this::viewAndListenerReachability, added);
+        MapAdditions menus = new MapAdditions();
+        propagateOptionsMenuToReceivers(menus);
+        propagateContextMenuToReceivers(menus);
+        menus.apply(added);
+
+        for (int i = 0; i < added.entries.size(); i += 3) {
+            Object map = added.entries.get(i);
+            NOpNode key = (NOpNode) added.entries.get(i + 1);
+            NNode value = (NNode) added.entries.get(i + 2);
+            boolean grew;
+            if (map == reachingParameterViews) {
+                reverseReachability(key, value, reachedParameterViews);
+                grew = solutionParameterReachability(key, value);
+            } else if (map == reachingReceiverViews) {
+                reverseReachability(key, value, reachedReceiverViews);
+                grew = solutionReceiverReachability(key, value);
+            } else {
+                reverseReachability(key, value, reachedListeners);
+                grew = solutionListenersReachability(key, value);
+            }
+            if (grew) {
+                markDirty(key);
+            }
+        }
+    }
+
+    // Each step is skipped once the budget is used up; the reachability
+    // phases also stop early (see forEachReachable()). Steps 1 and 2 only
+    // fill the maps, which are checkpointed after each, and restored instead
+    // when resuming. Step 3 is always run, as it creates nodes; step 4 is
+    // checkpointed between its rounds, see viewAndListenerPropagation().
     public void solveCore() {
-        System.out.println("    Solve: 1");
-        layoutIdReachability();
-        menuIdReachability();
-        windowReachability();
-        optionsMenuReachability();
-        contextMenuReachability();
-        viewIdReachability();
+        String phase = "FixpointSolver.solve";
+        Checkpoint checkpoint = Checkpoint.v();
+        String resumed = checkpoint.getResumePhase();
+        if (resumed != null && !checkpoint.restore(this)) {
+            resumed = null;
+        }
+
+        if (resumed == null) {
+            System.out.println("    Solve: 1");
+            layoutIdReachability();
+            menuIdReachability();
+            windowReachability();
+            optionsMenuReachability();
+            contextMenuReachability();
+            viewIdReachability();
+            checkpoint.save(Checkpoint.REACHABILITY, this);
+        }
 
-        System.out.println("    Solve: 2");
-        computePathsFromViewProducerToViewConsumer();
+        if (budget.exhausted(phase)) {
+            return;
+        }
+        resumePropagation = Checkpoint.PROPAGATION.equals(resumed);
+        if (!Checkpoint.PATHS.equals(resumed) && !resumePropagation) {
+            System.out.println("    Solve: 2");
+            computePathsFromViewProducerToViewConsumer();
+            checkpoint.save(Checkpoint.PATHS, this);
+        } else {
+            numAddedEdgesSeen = NNode.getAddedEdgeSources().size();
+        }
+        internReachability();
 
         // process inflate calls
+        if (budget.exhausted(phase)) {
+            return;
+        }
         System.out.println("    Solve: 3");
         processInflateCalls();
 
         // propagation
+        if (budget.exhausted(phase)) {
+            return;
+        }
         System.out.println("    Solve: 4");
         viewAndListenerPropagation();
     }
 
+    // Whether to restore the propagation checkpoint once step 3 is done
+    boolean resumePropagation;
+
+    // The maps filled by steps 1 and 2 of solveCore(), by name
+    Map<String, Map<? extends NNode, ? extends Set<? extends NNode>>> checkpointMaps() {
+        Map<String, Map<? extends NNode, ? extends Set<? extends NNode>>> maps = Maps.newLinkedHashMap();
+        maps.put("reachingLayoutIds", reachingLayoutIds);
+        maps.put("reachingMenuIds", reachingMenuIds);
+        maps.put("reachingViewIds", reachingViewIds);
+        maps.put("reachingWindows", reachingWindows);
+        maps.put("reachingOptionsMenus", reachingOptionsMenus);
+        maps.put("reachingContextMenus", reachingContextMenus);
+        maps.put("reachingParameterViews", reachingParameterViews);
+        maps.put("reachingReceiverViews", reachingReceiverViews);
+        maps.put("reachedParameterViews", reachedParameterViews);
+        maps.put("reachedReceiverViews", reachedReceiverViews);
+        maps.put("reachingListeners", reachingListeners);
+        maps.put("reachedListeners", reachedListeners);
+        maps.put("solutionParameters", solutionParameters);
+        maps.put("solutionReceivers", solutionReceivers);
+        maps.put("solutionResults", solutionResults);
+        maps.put("solutionListeners", solutionListeners);
+        return maps;
+    }
+
+    // All maps changed by steps 3 and 4 of solveCore(), by name
+    Map<String, Map<? extends NNode, ? extends Set<? extends NNode>>> propagationMaps() {
+        Map<String, Map<? extends NNode, ? extends Set<? extends NNode>>> maps = checkpointMaps();
+        maps.put("viewProducers", viewProducers);
+        maps.put("viewLayoutIds", viewLayoutIds);
+        maps.put("activityRoots", activityRoots);
+        maps.put("dialogRoots", dialogRoots);
+        return maps;
+    }
+
     // AddView1, AddView2
     void solutionParameterReachability() {
         for (Map.Entry<NOpNode, Set<NNode>> entry : reachingParameterViews.entrySet()) {
-            NOpNode key = entry.getKey();
-            Set<NNode> value = solutionParameters.get(key);
             for (NNode n : entry.getValue()) {
-                if (!(n instanceof NObjectNode)) {
-                    continue;
-                }
-                if (!isValidFlowByType(n, key, VarType.Parameter)) {
-                    continue;
-                }
-                if (n instanceof NViewAllocNode || n instanceof NInflNode) {
-                    if (value == null) {
-                        value = Sets.newHashSet();
-                        solutionParameters.put(key, value);
-                    }
-                    value.add(n);
-                } else {
-                    if (Configs.sanityCheck) {
-                        throw new RuntimeException("Unhandled reaching parameter at " + key + " for " + n);
-                    } else {
-                        Logger.verb("WARNING", "Unhandled reaching parameter at " + key + " for " + n);
-                    }
-                }
+                solutionParameterReachability(entry.getKey(), n);
+            }
+        }
+    }
+
+    // Returns true if n is new in the solution parameters of key
+    boolean solutionParameterReachability(NOpNode key, NNode n) {
+        if (!(n instanceof NObjectNode)) {
+            return false;
+        }
+        if (!isValidFlowByType(n, key, VarType.Parameter)) {
+            return false;
+        }
+        if (n instanceof NViewAllocNode || n instanceof NInflNode) {
+            return solutionParameters.computeIfAbsent(key, k -> new NodeBitSet<>()).add(n);
+        } else {
+            if (Configs.sanityCheck) {
+                throw new RuntimeException("Unhandled reaching parameter at " + key + " for " + n);
+            } else {
+                Logger.verb("WARNING", "Unhandled reaching parameter at " + key + " for " + n);
             }
+            return false;
         }
     }
 
     // AddView2, SetId, SetText, FindView1, FindView3
     void solutionReceiverReachability() {
         for (Map.Entry<NOpNode, Set<NNode>> entry : reachingReceiverViews.entrySet()) {
-            NOpNode src = entry.getKey();
-            Set<NNode> receivers = solutionReceivers.get(src);
             for (NNode tgt : entry.getValue()) {
-                if (!(tgt instanceof NObjectNode)) {
-                    continue;
-                }
-                if (!isValidFlowByType(tgt, src, VarType.Receiver)) {
-                    continue;
-                }
-                if (tgt instanceof NViewAllocNode || tgt instanceof NOptionsMenuNode ||
-                        tgt instanceof NContextMenuNode || tgt instanceof NInflNode) {
-                    if (receivers == null) {
-                        receivers = Sets.newHashSet();
-                        solutionReceivers.put(src, receivers);
-                    }
-                    receivers.add(tgt);
-                } else {
-                    if (Configs.sanityCheck) {
-                        throw new RuntimeException("Unhandled reaching receiver at " + src + " for " + tgt);
-                    } else {
-                        Logger.verb("WARNING", "Unhandled reaching receiver at " + src + " for " + tgt);
-                    }
-                }
+                solutionReceiverReachability(entry.getKey(), tgt);
+            }
+        }
+    }
+
+    // Returns true if tgt is new in the solution receivers of src
+    boolean solutionReceiverReachability(NOpNode src, NNode tgt) {
+        if (!(tgt instanceof NObjectNode)) {
+            return false;
+        }
+        if (!isValidFlowByType(tgt, src, VarType.Receiver)) {
+            return false;
+        }
+        if (tgt instanceof NViewAllocNode || tgt instanceof NOptionsMenuNode ||
+                tgt instanceof NContextMenuNode || tgt instanceof NInflNode) {
+            return solutionReceivers.computeIfAbsent(src, k -> new NodeBitSet<>()).add(tgt);
+        } else {
+            if (Configs.sanityCheck) {
+                throw new RuntimeException("Unhandled reaching receiver at " + src + " for " + tgt);
+            } else {
+                Logger.verb("WARNING", "Unhandled reaching receiver at " + src + " for " + tgt);
             }
+            return false;
         }
     }
 
@@ -260,34 +625,38 @@ public class FixpointSolver {
             return;
         }
         for (NOpNode n : nodes) {
-            solutionResults.computeIfAbsent(n, k -> Sets.newHashSet());
+            solutionResults.computeIfAbsent(n, k -> new NodeBitSet<>());
         }
     }
 
     void solutionListenersReachability() {
         // SetListener
         for (Map.Entry<NOpNode, Set<NNode>> entry : reachingListeners.entrySet()) {
-            NOpNode setListener = entry.getKey();
-            Set<NNode> reachables = entry.getValue();
-            for (NNode n : reachables) {
-                if (!(n instanceof NObjectNode)) {
-                    continue;
-                }
-                NObjectNode listenerObject = (NObjectNode) n;
-                // Sanity check. If fail, exception.
-                if (graphUtil.reachableNodes(listenerObject).contains(setListener.getParameter())) {
-                    if (!listenerSpecs.isListenerType(listenerObject.getClassType())) {
-                        continue;
-                    }
-                    MultiMapUtil.addKeyAndHashSetElement(solutionListeners, setListener, n);
-                } else {
-                    if (Configs.sanityCheck) {
-                        throw new RuntimeException("Unhandled reaching listeners at " + setListener + " for " + n);
-                    } else {
-                        Logger.verb("WARNING", "Unhandled reaching listeners at " + setListener + " for " + n);
-                    }
-                }
+            for (NNode n : entry.getValue()) {
+                solutionListenersReachability(entry.getKey(), n);
+            }
+        }
+    }
+
+    // Returns true if n is new in the solution listeners of setListener
+    boolean solutionListenersReachability(NOpNode setListener, NNode n) {
+        if (!(n instanceof NObjectNode)) {
+            return false;
+        }
+        NObjectNode listenerObject = (NObjectNode) n;
+        // Sanity check. If fail, exception.
+        if (graphUtil.reachableNodes(listenerObject).contains(setListener.getParameter())) {
+            if (!listenerSpecs.isListenerType(listenerObject.getClassType())) {
+                return false;
             }
+            return solutionListeners.computeIfAbsent(setListener, k -> new NodeBitSet<>()).add(n);
+        } else {
+            if (Configs.sanityCheck) {
+                throw new RuntimeException("Unhandled reaching listeners at " + setListener + " for " + n);
+            } else {
+                Logger.verb("WARNING", "Unhandled reaching listeners at " + setListener + " for " + n);
+            }
+            return false;
         }
     }
 
@@ -295,16 +664,18 @@ public class FixpointSolver {
         for (Map.Entry<NOpNode, Set<NNode>> entry : map.entrySet()) {
             NOpNode target = entry.getKey();
             for (NNode n : entry.getValue()) {
-                if (!(n instanceof NOpNode)) {
-                    continue;
-                }
-                NOpNode source = (NOpNode) n;
-                Set<NOpNode> targetSet = reverseMap.computeIfAbsent(source, k -> Sets.newHashSet());
-                targetSet.add(target);
+                reverseReachability(target, n, reverseMap);
             }
         }
     }
 
+    void reverseReachability(NOpNode target, NNode n, Map<NOpNode, Set<NOpNode>> reverseMap) {
+        if (!(n instanceof NOpNode)) {
+            return;
+        }
+        addToSet(reverseMap, (NOpNode) n, target);
+    }
+
     void reverseParameterReachability() {
         reverseReachability(reachingParameterViews, reachedParameterViews);
     }
@@ -324,16 +695,16 @@ public class FixpointSolver {
      * map reachingLayoutIds.
      */
     void layoutIdReachability() {
-        for (NLayoutIdNode layoutIdNode : flowgraph.allNLayoutIdNodes.values()) {
-            for (NNode target : graphUtil.reachableNodes(layoutIdNode)) {
+        forEachReachable("layoutIdReachability", Lists.newArrayList(flowgraph.allNLayoutIdNodes.values()),
+                (layoutIdNode, reachables, out) -> {
+            for (NNode target : reachables) {
                 if (!(target instanceof NOpNode)) {
                     continue;
                 }
                 NOpNode opNode = (NOpNode) target;
                 // NOTE: setId() could use layout id as parameter as well.
                 if (opNode.consumesLayoutId()) {
-                    Set<NLayoutIdNode> layouts = reachingLayoutIds.computeIfAbsent(opNode, k -> Sets.newHashSet());
-                    layouts.add(layoutIdNode);
+                    out.add(reachingLayoutIds, opNode, layoutIdNode);
                 } else {
                     // TODO Temp workaround for variable reuse issue
                     if (Configs.sanityCheck) {
@@ -344,22 +715,22 @@ public class FixpointSolver {
                     }
                 }
             }
-        }
+        });
     }
 
     /**
      * Look at all menu IDs and see what operation nodes use them.
      */
     void menuIdReachability() {
-        for (NMenuIdNode menuIdNode : flowgraph.allNMenuIdNodes.values()) {
-            for (NNode target : graphUtil.reachableNodes(menuIdNode)) {
+        forEachReachable("menuIdReachability", Lists.newArrayList(flowgraph.allNMenuIdNodes.values()),
+                (menuIdNode, reachables, out) -> {
+            for (NNode target : reachables) {
                 if (!(target instanceof NOpNode)) {
                     continue;
                 }
                 NOpNode opNode = (NOpNode) target;
                 if (opNode.consumesMenuId()) {
-                    Set<NMenuIdNode> menus = reachingMenuIds.computeIfAbsent(opNode, k -> Sets.newHashSet());
-                    menus.add(menuIdNode);
+                    out.add(reachingMenuIds, opNode, menuIdNode);
                 } else {
                     // TODO Temp workaround for variable reuse issue
                     if (Configs.sanityCheck) {
@@ -370,12 +741,12 @@ public class FixpointSolver {
                     }
                 }
             }
-        }
+        });
     }
 
     void windowReachability() {
-        for (NWindowNode windowNode : NWindowNode.windowNodes) {
-            Set<NNode> reachables = graphUtil.reachableNodes(windowNode);
+        forEachReachable("windowReachability", Lists.newArrayList(NWindowNode.windowNodes),
+                (windowNode, reachables, out) -> {
             for (NNode target : reachables) {
                 if (!(target instanceof NOpNode)) {
                     continue;
@@ -383,53 +754,55 @@ public class FixpointSolver {
                 NOpNode opNode = (NOpNode) target;
                 if ((opNode instanceof NInflate2OpNode || opNode instanceof NAddView1OpNode
                         || opNode instanceof NFindView2OpNode) && reachables.contains(opNode.getReceiver())) {
-                    MultiMapUtil.addKeyAndHashSetElement(reachingWindows, opNode, windowNode);
+                    out.add(reachingWindows, opNode, windowNode);
                 } else if (opNode instanceof NSetListenerOpNode && reachables.contains(opNode.getParameter())) {
-                    MultiMapUtil.addKeyAndHashSetElement(reachingListeners, opNode, windowNode);
+                    out.add(reachingListeners, opNode, windowNode);
                 }
             }
-        }
+        });
     }
 
     void optionsMenuReachability() {
-        for (NOptionsMenuNode optionsMenu : flowgraph.activityClassToOptionsMenu.values()) {
-            for (NNode target : graphUtil.reachableNodes(optionsMenu)) {
+        forEachReachable("optionsMenuReachability", Lists.newArrayList(flowgraph.activityClassToOptionsMenu.values()),
+                (optionsMenu, reachables, out) -> {
+            for (NNode target : reachables) {
                 if (!(target instanceof NOpNode)) {
                     continue;
                 }
                 NOpNode opNode = (NOpNode) target;
                 if (opNode instanceof NFindView1OpNode || opNode instanceof NFindView3OpNode
                         || opNode instanceof NAddView2OpNode || opNode instanceof NMenuInflateOpNode) {
-                    Set<NOptionsMenuNode> optionsMenus = reachingOptionsMenus.computeIfAbsent(opNode, k -> Sets.newHashSet());
-                    optionsMenus.add(optionsMenu);
+                    out.add(reachingOptionsMenus, opNode, optionsMenu);
                 } else {
-                    String fullClassName = Thread.currentThread().getStackTrace()[2].getClassName();
-                    String methodName = Thread.currentThread().getStackTrace()[2].getMethodName();
-                    int lineNumber = Thread.currentThread().getStackTrace()[2].getLineNumber();
-                    Logger.verb("WARNING", String.format("OptionsMenu Reached %s at %s at %s at line %d",
-                            opNode, fullClassName, methodName, lineNumber));
+                    Logger.verb("WARNING", String.format("OptionsMenu %s Reached %s in optionsMenuReachability",
+                            optionsMenu, opNode));
                 }
             }
-        }
+        });
     }
 
     void contextMenuReachability() {
-        for (NContextMenuNode contextMenu : flowgraph.menuVarNodeToContextMenus.values()) {
-            contextMenuReachability(contextMenu);
-        }
+        forEachReachable("contextMenuReachability", Lists.newArrayList(flowgraph.menuVarNodeToContextMenus.values()),
+                this::contextMenuReachability);
     }
 
     Set<NOpNode> contextMenuReachability(NContextMenuNode contextMenu) {
+        MapAdditions out = new MapAdditions();
+        Set<NOpNode> opNodes = contextMenuReachability(contextMenu, graphUtil.reachableNodes(contextMenu), out);
+        out.apply();
+        return opNodes;
+    }
+
+    Set<NOpNode> contextMenuReachability(NContextMenuNode contextMenu, Set<NNode> reachables, MapAdditions out) {
         Set<NOpNode> opNodes = Sets.newHashSet();
-        for (NNode target : graphUtil.reachableNodes(contextMenu)) {
+        for (NNode target : reachables) {
             if (!(target instanceof NOpNode)) {
                 continue;
             }
             NOpNode opNode = (NOpNode) target;
             if (opNode instanceof NFindView1OpNode || opNode instanceof NFindView3OpNode
                     || opNode instanceof NAddView2OpNode || opNode instanceof NMenuInflateOpNode) {
-                Set<NContextMenuNode> contextMenus = reachingContextMenus.computeIfAbsent(opNode, k -> Sets.newHashSet());
-                contextMenus.add(contextMenu);
+                out.add(reachingContextMenus, opNode, contextMenu);
                 opNodes.add(opNode);
             } else {
                 throw new RuntimeException("ContextMenu reaches " + opNode);
@@ -439,27 +812,28 @@ public class FixpointSolver {
     }
 
     void viewIdReachability() {
-        for (NWidgetIdNode viewIdNode : flowgraph.allNWidgetIdNodes.values()) {
-            for (NNode target : graphUtil.reachableNodes(viewIdNode)) {
+        forEachReachable("viewIdReachability", Lists.newArrayList(flowgraph.allNWidgetIdNodes.values()),
+                (viewIdNode, reachables, out) -> {
+            for (NNode target : reachables) {
                 if (!(target instanceof NOpNode)) {
                     continue;
                 }
                 NOpNode opNode = (NOpNode) target;
                 if (opNode instanceof NFindView1OpNode || opNode instanceof NFindView2OpNode
                         || opNode instanceof NSetIdOpNode) {
-                    Set<NIdNode> views = reachingViewIds.computeIfAbsent(opNode, k -> Sets.newHashSet());
-                    views.add(viewIdNode);
+                    out.add(reachingViewIds, opNode, viewIdNode);
                 }
             }
-        }
-        for (NAnonymousIdNode anonymousIdNode : flowgraph.anonymousIdNodes.values()) {
-            for (NNode target : graphUtil.reachableNodes(anonymousIdNode)) {
+        });
+        forEachReachable("anonymousIdReachability", Lists.newArrayList(flowgraph.anonymousIdNodes.values()),
+                (anonymousIdNode, reachables, out) -> {
+            for (NNode target : reachables) {
                 if (!(target instanceof NOpNode)) {
                     continue;
                 }
                 NOpNode opNode = (NOpNode) target;
                 if (opNode instanceof NFindView1OpNode) {
-                    MultiMapUtil.addKeyAndHashSetElement(reachingViewIds, opNode, anonymousIdNode);
+                    out.add(reachingViewIds, opNode, anonymousIdNode);
                 } else {
                     if (Configs.sanityCheck) {
                         throw new RuntimeException(anonymousIdNode + " reaching " + opNode);
@@ -468,63 +842,73 @@ public class FixpointSolver {
                     }
                 }
             }
-        }
+        });
     }
 
     // For both AddView1 and AddView2, there is a formal parameter that is a
     // view.
     // In AddView2, this is the *child* to be added.
     void viewAndListenerAsParameterAndReceiverReachability() {
-        // Find all nodes that can "produce" view objects
+        // Find all nodes that can "produce" view objects, and any object
+        // could be a listener
+        List<NNode> sources = Lists.newArrayList();
         for (NNode n : flowgraph.allNNodes) {
-            if (n instanceof NViewAllocNode || n instanceof NInflNode || n instanceof NOptionsMenuNode
-                    || n instanceof NContextMenuNode) {
-                parameterAndReceiverViewReachability(n);
-            } else if (n instanceof NOpNode) {
-                NOpNode opNode = (NOpNode) n;
-                if (opNode instanceof NFindView1OpNode || opNode instanceof NFindView2OpNode
-                        || opNode instanceof NFindView3OpNode || opNode instanceof NInflate1OpNode) {
-                    parameterAndReceiverViewReachability(n);
-                }
-            }
-            // Any object could be a listener
-            if (n instanceof NObjectNode) {
-                listenerReachability(n);
+            if (isViewProducer(n) || n instanceof NObjectNode) {
+                sources.add(n);
             }
         }
+        forEachReachable("viewAndListenerReachability", sources, this::viewAndListenerReachability);
         // patch in some special cases
-
+        MapAdditions out = new MapAdditions();
         // OptionsMenu as receiver
-         propagateOptionsMenuToReceivers();
+         propagateOptionsMenuToReceivers(out);
         // ContextMenu as receiver
-         propagateContextMenuToReceivers();
+         propagateContextMenuToReceivers(out);
+        out.apply();
+    }
+
+    void viewAndListenerReachability(NNode n, Set<NNode> reachables, MapAdditions out) {
+        if (isViewProducer(n)) {
+            parameterAndReceiverViewReachability(n, reachables, out);
+        }
+        if (n instanceof NObjectNode) {
+            listenerReachability(n, reachables, out);
+        }
     }
 
-    void propagateOptionsMenuToReceivers() {
+    void propagateOptionsMenuToReceivers(MapAdditions out) {
         for (Map.Entry<NOpNode, Set<NOptionsMenuNode>> entry : reachingOptionsMenus.entrySet()) {
             NOpNode key = entry.getKey();
             if (key instanceof NMenuInflateOpNode) {
                 continue;
             }
-            Set<NNode> set = reachingReceiverViews.computeIfAbsent(key, k -> Sets.newHashSet());
-            set.addAll(entry.getValue());
+            for (NOptionsMenuNode optionsMenu : entry.getValue()) {
+                out.add(reachingReceiverViews, key, optionsMenu);
+            }
         }
     }
 
-    void propagateContextMenuToReceivers() {
+    void propagateContextMenuToReceivers(MapAdditions out) {
         // handle ContextMenu
         for (Map.Entry<NOpNode, Set<NContextMenuNode>> entry : reachingContextMenus.entrySet()) {
             NOpNode key = entry.getKey();
             if (key instanceof NMenuInflateOpNode) {
                 continue;
             }
-            MultiMapUtil.addKeyAndHashSet(reachingReceiverViews, key, entry.getValue());
+            for (NContextMenuNode contextMenu : entry.getValue()) {
+                out.add(reachingReceiverViews, key, contextMenu);
+            }
         }
     }
 
+    boolean isViewProducer(NNode n) {
+        return n instanceof NViewAllocNode || n instanceof NInflNode || n instanceof NOptionsMenuNode
+                || n instanceof NContextMenuNode || n instanceof NFindView1OpNode || n instanceof NFindView2OpNode
+                || n instanceof NFindView3OpNode || n instanceof NInflate1OpNode;
+    }
+
     // DDDD
-    void parameterAndReceiverViewReachability(NNode source) {
-        Set<NNode> reachableNodes = graphUtil.reachableNodes(source);
+    void parameterAndReceiverViewReachability(NNode source, Set<NNode> reachableNodes, MapAdditions out) {
         for (NNode target : reachableNodes) {
             if (!(target instanceof NOpNode)) {
                 continue;
@@ -533,22 +917,18 @@ public class FixpointSolver {
             // View as parameter
             if (opNode instanceof NAddView1OpNode
                     || (opNode instanceof NAddView2OpNode && reachableNodes.contains(opNode.getParameter()))) {
-                MultiMapUtil.addKeyAndHashSetElement(reachingParameterViews, opNode, source);
+                out.add(reachingParameterViews, opNode, source);
             } else {
                 // Maybe SetListener
-                listenerReachability(source, opNode, reachableNodes);
+                listenerReachability(source, opNode, reachableNodes, out);
             }
             // View as receiver
             if (opNode instanceof NFindView1OpNode || opNode instanceof NFindView3OpNode
                     || opNode instanceof NSetIdOpNode) {
-                MultiMapUtil.addKeyAndHashSetElement(reachingReceiverViews, opNode, source);
+                out.add(reachingReceiverViews, opNode, source);
             } else if (opNode instanceof NSetListenerOpNode) {
                 SootMethod call = opNode.callSite.getO2();
                 MethodHelper mh = new MethodHelper(call);
-                SootClass klass = call.getDeclaringClass();
-                if (!class2IdName.containsKey(klass)) {
-                    class2IdName.put(klass, mh.getClassField());
-                }
                 Stmt s = opNode.callSite.getO1();
                 String uiIdFromUnit = mh.getUIIdFromSetListenerStmt(s);
                 if (uiIdFromUnit == null) //noinspection SpellCheckingInspection
@@ -559,52 +939,37 @@ public class FixpointSolver {
                     // $r13 = new com.applovin.impl.adview.y
                     // specialinvoke $r13.<com.applovin.impl.adview.y: void <init>(com.applovin.impl.adview.az)>($r0)
                     // virtualinvoke $r10.<android.view.View: void setOnClickListener(android.view.View$OnClickListener)>($r13)
+                    out.addSetListenerReceiver(opNode, source, null);
                     continue;
                 }
 
-                if (!uiIdFromUnit.chars().allMatch(Character::isDigit)) {
-                    // if is a field name, we should turn it to numeric id
-                    Set<Pair<String, String>> tuple2s = class2IdName.get(klass);
-                    if (tuple2s == null) {
-                        continue;
-                    }
-                    for (Pair<String, String> tuple2 : tuple2s) {
-                        String id = tuple2.getO1();
-                        String name = tuple2.getO2();
-                        if (uiIdFromUnit.equals(name)) {
-                            uiIdFromUnit = id;
-                            break;
-                        }
-                    }
-                }
-
                 NVarNode receiver = opNode.getReceiver();
-                if (!reachableNodes.contains(receiver)) continue;
-                if (source.toString().contains(uiIdFromUnit)) {
-                    MultiMapUtil.addKeyAndHashSetElement(reachingReceiverViews, opNode, source);
+                if (!reachableNodes.contains(receiver)) {
+                    out.addSetListenerReceiver(opNode, source, null);
+                    continue;
                 }
+                out.addSetListenerReceiver(opNode, source, uiIdFromUnit);
             } else if (opNode instanceof NAddView2OpNode) {
                 NVarNode receiver = opNode.getReceiver();
                 if (!reachableNodes.contains(receiver)) continue;
-                MultiMapUtil.addKeyAndHashSetElement(reachingReceiverViews, opNode, source);
+                out.add(reachingReceiverViews, opNode, source);
             }
         }
     }
 
-    void listenerReachability(NNode source) {
-        Set<NNode> reachables = graphUtil.reachableNodes(source);
+    void listenerReachability(NNode source, Set<NNode> reachables, MapAdditions out) {
         for (NNode target : reachables) {
             if (!(target instanceof NOpNode)) {
                 continue;
             }
-            listenerReachability(source, (NOpNode) target, reachables);
+            listenerReachability(source, (NOpNode) target, reachables, out);
         }
     }
 
-    void listenerReachability(NNode source, NOpNode target, Set<NNode> reachables) {
+    void listenerReachability(NNode source, NOpNode target, Set<NNode> reachables, MapAdditions out) {
         if (target instanceof NSetListenerOpNode && reachables.contains(target.getParameter())) {
             // view as listener parameter
-            MultiMapUtil.addKeyAndHashSetElement(reachingListeners, target, source);
+            out.add(reachingListeners, target, source);
         }
     }
 
@@ -617,7 +982,7 @@ public class FixpointSolver {
     // we only handle NInflNode, but in general we need to cover other types of
     // nodes (e.g., NViewAllocNode) as well.
     void recordViewProducers(NNode objectNode, NOpNode producerNode) {
-        Set<NOpNode> flows = viewProducers.computeIfAbsent(objectNode, k -> Sets.newHashSet());
+        Set<NOpNode> flows = viewProducers.computeIfAbsent(objectNode, k -> new NodeBitSet<>());
         flows.add(producerNode);
     }
 
@@ -648,6 +1013,9 @@ public class FixpointSolver {
 
     void processViewInflateCalls() {
         for (Map.Entry<NOpNode, Set<NLayoutIdNode>> entry : reachingLayoutIds.entrySet()) {
+            if (budget.exhausted("FixpointSolver.inflate")) {
+                return;
+            }
             NOpNode opNode = entry.getKey();
             for (NLayoutIdNode layoutIdNode : entry.getValue()) {
                 if (opNode instanceof NInflate1OpNode) {
@@ -675,7 +1043,7 @@ public class FixpointSolver {
                         addViewToWindowRoot(windowNode, root);
 
                         if(!viewLayoutIds.containsKey(windowNode)){
-                            viewLayoutIds.put(windowNode, Sets.newHashSet());
+                            viewLayoutIds.put(windowNode, new NodeBitSet<>());
                         }
 
                         viewLayoutIds.get(windowNode).add(layoutIdNode);
@@ -688,6 +1056,9 @@ public class FixpointSolver {
 
     void processMenuInflateCalls() {
         for (Map.Entry<NOpNode, Set<NMenuIdNode>> entry : reachingMenuIds.entrySet()) {
+            if (budget.exhausted("FixpointSolver.inflate")) {
+                return;
+            }
             NOpNode opNode = entry.getKey();
             if (!(opNode instanceof NMenuInflateOpNode)) {
                 throw new RuntimeException("Menu id reaching non MenuInfalte node - " + opNode);
@@ -718,41 +1089,29 @@ public class FixpointSolver {
 
     void inflationEffectsToParameters(NOpNode opNode, NInflNode inflNode, Map<NOpNode, Set<NOpNode>> reached,
                                       Map<NOpNode, Set<NNode>> solution) {
-        for (Map.Entry<NOpNode, Set<NOpNode>> parameterAndCalls : reached.entrySet()) {
-            NOpNode parameter = parameterAndCalls.getKey();
-            Set<NOpNode> calls = parameterAndCalls.getValue();
-            if (!parameter.equals(opNode)) {
-                continue;
-            }
-            // "parameter" flows into "call", and a solution for "parameter" is
-            // "inflNode"
-            // solutionParameters saves the parameter solution for each call
-            // i.e., solutionParameters: call -> set<inflNode>. Same for
-            // receivers.
-            for (NOpNode call : calls) {
-                if (!isValidFlowByType(inflNode, call, VarType.Parameter)) {
-                    continue;
-                }
-                Set<NNode> solutions = solution.computeIfAbsent(call, k -> Sets.newHashSet());
-                solutions.add(inflNode);
-            }
-        }
+        inflationEffects(opNode, inflNode, reached, solution, VarType.Parameter);
     }
 
     void inflationEffectsToReceivers(NOpNode opNode, NInflNode inflNode) {
-        for (Map.Entry<NOpNode, Set<NOpNode>> receiverAndCalls : reachedReceiverViews.entrySet()) {
-            NOpNode receiver = receiverAndCalls.getKey();
-            Set<NOpNode> calls = receiverAndCalls.getValue();
-            if (!receiver.equals(opNode)) {
+        inflationEffects(opNode, inflNode, reachedReceiverViews, solutionReceivers, VarType.Receiver);
+    }
+
+    // "opNode" flows into each of its reached calls, and a solution for
+    // "opNode" is "inflNode". The solution map saves the parameter (or
+    // receiver) solution for each call, i.e., solutionParameters: call ->
+    // set<inflNode>.
+    void inflationEffects(NOpNode opNode, NInflNode inflNode, Map<NOpNode, Set<NOpNode>> reached,
+                          Map<NOpNode, Set<NNode>> solution, VarType type) {
+        Set<NOpNode> calls = reached.get(opNode);
+        if (calls == null) {
+            return;
+        }
+        for (NOpNode call : calls) {
+            if (!isValidFlowByType(inflNode, call, type)) {
                 continue;
             }
-            for (NOpNode call : calls) {
-                if (!isValidFlowByType(inflNode, call, VarType.Receiver)) {
-                    continue;
-                }
-                Set<NNode> solutions = solutionReceivers.computeIfAbsent(call, k -> Sets.newHashSet());
-                solutions.add(inflNode);
-            }
+            Set<NNode> solutions = solution.computeIfAbsent(call, k -> new NodeBitSet<>());
+            solutions.add(inflNode);
         }
     }
 
@@ -785,7 +1144,7 @@ public class FixpointSolver {
                 // reachingReceiverViews
                 Set<NOpNode> opNodes = contextMenuReachability(contextMenu);
                 for (NOpNode opNode : opNodes) {
-                    MultiMapUtil.addKeyAndHashSetElement(solutionReceivers, opNode, contextMenu);
+                    solutionReceivers.computeIfAbsent(opNode, k -> new NodeBitSet<>()).add(contextMenu);
                 }
             }
         }
@@ -801,10 +1160,10 @@ public class FixpointSolver {
             // View as parameter
             if (opNode instanceof NAddView1OpNode
                     || (opNode instanceof NAddView2OpNode && reachables.contains(opNode.getParameter()))) {
-                Set<NNode> parameterSet = solutionParameters.computeIfAbsent(opNode, k -> Sets.newHashSet());
+                Set<NNode> parameterSet = solutionParameters.computeIfAbsent(opNode, k -> new NodeBitSet<>());
                 parameterSet.add(inflNode);
             } else if (opNode instanceof NSetListenerOpNode && reachables.contains(opNode.getParameter())) {
-                MultiMapUtil.addKeyAndHashSetElement(solutionListeners, opNode, inflNode);
+                solutionListeners.computeIfAbsent(opNode, k -> new NodeBitSet<>()).add(inflNode);
             }
 
             // View as receiver
@@ -812,7 +1171,7 @@ public class FixpointSolver {
                     || opNode instanceof NSetIdOpNode
                     || (opNode instanceof NSetListenerOpNode && reachables.contains(opNode.getReceiver()))
                     || (opNode instanceof NAddView2OpNode && reachables.contains(opNode.getReceiver()))) {
-                Set<NNode> receiverSet = solutionReceivers.computeIfAbsent(opNode, k -> Sets.newHashSet());
+                Set<NNode> receiverSet = solutionReceivers.computeIfAbsent(opNode, k -> new NodeBitSet<>());
                 receiverSet.add(inflNode);
             }
         }
@@ -934,50 +1293,329 @@ public class FixpointSolver {
     }
 
     // Now, we are done with inflation. Let's process other NOpNodes
+    // The op nodes of viewAndListenerPropagation() in the order they are
+    // processed in a round: FindView1/2/3 first, then AddView1/2, SetId and
+    // SetListener.
+    List<NOpNode> propagationOrder;
+    Map<NOpNode, Integer> propagationIndex;
+    int numFindViews;
+    int firstSetListener;
+
+    // dirty[i] is set when an input of propagationOrder[i] may have changed
+    // since it was last processed
+    boolean[] dirty;
+
+    // NNode.nextId once inflation is done, before the first round
+    int numNodesBeforePropagation;
+
+    // The op nodes that are processed independently of each other, as
+    // ascending indices into propagationOrder; null once the paths changed
+    List<int[]> components;
+
+    /**
+     * Processes the op nodes round by round until nothing changes, like a
+     * round-robin loop, but skips the nodes none of whose inputs changed since
+     * they were last processed, as processing them again would do nothing.
+     * The inputs are the receivers, parameters and listeners propagated from
+     * other nodes, and the view hierarchy and view ids for FindView nodes.
+     * A new SetListener edge changes the paths, and updating them marks the
+     * nodes with new inputs.
+     *
+     * In each round, the nodes other than SetListener are processed by
+     * component (see partitionOpNodes()), each component as a task on the
+     * pool. Nodes of different components do not affect each other, so this
+     * ends the same as processing them all in order. The SetListener nodes
+     * change the flow graph, and are processed after the tasks, in order.
+     *
+     * Each round counts as an iteration of the budget. Once it is used up,
+     * the nodes not processed yet are left dirty.
+     *
+     * The state of the rounds is checkpointed after a round, at most every
+     * Configs.checkpointInterval seconds. When resuming, it is restored
+     * before the first round, and the rounds continue from there.
+     */
     void viewAndListenerPropagation() {
-        while (true) {
-            boolean changed = false;
-            for (NOpNode findView1 : NOpNode.getNodes(NFindView1OpNode.class)) {
-                if (processFindView1((NFindView1OpNode) findView1)) {
-                    changed = true;
-                }
+        propagationOrder = Lists.newArrayList();
+        propagationOrder.addAll(NOpNode.getNodes(NFindView1OpNode.class));
+        propagationOrder.addAll(NOpNode.getNodes(NFindView2OpNode.class));
+        propagationOrder.addAll(NOpNode.getNodes(NFindView3OpNode.class));
+        numFindViews = propagationOrder.size();
+        propagationOrder.addAll(NOpNode.getNodes(NAddView1OpNode.class));
+        propagationOrder.addAll(NOpNode.getNodes(NAddView2OpNode.class));
+        propagationOrder.addAll(NOpNode.getNodes(NSetIdOpNode.class));
+        firstSetListener = propagationOrder.size();
+        propagationOrder.addAll(NOpNode.getNodes(NSetListenerOpNode.class));
+        propagationIndex = Maps.newHashMapWithExpectedSize(propagationOrder.size());
+        for (int i = 0; i < propagationOrder.size(); i++) {
+            propagationIndex.put(propagationOrder.get(i), i);
+        }
+        dirty = new boolean[propagationOrder.size()];
+        Arrays.fill(dirty, true);
+        propagatedCalls = new ConcurrentHashMap<>();
+        numTypeChecks = new LongAdder();
+        components = null;
+        numNodesBeforePropagation = NNode.nextId;
+        Checkpoint checkpoint = Checkpoint.v();
+        if (resumePropagation && checkpoint.restorePropagation(this)) {
+            internReachability();
+            numAddedEdgesSeen = NNode.getAddedEdgeSources().size();
+        }
+
+        int rounds = 0;
+        long evaluations = 0;
+        int pathUpdates = 0;
+        int partitions = 0;
+        while (hasDirtyNode(0, dirty.length)) {
+            if (budget.iterate("FixpointSolver.propagation")) {
+                break;
             }
-            for (NOpNode findView2 : NOpNode.getNodes(NFindView2OpNode.class)) {
-                if (processFindView2((NFindView2OpNode) findView2)) {
-                    changed = true;
-                }
+            rounds++;
+            if (components == null) {
+                partitionOpNodes(partitions == 0);
+                partitions++;
             }
-            for (NOpNode findView3 : NOpNode.getNodes(NFindView3OpNode.class)) {
-                if (processFindView3((NFindView3OpNode) findView3)) {
-                    changed = true;
+            List<ForkJoinTask<Integer>> tasks = Lists.newArrayList();
+            for (int[] component : components) {
+                if (hasDirtyNode(component)) {
+                    tasks.add(pool.submit(() -> processComponent(component)));
                 }
             }
-            for (NOpNode addView1 : NOpNode.getNodes(NAddView1OpNode.class)) {
-                if (processAddView1((NAddView1OpNode) addView1)) {
-                    changed = true;
-                }
+            for (ForkJoinTask<Integer> task : tasks) {
+                evaluations += task.join();
             }
-            for (NOpNode addView2 : NOpNode.getNodes(NAddView2OpNode.class)) {
-                if (processAddView2((NAddView2OpNode) addView2)) {
-                    changed = true;
+            for (int i = firstSetListener; i < dirty.length; i++) {
+                if (!dirty[i]) {
+                    continue;
                 }
-            }
-            for (NOpNode setId : NOpNode.getNodes(NSetIdOpNode.class)) {
-                if (processSetId((NSetIdOpNode) setId)) {
-                    changed = true;
+                if (budget.exhausted("FixpointSolver.propagation")) {
+                    break;
+                }
+                dirty[i] = false;
+                evaluations++;
+                NSetListenerOpNode node = (NSetListenerOpNode) propagationOrder.get(i);
+                if (processSetListener(node)) {
+                    // SetListener: need to update path summary if anything changes
+                    updatePathsFromViewProducerToViewConsumer();
+                    pathUpdates++;
+                    // it stops at the first new edge
+                    markDirty(node);
+                    components = null;
                 }
             }
-            // SetListener: need to recompute path summary if anything changes
-            for (NOpNode setListener : NOpNode.getNodes(NSetListenerOpNode.class)) {
-                if (processSetListener((NSetListenerOpNode) setListener)) {
-                    changed = true;
-                    // recompute the paths
-                    computePathsFromViewProducerToViewConsumer();
+            checkpoint.savePropagation(this);
+        }
+        System.out.println(String.format(
+                "[FixpointSolver] Propagation: %d rounds, %d evaluations of %d op nodes "
+                        + "(%d for round-robin), %d path updates, %d partitions, %d type checks for forwarded views",
+                rounds, evaluations, dirty.length, (long) rounds * dirty.length, pathUpdates, partitions,
+                numTypeChecks.sum()));
+        dirty = null;
+        components = null;
+        propagatedCalls = null;
+        propagationOrder = null;
+        propagationIndex = null;
+    }
+
+    // Processes the dirty nodes of a component once, in order, except the
+    // SetListener nodes; returns how many were processed
+    int processComponent(int[] component) {
+        int evaluations = 0;
+        for (int i : component) {
+            if (i >= firstSetListener) {
+                break;
+            }
+            if (!dirty[i]) {
+                continue;
+            }
+            if (budget.exhausted("FixpointSolver.propagation")) {
+                break;
+            }
+            dirty[i] = false;
+            evaluations++;
+            NOpNode node = propagationOrder.get(i);
+            boolean hierarchyChanged = false;
+            if (node instanceof NFindView1OpNode) {
+                processFindView1((NFindView1OpNode) node);
+            } else if (node instanceof NFindView2OpNode) {
+                processFindView2((NFindView2OpNode) node);
+            } else if (node instanceof NFindView3OpNode) {
+                processFindView3((NFindView3OpNode) node);
+            } else if (node instanceof NAddView1OpNode) {
+                hierarchyChanged = processAddView1((NAddView1OpNode) node);
+            } else if (node instanceof NAddView2OpNode) {
+                hierarchyChanged = processAddView2((NAddView2OpNode) node);
+            } else if (node instanceof NSetIdOpNode) {
+                hierarchyChanged = processSetId((NSetIdOpNode) node);
+            }
+            if (hierarchyChanged) {
+                // views or their ids changed; the FindView nodes may see them
+                for (int j : component) {
+                    if (j >= numFindViews) {
+                        break;
+                    }
+                    dirty[j] = true;
                 }
             }
-            if (!changed) {
+        }
+        return evaluations;
+    }
+
+    boolean hasDirtyNode(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (dirty[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean hasDirtyNode(int[] component) {
+        for (int i : component) {
+            if (i >= firstSetListener) {
                 break;
             }
+            if (dirty[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void markDirty(NOpNode node) {
+        Integer i = propagationIndex.get(node);
+        if (i != null) {
+            dirty[i] = true;
+        }
+    }
+
+    /**
+     * Splits the op nodes into the weakly connected components of the graph
+     * linking each op node to the nodes in its solutions and reaching
+     * windows and to the calls its results flow to, each view to its parents
+     * and children, and each window to its roots. Apart from SetListener,
+     * processing an op node only reads and changes the views, windows and
+     * solutions of its component. The solutions only grow within their
+     * component until the paths change.
+     */
+    void partitionOpNodes(boolean log) {
+        NodeUnion union = new NodeUnion();
+        for (NOpNode node : propagationOrder) {
+            union.indexOf(node);
+        }
+        for (NOpNode node : propagationOrder) {
+            union.unionAll(node, solutionReceivers.get(node));
+            union.unionAll(node, solutionParameters.get(node));
+            union.unionAll(node, solutionListeners.get(node));
+            union.unionAll(node, solutionResults.get(node));
+            union.unionAll(node, reachingWindows.get(node));
+            union.unionAll(node, reachedParameterViews.get(node));
+            union.unionAll(node, reachedListeners.get(node));
+            union.unionAll(node, reachedReceiverViews.get(node));
+        }
+        // the list of nodes grows while the hierarchy is walked
+        for (int i = 0; i < union.nodes.size(); i++) {
+            NNode n = union.nodes.get(i);
+            union.unionAll(n, n.getChildren());
+            for (Iterator<NNode> iter = n.getParents(); iter.hasNext(); ) {
+                union.union(n, iter.next());
+            }
+            if (n instanceof NActivityNode) {
+                union.unionAll(n, activityRoots.get(n));
+            } else if (n instanceof NDialogNode) {
+                union.unionAll(n, dialogRoots.get(n));
+            }
+        }
+
+        int size = propagationOrder.size();
+        int[] componentOf = new int[size];
+        int[] rootComponent = new int[union.nodes.size()];
+        Arrays.fill(rootComponent, -1);
+        List<Integer> sizes = Lists.newArrayList();
+        for (int i = 0; i < size; i++) {
+            int root = union.find(i);
+            if (rootComponent[root] < 0) {
+                rootComponent[root] = sizes.size();
+                sizes.add(0);
+            }
+            componentOf[i] = rootComponent[root];
+            sizes.set(componentOf[i], sizes.get(componentOf[i]) + 1);
+        }
+        components = Lists.newArrayListWithCapacity(sizes.size());
+        for (int componentSize : sizes) {
+            components.add(new int[componentSize]);
+        }
+        int[] filled = new int[sizes.size()];
+        for (int i = 0; i < size; i++) {
+            int c = componentOf[i];
+            components.get(c)[filled[c]++] = i;
+        }
+        if (log) {
+            logPartition(sizes);
+        }
+    }
+
+    // Component count and sizes by powers of two
+    void logPartition(List<Integer> sizes) {
+        int largest = 0;
+        SortedMap<Integer, Integer> histogram = new TreeMap<>();
+        for (int size : sizes) {
+            largest = Math.max(largest, size);
+            int bucket = Integer.highestOneBit(size);
+            histogram.merge(bucket, 1, Integer::sum);
+        }
+        StringBuilder buckets = new StringBuilder();
+        for (Map.Entry<Integer, Integer> entry : histogram.entrySet()) {
+            int low = entry.getKey();
+            buckets.append(buckets.length() == 0 ? "" : ", ")
+                    .append(low == 1 ? "1" : low + "-" + (2 * low - 1)).append(": ").append(entry.getValue());
+        }
+        System.out.println(String.format("[FixpointSolver] Partition: %d op nodes in %d components, largest %d (%s)",
+                propagationOrder.size(), sizes.size(), largest, buckets));
+    }
+
+    // Union-find over the nodes of partitionOpNodes(), numbered as they come
+    static class NodeUnion {
+        final Map<NNode, Integer> index = Maps.newHashMap();
+        final List<NNode> nodes = Lists.newArrayList();
+        int[] parent = new int[64];
+
+        int indexOf(NNode n) {
+            Integer i = index.get(n);
+            if (i == null) {
+                i = nodes.size();
+                index.put(n, i);
+                nodes.add(n);
+                if (i == parent.length) {
+                    parent = Arrays.copyOf(parent, 2 * i);
+                }
+                parent[i] = i;
+            }
+            return i;
+        }
+
+        int find(int i) {
+            while (parent[i] != i) {
+                parent[i] = parent[parent[i]];
+                i = parent[i];
+            }
+            return i;
+        }
+
+        void union(NNode a, NNode b) {
+            int x = find(indexOf(a));
+            int y = find(indexOf(b));
+            if (x != y) {
+                parent[Math.max(x, y)] = Math.min(x, y);
+            }
+        }
+
+        void unionAll(NNode a, Collection<? extends NNode> others) {
+            if (others == null) {
+                return;
+            }
+            for (NNode b : others) {
+                union(a, b);
+            }
         }
     }
 
@@ -994,7 +1632,7 @@ public class FixpointSolver {
             return false;
         }
         Set<NNode> solution = solutionResults.get(node);
-        int oldSize = solution.size();
+        List<NNode> added = Lists.newArrayList();
         for (NNode receiver : receivers) {
             // Compute descendantNodes() to walk the view hierarchy
             Set<NNode> descendants = graphUtil.descendantNodes(receiver);
@@ -1004,7 +1642,9 @@ public class FixpointSolver {
                     NNode idNode = extractIdNode(lhs);
                     if (viewIds.contains(idNode)) {
                         found = true;
-                        solution.add(lhs);
+                        if (solution.add(lhs)) {
+                            added.add(lhs);
+                        }
                         recordViewProducers(lhs, node);
                     }
                 }
@@ -1015,17 +1655,19 @@ public class FixpointSolver {
             if (!found && node.type == FindView1Type.MenuFindItem) {
                 descendants.remove(receiver);
                 for (NNode lhs : descendants) {
-                    solution.add(lhs);
+                    if (solution.add(lhs)) {
+                        added.add(lhs);
+                    }
                     recordViewProducers(lhs, node);
                     // System.out.println(" * lhs-item: " + lhs);
                 }
             }
         }
-        if (oldSize == solution.size()) {
+        if (added.isEmpty()) {
             return false;
         }
         // Propagate the change to affected nodes
-        propagateToParametersAndReceivers(solution, node);
+        propagateToParametersAndReceivers(solution, added, node);
         return true;
     }
 
@@ -1040,7 +1682,7 @@ public class FixpointSolver {
             return false;
         }
         Set<NNode> solution = solutionResults.get(node);
-        int oldSize = solution.size();
+        List<NNode> added = Lists.newArrayList();
         for (NWindowNode window : windows) {
             for (NIdNode id : viewIds) {
                 if (id.getIdValue().equals(xmlParser.getSystemRIdValue("content"))) {
@@ -1052,8 +1694,10 @@ public class FixpointSolver {
                     NActivityNode activity = (NActivityNode) window;
                     Set<NNode> roots = activityRoots.get(activity);
                     if (roots != null && !roots.isEmpty()) {
-                        solution.addAll(roots);
                         for (NNode r : roots) {
+                            if (solution.add(r)) {
+                                added.add(r);
+                            }
                             recordViewProducers(r, node);
                         }
                     }
@@ -1063,17 +1707,19 @@ public class FixpointSolver {
                 for (NNode lhs : graphUtil.descendantNodes(root)) {
                     NNode idNode = extractIdNode(lhs);
                     if (viewIds.contains(idNode)) {
-                        solution.add(lhs);
+                        if (solution.add(lhs)) {
+                            added.add(lhs);
+                        }
                         recordViewProducers(lhs, node);
                     }
                 }
             }
         }
-        if (oldSize == solution.size()) {
+        if (added.isEmpty()) {
             return false;
         }
         // Propagate the change to affected nodes
-        propagateToParametersAndReceivers(solution, node);
+        propagateToParametersAndReceivers(solution, added, node);
 
         return true;
     }
@@ -1081,7 +1727,7 @@ public class FixpointSolver {
     // FindView3: lhs = view.m()
     boolean processFindView3(NFindView3OpNode node) {
         Set<NNode> solution = solutionResults.get(node);
-        int oldSize = solution.size();
+        List<NNode> added = Lists.newArrayList();
         Set<NNode> receiverSet = solutionReceivers.get(node);
         if (receiverSet == null || receiverSet.isEmpty()) {
             return false;
@@ -1107,15 +1753,17 @@ public class FixpointSolver {
                 if (!isValidFlowByType(lhs, node, VarType.ReturnValue)) {
                     continue;
                 }
-                solution.add(lhs);
+                if (solution.add(lhs)) {
+                    added.add(lhs);
+                }
                 recordViewProducers(lhs, node);
             }
         }
-        if (oldSize == solution.size()) {
+        if (added.isEmpty()) {
             return false;
         }
         // Propagate the change to affected nodes
-        propagateToParametersAndReceivers(solution, node);
+        propagateToParametersAndReceivers(solution, added, node);
         return true;
     }
 
@@ -1224,44 +1872,47 @@ public class FixpointSolver {
         return false;
     }
 
-    void propagateViewToParameter(Set<NNode> solution, NOpNode node, Map<NOpNode, Set<NOpNode>> reachedMap,
-                                  Map<NOpNode, Set<NNode>> solutionMap) {
-        Set<NOpNode> callsWithParameter = reachedMap.get(node);
-        if (callsWithParameter != null && !callsWithParameter.isEmpty()) {
-            for (NOpNode call : callsWithParameter) {
-                if (call.equals(node)) {
-                    continue;
-                }
-                Set<NNode> trueSolution = Sets.newHashSet();
-                for (NNode s : solution) {
-                    if (isValidFlowByType(s, call, VarType.Parameter)) {
-                        trueSolution.add(s);
-                    }
-                }
-                Set<NNode> parameterSolutionSet = solutionMap.computeIfAbsent(call, k -> Sets.newHashSet());
-                parameterSolutionSet.addAll(trueSolution);
-            }
-        }
-    }
+    // The calls each op node has forwarded all its results to, by map of
+    // calls; later on, only the new results are forwarded to them
+    Map<NOpNode, Map<Map<NOpNode, Set<NOpNode>>, Set<NOpNode>>> propagatedCalls;
+    LongAdder numTypeChecks;
 
-    void propagateToParametersAndReceivers(Set<NNode> solution, NOpNode node) {
-        propagateViewToParameter(solution, node, reachedParameterViews, solutionParameters);
-        propagateViewToParameter(solution, node, reachedListeners, solutionListeners);
+    /**
+     * Forwards the results of node to the calls reached by them. The calls
+     * already given the earlier results only get the added ones; calls that
+     * have become reachable since get all of them.
+     */
+    void propagateToParametersAndReceivers(Set<NNode> solution, List<NNode> added, NOpNode node) {
+        Map<Map<NOpNode, Set<NOpNode>>, Set<NOpNode>> served =
+                propagatedCalls.computeIfAbsent(node, k -> Maps.newIdentityHashMap());
+        propagateViews(solution, added, node, reachedParameterViews, solutionParameters, VarType.Parameter, served);
+        propagateViews(solution, added, node, reachedListeners, solutionListeners, VarType.Parameter, served);
+        propagateViews(solution, added, node, reachedReceiverViews, solutionReceivers, VarType.Receiver, served);
+    }
 
-        Set<NOpNode> callsWithReceiver = reachedReceiverViews.get(node);
-        if (callsWithReceiver != null && !callsWithReceiver.isEmpty()) {
-            for (NOpNode call : callsWithReceiver) {
-                if (call.equals(node)) {
-                    continue;
-                }
-                Set<NNode> trueSolution = Sets.newHashSet();
-                for (NNode s : solution) {
-                    if (isValidFlowByType(s, call, VarType.Receiver)) {
-                        trueSolution.add(s);
-                    }
+    void propagateViews(Set<NNode> solution, List<NNode> added, NOpNode node, Map<NOpNode, Set<NOpNode>> reachedMap,
+                        Map<NOpNode, Set<NNode>> solutionMap, VarType type,
+                        Map<Map<NOpNode, Set<NOpNode>>, Set<NOpNode>> served) {
+        Set<NOpNode> calls = reachedMap.get(node);
+        if (calls == null || calls.isEmpty()) {
+            return;
+        }
+        Set<NOpNode> servedCalls = served.computeIfAbsent(reachedMap, k -> new NodeBitSet<>());
+        for (NOpNode call : calls) {
+            if (call.equals(node)) {
+                continue;
+            }
+            Collection<NNode> views = servedCalls.add(call) ? solution : added;
+            Set<NNode> callSolution = solutionMap.computeIfAbsent(call, k -> new NodeBitSet<>());
+            boolean grew = false;
+            for (NNode s : views) {
+                numTypeChecks.increment();
+                if (isValidFlowByType(s, call, type) && callSolution.add(s)) {
+                    grew = true;
                 }
-                Set<NNode> receiverSolutionSet = solutionReceivers.computeIfAbsent(call, k -> Sets.newHashSet());
-                receiverSolutionSet.addAll(trueSolution);
+            }
+            if (grew) {
+                markDirty(call);
             }
         }
     }
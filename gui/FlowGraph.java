@@ -9,7 +9,6 @@
 package presto.android.gui;
 
 import com.google.common.base.Function;
-import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.*;
 import presto.android.Hierarchy;
@@ -27,6 +26,10 @@ import soot.toolkits.scalar.Pair;
 import soot.util.Chain;
 
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 // This is the constraint graph described in our paper.
 public class FlowGraph implements MethodNames {
@@ -67,6 +70,7 @@ public class FlowGraph implements MethodNames {
 
     // Utils
     JimpleUtil jimpleUtil;
+    AllocationSiteIndex allocationSites;
     GraphUtil graphUtil;
     XMLParser xmlUtil;
 
@@ -81,6 +85,7 @@ public class FlowGraph implements MethodNames {
         this.listenerSpecs = ListenerSpecification.v();
 
         this.jimpleUtil = JimpleUtil.v(hierarchy);
+        this.allocationSites = AllocationSiteIndex.v();
         this.graphUtil = GraphUtil.v();
         this.xmlUtil = XMLParser.Factory.getXMLParser();
     }
@@ -223,169 +228,398 @@ public class FlowGraph implements MethodNames {
         }
     }
 
-    Stmt currentStmt;
-    SootMethod currentMethod;
+    // Receiver classes considered at virtual calls in RTA mode (-rta):
+    // classes allocated in the application code, inflated from XML, or
+    // instantiated by the framework (activities). Null without -rta.
+    Set<SootClass> rtaInstantiatedClasses;
+
+    // Targets linked at virtual calls, and those left out by RTA
+    int numVirtualCallTargets;
+    int numRtaPrunedTargets;
+
+    void collectRtaInstantiatedClasses() {
+        rtaInstantiatedClasses = Sets.newHashSet();
+        rtaInstantiatedClasses.addAll(allocationSites.getAllocatedClasses());
+        rtaInstantiatedClasses.addAll(xmlUtil.getInflatedClasses());
+        rtaInstantiatedClasses.addAll(hierarchy.applicationActivityClasses);
+        rtaInstantiatedClasses.addAll(hierarchy.frameworkManaged.keySet());
+        System.out.println("[FlowGraph] RTA: " + rtaInstantiatedClasses.size() + " instantiated classes");
+    }
+
+    // A call or assignment of an application method, with what the worker
+    // of that method found for it. For a call: the static target (null when
+    // it cannot be resolved), the application methods that get flow edges
+    // at the call, and these edges. For an assignment: the base variable of
+    // the array it reads or writes, or whether it creates a flow edge.
+    static class StmtRecord {
+        final Stmt stmt;
+        final SootMethod staticTarget;
+        List<SootMethod> callTargets = Collections.emptyList();
+        int numPrunedTargets;
+        List<ValueEdge> edges = Collections.emptyList();
+        Local arrayReadBase;
+        Local arrayWriteBase;
+        boolean flow;
+
+        StmtRecord(Stmt stmt, SootMethod staticTarget) {
+            this.stmt = stmt;
+            this.staticTarget = staticTarget;
+        }
+    }
+
+    // A flow edge between the nodes simpleNode() makes of two values. The
+    // target node is made first; without a source only the target is made.
+    static class ValueEdge {
+        final Value target;
+        final Value source;
+        final Stmt stmt;
+
+        ValueEdge(Value target, Value source, Stmt stmt) {
+            this.target = target;
+            this.source = source;
+            this.stmt = stmt;
+        }
+    }
 
     void processApplicationClasses() {
-        // Now process each "ordinary" statements
+        if (Configs.rta) {
+            collectRtaInstantiatedClasses();
+        }
+        // Collect the statements of every method. Static targets are resolved
+        // here, on one thread, as resolving a method reference may add
+        // phantom methods to the Scene.
+        AnalysisBudget budget = AnalysisBudget.v();
+        long start = System.nanoTime();
+        List<SootMethod> methods = Lists.newArrayList();
+        List<List<StmtRecord>> records = Lists.newArrayList();
         for (SootClass c : hierarchy.appClasses) {
+            if (budget.exhausted("FlowGraph.build")) {
+                return;
+            }
             for (SootMethod method : Lists.newArrayList(c.getMethods())) {
-                currentMethod = method;
-                if (!currentMethod.isConcrete()) {
+                if (!method.isConcrete()) {
                     continue;
                 }
-                Body b = currentMethod.retrieveActiveBody();
-                for (Unit unit : b.getUnits()) {
-                    currentStmt = (Stmt) unit;
-                    // Some "special" handling of calls
-                    if (currentStmt.containsInvokeExpr()) {
-                        jimpleUtil.record(currentStmt, currentMethod);
-                        InvokeExpr ie = currentStmt.getInvokeExpr();
-                        SootMethod stm;
-                        try {
-                            stm = ie.getMethod(); // static target
-                        } catch (Exception e) {
-                            continue;
-                        }
+                methods.add(method);
+                records.add(collectStatements(method));
+            }
+        }
+        // Dispatch the calls and find the flow edges of all methods in
+        // parallel. No node is created yet.
+        long collected = System.nanoTime();
+        long taskNanos = emitEdges(records);
+        // Now create the nodes and edges from the records. This is done in
+        // method order, so that nodes and edges are created in the same
+        // order for any number of workers.
+        long mergeStart = System.nanoTime();
+        for (int i = 0; i < methods.size(); i++) {
+            if (budget.exhausted("FlowGraph.build")) {
+                System.out.println("[FlowGraph] Processed " + i + " of " + methods.size() + " methods");
+                return;
+            }
+            SootMethod method = methods.get(i);
+            for (StmtRecord r : records.get(i)) {
+                if (r.stmt.containsInvokeExpr()) {
+                    processCall(r, method);
+                } else {
+                    processDefinition(r, method);
+                }
+            }
+        }
+        long end = System.nanoTime();
+        System.out.println(String.format(
+                "[FlowGraph] Methods: %d on %d workers, %.1f ms collect, %.1f ms wall (%.1f ms in tasks), %.1f ms merge",
+                methods.size(), Configs.workerNum, (collected - start) / 1e6, (mergeStart - collected) / 1e6,
+                taskNanos / 1e6, (end - mergeStart) / 1e6));
+    }
+
+    List<StmtRecord> collectStatements(SootMethod method) {
+        List<StmtRecord> records = Lists.newArrayList();
+        Body b = method.retrieveActiveBody();
+        for (Unit unit : b.getUnits()) {
+            Stmt s = (Stmt) unit;
+            if (s.containsInvokeExpr()) {
+                SootMethod stm;
+                try {
+                    stm = s.getInvokeExpr().getMethod(); // static target
+                } catch (Exception e) {
+                    stm = null;
+                }
+                records.add(new StmtRecord(s, stm));
+            } else if (s instanceof DefinitionStmt) {
+                records.add(new StmtRecord(s, null));
+            }
+        }
+        return records;
+    }
 
-                        // Model Android framework calls
-                        NOpNode opNode;
-                        opNode = createOpNode(currentStmt);
-                        if (opNode != null && opNode != NOpNode.NullNode) {
-                            allNNodes.add(opNode);
-                            continue;
-                        }
-                        // It is an operation node, but with missing parameters.
-                        // So, there
-                        // is no point continue matching other cases.
-                        if (opNode == NOpNode.NullNode) {
-                            continue;
-                        }
-                        // Other interesting calls
-                        recordInterestingCalls(currentStmt);
-
-                        // flow graph edges at non-virtual calls
-                        if (ie instanceof StaticInvokeExpr || ie instanceof SpecialInvokeExpr) {
-                            if (stm.getDeclaringClass().isApplicationClass()) {
-                                processFlowAtCall(currentStmt, stm);
-                            }
-                            continue;
+    // Fills in the records of each method on Configs.workerNum threads and
+    // returns the time spent in the tasks. A task only writes the records
+    // of its own method; Hierarchy.virtualDispatch() is safe for
+    // concurrent use.
+    long emitEdges(List<List<StmtRecord>> records) {
+        ExecutorService workers = Executors.newFixedThreadPool(Configs.workerNum);
+        try {
+            List<Future<Long>> futures = Lists.newArrayList();
+            for (final List<StmtRecord> methodRecords : records) {
+                futures.add(workers.submit(() -> {
+                    long taskStart = System.nanoTime();
+                    for (StmtRecord r : methodRecords) {
+                        if (r.stmt.containsInvokeExpr()) {
+                            linkCallTargets(r);
+                            emitFlowAtCall(r);
+                        } else {
+                            emitDefinition(r);
                         }
+                    }
+                    return System.nanoTime() - taskStart;
+                }));
+            }
+            long taskNanos = 0;
+            for (Future<Long> f : futures) {
+                taskNanos += f.get();
+            }
+            return taskNanos;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+        } finally {
+            workers.shutdown();
+        }
+    }
 
-                        // flow graph edges at virtual calls
-                        Local rcv_var = jimpleUtil.receiver(ie);
-                        Type rcv_t = rcv_var.getType();
-                        // could be ArrayType, for clone() calls
-                        if (!(rcv_t instanceof RefType)) {
-                            continue;
-                        }
-                        SootClass stc = ((RefType) rcv_t).getSootClass();
-                        for (SootClass sub : hierarchy.getConcreteSubtypes(stc)) {
-                            SootMethod trg = hierarchy.virtualDispatch(stm, sub);
-                            if (trg != null && trg.getDeclaringClass().isApplicationClass()) {
-                                processFlowAtCall(currentStmt, trg);
-                            }
-                        }
-                        continue;
-                    } // the statement was a call
+    void linkCallTargets(StmtRecord r) {
+        SootMethod stm = r.staticTarget;
+        if (stm == null) {
+            return;
+        }
+        InvokeExpr ie = r.stmt.getInvokeExpr();
+        // non-virtual calls
+        if (ie instanceof StaticInvokeExpr || ie instanceof SpecialInvokeExpr) {
+            if (stm.getDeclaringClass().isApplicationClass()) {
+                r.callTargets = Collections.singletonList(stm);
+            }
+            return;
+        }
+        // virtual calls
+        Local rcv_var = jimpleUtil.receiver(ie);
+        Type rcv_t = rcv_var.getType();
+        // could be ArrayType, for clone() calls
+        if (!(rcv_t instanceof RefType)) {
+            return;
+        }
+        SootClass stc = ((RefType) rcv_t).getSootClass();
+        List<SootMethod> targets = Lists.newArrayList();
+        for (SootClass sub : hierarchy.getConcreteSubtypes(stc)) {
+            SootMethod trg = hierarchy.virtualDispatch(stm, sub);
+            if (trg != null && trg.getDeclaringClass().isApplicationClass()) {
+                if (rtaInstantiatedClasses != null && !rtaInstantiatedClasses.contains(sub)) {
+                    r.numPrunedTargets++;
+                    continue;
+                }
+                targets.add(trg);
+            }
+        }
+        r.callTargets = targets;
+    }
 
-                    // assignment (but not with a call; calls are already handled
-                    if (!(currentStmt instanceof DefinitionStmt)) {
-                        continue;
-                    }
+    // The flow edges at a call, for all of its targets. They are only used
+    // if the call turns out not to be an operation node.
+    void emitFlowAtCall(StmtRecord r) {
+        if (r.callTargets.isEmpty()) {
+            return;
+        }
+        r.edges = Lists.newArrayList();
+        for (SootMethod trg : r.callTargets) {
+            flowAtCall(r.stmt, trg, r.edges);
+        }
+    }
 
-                    jimpleUtil.record(currentStmt, currentMethod);
-                    DefinitionStmt ds = (DefinitionStmt) currentStmt;
-                    Value lhs = ds.getLeftOp();
-                    // filter based on types
-                    if (!jimpleUtil.interesting(lhs.getType())) {
-                        continue;
-                    }
-                    Value rhs = ds.getRightOp();
-                    if (rhs instanceof CaughtExceptionRef) {
-                        continue;
-                    }
-                    // parameter passing taken care of by processFlowAtCall
-                    if (rhs instanceof ThisRef || rhs instanceof ParameterRef) {
-                        continue;
-                    }
-                    // remember array refs for later resolution
-                    if (lhs instanceof ArrayRef) {
-                        Value x = ((ArrayRef) lhs).getBase();
-                        if (x instanceof Local) {
-                            recordVarAtArrayRefWrite((Local) x, currentStmt);
-                        }
-                        continue;
-                    }
-                    if (rhs instanceof ArrayRef) {
-                        Value x = ((ArrayRef) rhs).getBase();
-                        if (x instanceof Local) {
-                            recordVarAtArrayRefRead((Local) x, currentStmt);
-                        }
-                        continue;
-                    }
-                    NNode nn_lhs = simpleNode(lhs), nn_rhs = simpleNode(rhs);
-                    // record for debugging purpose
-                    if (nn_rhs instanceof NAllocNode) {
-                        jimpleUtil.record(((NAllocNode) nn_rhs).e, currentStmt);
-                    }
-                    // create the flow edge
-                    if (nn_lhs != null && nn_rhs != null) {
-                        nn_rhs.addEdgeTo(nn_lhs, currentStmt);
-                        if (nn_rhs instanceof NAllocNode) {
-                            NAllocNode an = (NAllocNode) nn_rhs;
-                            // special treatment for "run" methods
-                            if (an.e instanceof NewExpr) {
-                                SootClass cl = ((NewExpr) an.e).getBaseType().getSootClass();
-                                if (cl.declaresMethod("void run()")) {
-                                    SootMethod rn = cl.getMethod("void run()");
-                                    try {
-                                        // for some reason, soot may complain
-                                        // the run() method does not have a
-                                        // valid body.
-                                        Local thisLocal = jimpleUtil.thisLocal(rn);
-                                        an.addEdgeTo(varNode(thisLocal), currentStmt);
-                                    } catch (RuntimeException e) {
-                                        Logger.verb("WARNING", "Cannot resolve method: " + rn.getName());
-                                    }
-                                }
-                            }
+    // Filters an assignment (but not with a call; calls are already
+    // handled) and records the edge or array access it stands for
+    void emitDefinition(StmtRecord r) {
+        DefinitionStmt ds = (DefinitionStmt) r.stmt;
+        Value lhs = ds.getLeftOp();
+        // filter based on types
+        if (!jimpleUtil.interesting(lhs.getType())) {
+            return;
+        }
+        Value rhs = ds.getRightOp();
+        if (rhs instanceof CaughtExceptionRef) {
+            return;
+        }
+        // parameter passing taken care of by flowAtCall
+        if (rhs instanceof ThisRef || rhs instanceof ParameterRef) {
+            return;
+        }
+        // remember array refs for later resolution
+        if (lhs instanceof ArrayRef) {
+            Value x = ((ArrayRef) lhs).getBase();
+            if (x instanceof Local) {
+                r.arrayWriteBase = (Local) x;
+            }
+            return;
+        }
+        if (rhs instanceof ArrayRef) {
+            Value x = ((ArrayRef) rhs).getBase();
+            if (x instanceof Local) {
+                r.arrayReadBase = (Local) x;
+            }
+            return;
+        }
+        r.flow = true;
+    }
+
+    // Some "special" handling of calls
+    void processCall(StmtRecord r, SootMethod method) {
+        Stmt s = r.stmt;
+        jimpleUtil.record(s, method);
+        if (r.staticTarget == null) {
+            return;
+        }
+
+        // Model Android framework calls
+        NOpNode opNode;
+        opNode = createOpNode(s);
+        if (opNode != null && opNode != NOpNode.NullNode) {
+            allNNodes.add(opNode);
+            return;
+        }
+        // It is an operation node, but with missing parameters.
+        // So, there
+        // is no point continue matching other cases.
+        if (opNode == NOpNode.NullNode) {
+            return;
+        }
+        // Other interesting calls
+        recordInterestingCalls(s);
+
+        // flow graph edges at the call
+        InvokeExpr ie = s.getInvokeExpr();
+        if (!(ie instanceof StaticInvokeExpr || ie instanceof SpecialInvokeExpr)) {
+            numVirtualCallTargets += r.callTargets.size();
+            numRtaPrunedTargets += r.numPrunedTargets;
+        }
+        addEdges(r.edges);
+    }
+
+    // assignment (but not with a call; calls are already handled)
+    void processDefinition(StmtRecord r, SootMethod method) {
+        DefinitionStmt ds = (DefinitionStmt) r.stmt;
+        jimpleUtil.record(ds, method);
+        if (r.arrayWriteBase != null) {
+            recordVarAtArrayRefWrite(r.arrayWriteBase, ds);
+            return;
+        }
+        if (r.arrayReadBase != null) {
+            recordVarAtArrayRefRead(r.arrayReadBase, ds);
+            return;
+        }
+        if (!r.flow) {
+            return;
+        }
+        NNode nn_lhs = simpleNode(ds.getLeftOp()), nn_rhs = simpleNode(ds.getRightOp(), ds, method);
+        // record for debugging purpose
+        if (nn_rhs instanceof NAllocNode) {
+            jimpleUtil.record(((NAllocNode) nn_rhs).e, ds);
+        }
+        // create the flow edge
+        if (nn_lhs != null && nn_rhs != null) {
+            nn_rhs.addEdgeTo(nn_lhs, ds);
+            if (nn_rhs instanceof NAllocNode) {
+                NAllocNode an = (NAllocNode) nn_rhs;
+                // special treatment for "run" methods
+                if (an.e instanceof NewExpr) {
+                    SootClass cl = ((NewExpr) an.e).getBaseType().getSootClass();
+                    if (cl.declaresMethod("void run()")) {
+                        SootMethod rn = cl.getMethod("void run()");
+                        try {
+                            // for some reason, soot may complain
+                            // the run() method does not have a
+                            // valid body.
+                            Local thisLocal = jimpleUtil.thisLocal(rn);
+                            an.addEdgeTo(varNode(thisLocal), ds);
+                        } catch (RuntimeException e) {
+                            Logger.verb("WARNING", "Cannot resolve method: " + rn.getName());
                         }
                     }
-                } // all statements in the method body
-            } // all methods in an application class
-        } // all application classes
+                }
+            }
+        }
     }
 
     public void build() {
         buildIdNodes();
         processFrameworkManagedCallbacks();
         processApplicationClasses();
+        postProcess();
+
+        System.out.println("[FlowGraph] Nodes: " + allNNodes.size() + ", edges: " + NNode.numberOfEdges
+                + ", virtual call targets: " + numVirtualCallTargets + " (" + numRtaPrunedTargets
+                + " left out by RTA)");
+    }
 
-        // Additional manipulation (a.k.a, post-processing)
+    // Additional manipulation (a.k.a, post-processing). Each step is skipped
+    // once the budget is used up.
+    void postProcess() {
+        AnalysisBudget budget = AnalysisBudget.v();
+        String phase = "FlowGraph.build";
 
         // Resolve one-level array-refs. We may want to refine this if later we
         // find it necessary
+        if (budget.exhausted(phase)) {
+            return;
+        }
         resolveArrayRefs();
 
         // Deal with recorded dialog and its builder calls
         // WARNING: the order of the following two calls cannot be changed!!!
+        if (budget.exhausted(phase)) {
+            return;
+        }
         processAllRecordedDialogCalls();
 
         checkAndPatchRootlessActivities();
 
         // For each ListActivity, model its onListItemClick
+        if (budget.exhausted(phase)) {
+            return;
+        }
         patchListActivity();
 
         // Deal with list views and list adapters
+        if (budget.exhausted(phase)) {
+            return;
+        }
         processRecordedListViewCalls();
 
         // TabHost, TabSpec...
+        if (budget.exhausted(phase)) {
+            return;
+        }
         processTabHostRelatedCalls();
 
+        if (budget.exhausted(phase)) {
+            return;
+        }
         processFlowFromSetListenerToEventHandlers();
     }
 
+    // Compacts the edges of the constructed graph into arrays, see
+    // FrozenEdges. Edges can still be added, e.g. while solving.
+    public void freeze() {
+        FrozenEdges edges = NNode.freezeEdges(allNNodes);
+        int numEdges = Math.max(1, edges.succTargets.length);
+        System.out.printf("[FlowGraph] Frozen %d edges, %d sites, %.1f bytes/edge (%.1f %s sites)%n",
+                edges.succTargets.length, edges.sites.length - 1,
+                (double) edges.footprint(NNode.recordSites) / numEdges,
+                (double) edges.footprint(!NNode.recordSites) / numEdges,
+                NNode.recordSites ? "without" : "with");
+    }
+
     public void processFlowFromSetListenerToEventHandlers() {
         if (tasks.isEmpty()) {
             return;
@@ -483,8 +717,9 @@ public class FlowGraph implements MethodNames {
         z.add(s);
     }
 
-    // Calls
-    public void processFlowAtCall(Stmt caller, SootMethod callee) {
+    // Calls. Adds to out the edges for parameters and the return value, so
+    // that the nodes are created in the order in which the edges are listed.
+    void flowAtCall(Stmt caller, SootMethod callee, List<ValueEdge> out) {
         // Check & filter
         InvokeExpr ie = caller.getInvokeExpr();
         if (!callee.getDeclaringClass().isApplicationClass()) {
@@ -539,11 +774,7 @@ public class FlowGraph implements MethodNames {
             if (!jimpleUtil.interesting(formal.getType())) {
                 continue;
             }
-            NVarNode lhsNode = varNode(formal);
-            NNode rhsNode = simpleNode(actual);
-            if (rhsNode != null) {
-                rhsNode.addEdgeTo(lhsNode, caller);
-            }
+            out.add(new ValueEdge(formal, actual, caller));
         }
 
         // Now, do something for the return
@@ -554,16 +785,23 @@ public class FlowGraph implements MethodNames {
         if (!jimpleUtil.interesting(lhs_at_call.getType())) {
             return;
         }
-        NNode lhsNode = varNode(lhs_at_call);
+        out.add(new ValueEdge(lhs_at_call, null, caller));
         while (stmts.hasNext()) {
             Stmt d = (Stmt) stmts.next();
             if (!(d instanceof ReturnStmt)) {
                 continue;
             }
             Value retval = ((ReturnStmt) d).getOp();
-            NNode returnValueNode = simpleNode(retval);
-            if (returnValueNode != null) {
-                returnValueNode.addEdgeTo(lhsNode, caller);
+            out.add(new ValueEdge(lhs_at_call, retval, caller));
+        }
+    }
+
+    void addEdges(List<ValueEdge> edges) {
+        for (ValueEdge e : edges) {
+            NNode target = simpleNode(e.target);
+            NNode source = e.source == null ? null : simpleNode(e.source);
+            if (source != null) {
+                source.addEdgeTo(target, e.stmt);
             }
         }
     }
@@ -1107,7 +1345,10 @@ public class FlowGraph implements MethodNames {
     }
 
     Set<NSetListenerOpNode> alreadyProcessedSetListeners = Sets.newHashSet();
-    Map<NSetListenerOpNode, Set<Integer>> processedSetListenerAndHashes = Maps.newHashMap();
+    // The view and listener objects each SetListener node has been processed
+    // with, as view id << 32 | listener id. Ids, unlike hash codes, are the
+    // same in every run, so that Checkpoint can save and restore these.
+    Map<NSetListenerOpNode, Set<Long>> processedSetListenerPairs = Maps.newHashMap();
 
     boolean processSetListenerOpNode(NSetListenerOpNode opNode, NObjectNode viewObject, NObjectNode listenerObject) {
         if (alreadyProcessedSetListeners.contains(opNode)) {
@@ -1115,16 +1356,16 @@ public class FlowGraph implements MethodNames {
         }
         // Check if already processed. If so, abort and return. Otherwise,
         // continue.
-        int hash = Objects.hashCode(viewObject, listenerObject);
-        Set<Integer> setListenerHashes = processedSetListenerAndHashes.get(opNode);
-        if (setListenerHashes == null) {
-            setListenerHashes = Sets.newHashSet();
-            processedSetListenerAndHashes.put(opNode, setListenerHashes);
+        long pair = (long) viewObject.id << 32 | listenerObject.id;
+        Set<Long> setListenerPairs = processedSetListenerPairs.get(opNode);
+        if (setListenerPairs == null) {
+            setListenerPairs = Sets.newHashSet();
+            processedSetListenerPairs.put(opNode, setListenerPairs);
         }
-        if (setListenerHashes.contains(hash)) {
+        if (setListenerPairs.contains(pair)) {
             return false;
         }
-        setListenerHashes.add(hash);
+        setListenerPairs.add(pair);
 
         // Ignore context menu because it has been processed.
         if (viewObject instanceof NContextMenuNode) {
@@ -3762,15 +4003,33 @@ public class FlowGraph implements MethodNames {
     }
 
     public NObjectNode allocNodeOrSpecialObjectNode(Expr e) {
+        return allocNodeOrSpecialObjectNode(e, null, null);
+    }
+
+    // s and m are the statement and method in which e occurs, used when the
+    // allocation-site index does not know e.
+    public NObjectNode allocNodeOrSpecialObjectNode(Expr e, Stmt s, SootMethod m) {
         if (e instanceof NewExpr) {
             SootClass type = ((RefType) e.getType()).getSootClass();
-            if (hierarchy.isSubclassOf(type, Scene.v().getSootClass("android.app.Dialog"))) {
-                jimpleUtil.record(e, currentStmt);
-                return dialogNode(type, currentStmt, currentMethod);
-            }
-            if (hierarchy.isSubclassOf(type, Scene.v().getSootClass("android.widget.TabHost$TabSpec"))) {
-                jimpleUtil.record(e, currentStmt);
-                return tabSpecNode(type, currentStmt, currentMethod);
+            boolean dialog = hierarchy.isSubclassOf(type, Scene.v().getSootClass("android.app.Dialog"));
+            if (dialog || hierarchy.isSubclassOf(type,
+                    Scene.v().getSootClass("android.widget.TabHost$TabSpec"))) {
+                // the allocation site comes from the index, or else from
+                // the caller
+                Stmt allocStmt = allocationSites.getAllocStmt(e);
+                SootMethod allocMethod;
+                if (allocStmt != null) {
+                    allocMethod = allocationSites.getAllocMethod(allocStmt);
+                } else if (s != null && m != null) {
+                    allocStmt = s;
+                    allocMethod = m;
+                } else {
+                    Logger.verb("WARNING", "no allocation site for " + e + ", treating it as a plain allocation");
+                    return allocNode(e);
+                }
+                jimpleUtil.record(e, allocStmt);
+                return dialog ? dialogNode(type, allocStmt, allocMethod)
+                        : tabSpecNode(type, allocStmt, allocMethod);
             }
         }
         return allocNode(e);
@@ -3793,6 +4052,10 @@ public class FlowGraph implements MethodNames {
             x = new NAllocNode();
         }
         x.e = e;
+        Stmt allocStmt = allocationSites.getAllocStmt(e);
+        if (allocStmt != null) {
+            jimpleUtil.record(e, allocStmt);
+        }
         allNAllocNodes.put(e, x);
         allNNodes.add(x);
         return x;
@@ -3938,6 +4201,12 @@ public class FlowGraph implements MethodNames {
     }
 
     public NNode simpleNode(Value jimpleValue) {
+        return simpleNode(jimpleValue, null, null);
+    }
+
+    // s and m are the statement and method in which jimpleValue occurs; see
+    // allocNodeOrSpecialObjectNode
+    public NNode simpleNode(Value jimpleValue, Stmt s, SootMethod m) {
         if (jimpleValue instanceof FieldRef) {
             return fieldNode(((FieldRef) jimpleValue).getField());
         }
@@ -3965,10 +4234,10 @@ public class FlowGraph implements MethodNames {
         }
         if (jimpleValue instanceof NewExpr || jimpleValue instanceof NewArrayExpr
                 || jimpleValue instanceof NewMultiArrayExpr) {
-            return allocNodeOrSpecialObjectNode((Expr) jimpleValue);
+            return allocNodeOrSpecialObjectNode((Expr) jimpleValue, s, m);
         }
         if (jimpleValue instanceof CastExpr) {
-            return simpleNode(((CastExpr) jimpleValue).getOp());
+            return simpleNode(((CastExpr) jimpleValue).getOp(), s, m);
         }
         return null;
     }
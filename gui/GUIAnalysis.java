@@ -1,7 +1,12 @@
 package presto.android.gui;
 import java.util.Set;
 
+import presto.android.Configs;
 import presto.android.Hierarchy;
+import presto.android.gui.graph.NNode;
+import presto.android.gui.graph.NOpNode;
+import presto.android.gui.graph.NWindowNode;
+import presto.android.gui.listener.ListenerSpecification;
 import presto.android.xml.XMLParser;
 import com.google.common.collect.Sets;
 
@@ -32,6 +37,24 @@ public class GUIAnalysis {
 		return instance;
 	}
 
+	/**
+	 * Drops the analysis singletons and the static node registries, which all
+	 * refer to classes of the current Scene.
+	 */
+	public static synchronized void reset() {
+		instance = null;
+		JimpleUtil.reset();
+		GraphUtil.reset();
+		IDNameExtractor.reset();
+		DemandVariableValueQuery.reset();
+		ListenerSpecification.reset();
+		AnalysisBudget.reset();
+		Checkpoint.reset();
+		NNode.resetCounters();
+		NOpNode.reset();
+		NWindowNode.reset();
+	}
+
 	/**
 	 * Populate ID containers with information from XML files, and print out
 	 * some statistics as a sanity check. The ID containers are used in the
@@ -57,14 +80,18 @@ public class GUIAnalysis {
 	public void run() {
 		System.out.println("[GUIAnalysis] Start");
 		long startTime = System.nanoTime();
+		AnalysisBudget budget = AnalysisBudget.start();
 
 		// 0. Populate IDs
 		populateIDContainers();
 
 		// 1. Build flow graph
 		System.out.println("  - Build flow graph");
+		NNode.recordSites = !Configs.slim;
 		flowgraph = new FlowGraph(hierarchy, allLayoutIds, allMenuIds, allWidgetIds, allStringIds);
 		flowgraph.build();
+		flowgraph.freeze();
+		Checkpoint.v().graphBuilt(flowgraph);
 
 		// 2. Fix-point computation
 		System.out.println("  - Fix-point computation");
@@ -81,6 +108,12 @@ public class GUIAnalysis {
 
 		long estimatedTime = System.nanoTime() - startTime;
 		output.setRunningTimeInNanoSeconds(estimatedTime);
+		System.out.println("[GUIAnalysis] Dispatch cache: " + hierarchy.getDispatchCacheHits() + " hits, "
+				+ hierarchy.getDispatchCacheMisses() + " misses");
+		System.out.println("[GUIAnalysis] Reachability: " + GraphUtil.v().getReachabilityStatistics());
+		if (!budget.isComplete()) {
+			System.out.println("[GUIAnalysis] Partial results, out of budget in " + budget.getStoppedIn());
+		}
 		System.out.println("[GUIAnalysis] End: " + (estimatedTime * 1.0e-09) + " sec");
 
 		// 5. Client analyses
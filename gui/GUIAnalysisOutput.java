@@ -43,4 +43,9 @@ public interface GUIAnalysisOutput {
 
   // === Measurements
   void setRunningTimeInNanoSeconds(long runningTimeInNanoSeconds);
+
+  // false if the analysis ran out of budget and the results are partial
+  boolean isComplete();
+  // the phase that ran out of budget, or null
+  String getIncompletePhase();
 }
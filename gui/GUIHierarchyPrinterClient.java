@@ -49,14 +49,20 @@ public class GUIHierarchyPrinterClient {
                     "event.xml").toAbsolutePath().toString();
             System.out.printf("Out file: %s%n", path);
             File file = new File(path);
-            boolean ignored = file.createNewFile();
+            boolean ignored = file.getParentFile().mkdirs();
+            ignored = file.createNewFile();
             out = new PrintStream(file);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
 
         // Start printing
-        printf("<GUIHierarchy app=\"%s\">\n", guiHierarchy.app);
+        if (guiHierarchy.complete) {
+            printf("<GUIHierarchy app=\"%s\">\n", guiHierarchy.app);
+        } else {
+            printf("<GUIHierarchy app=\"%s\" complete=\"false\" incompletePhase=\"%s\">\n",
+                    guiHierarchy.app, xmlSafe(guiHierarchy.incompletePhase));
+        }
         printActivities();
         printDialogs();
         printf("</GUIHierarchy>\n");
@@ -26,6 +26,10 @@ public class IDNameExtractor {
     return instance;
   }
 
+  public static synchronized void reset() {
+    instance = null;
+  }
+
   public boolean isUnknown(String name) {
     // NOTE: use == for equality check on purpose.
     return name == UNKNOWN;
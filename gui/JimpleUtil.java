@@ -63,6 +63,10 @@ public class JimpleUtil implements MethodNames {
     return instance;
   }
 
+  public static synchronized void reset() {
+    instance = null;
+  }
+
   public static synchronized JimpleUtil v() {
     return v(Hierarchy.v());
   }
@@ -66,7 +66,7 @@ public class MethodHelper {
             Stmt s = (Stmt) unit;
             if (s.containsInvokeExpr()) {
                 InvokeExpr invokeExpr = s.getInvokeExpr();
-                String methodName = invokeExpr.getMethod().getName();
+                String methodName = invokeExpr.getMethodRef().getName();
 
                 // find invoke (the first ui hit)
                 if (methodName.equals("findViewById")) {
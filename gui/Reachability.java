@@ -0,0 +1,688 @@
+/*
+ * Reachability.java - part of the GATOR project
+ *
+ * Copyright (c) 2014, 2015 The Ohio State University
+ *
+ * This file is distributed under the terms described in LICENSE in the
+ * root directory.
+ */
+package presto.android.gui;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import presto.android.gui.graph.FrozenEdges;
+import presto.android.gui.graph.NNode;
+import presto.android.gui.graph.NOpNode;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * Answers GraphUtil.reachableNodes() on the frozen flow graph from the
+ * strongly connected components of the graph. As op nodes are reached but
+ * not traversed through, they have no successors here, and the nodes
+ * reachable from a component are its own nodes plus those reachable from
+ * its successor components.
+ *
+ * These sets are memoized as sorted id arrays for the components queried,
+ * and for those with more than one predecessor component, which are the
+ * sub-results shared by several queries. Other components are walked
+ * through until a memoized one is met.
+ *
+ * Batches of sources, as in the solver phases, are answered by a
+ * multi-source BFS instead: 64 sources are propagated at once, one bit of a
+ * long per source, over the successor arrays of the known nodes.
+ *
+ * The components cover all nodes and edges known when they were computed.
+ * Edges added later from known nodes do not invalidate them: the known
+ * nodes with such edges are kept as delta sources, and a result that
+ * contains a delta source is extended with what its added successors
+ * reach, until no more delta sources are found. The components are only
+ * computed again once there are many delta sources. Queries from newer
+ * nodes (e.g. nodes inflated by the solver) walk their successors until
+ * they reach known nodes.
+ */
+class Reachability {
+  private static final int[] NO_SUCCESSORS = new int[0];
+
+  // Delta sources above which the components are computed again
+  private static final int MIN_DELTA_SOURCES = 64;
+
+  private final FrozenEdges edges;
+
+  // known node id -> node, and its successors
+  private NNode[] nodes;
+  private boolean[] isOpNode;
+  private int[][] succ;
+  // node id -> component, in the order Tarjan's algorithm completes them,
+  // so that components only reach components with smaller numbers
+  private int[] componentOf;
+  private int[] memberOffsets;
+  private int[] members;
+  private int[] succOffsets;
+  private int[] succComponents;
+  private int[] numPreds;
+  private int[][] memo;
+
+  // per-query marks for nodes and components
+  private int[] nodeMarks;
+  private int[] componentMarks;
+  private int mark;
+
+  // how far NNode.getAddedEdgeSources() has been read
+  private int numAddedEdgesSeen;
+  // known nodes with edges added since build(), by id
+  private int[] deltaSources = new int[0];
+  private boolean[] isDeltaSource;
+
+  // bit sets for multi-source BFS, reused by the batches
+  private final Queue<BitSets> scratch = new ConcurrentLinkedQueue<BitSets>();
+
+  private int numBuilds;
+  private long numDeltaQueries;
+  private long numQueries;
+  private long numBatches;
+
+  Reachability(FrozenEdges edges) {
+    this.edges = edges;
+  }
+
+  FrozenEdges getFrozenEdges() {
+    return edges;
+  }
+
+  synchronized Set<NNode> reachableNodes(NNode start) {
+    update();
+    numQueries++;
+    if (isKnown(start) && !(start instanceof NOpNode)) {
+      return withDeltaEdges(start, new NodeSet(nodes, memo(componentOf[start.id])));
+    }
+    // op nodes and new nodes: walk until known nodes are reached
+    Set<NNode> result = Sets.newHashSet();
+    List<NNode> worklist = Lists.newArrayList();
+    worklist.add(start);
+    result.add(start);
+    walk(worklist, result);
+    return withDeltaEdges(start, result);
+  }
+
+  // Adds to result what is reachable from the nodes of the worklist
+  private void walk(List<NNode> worklist, Set<NNode> result) {
+    while (!worklist.isEmpty()) {
+      NNode n = worklist.remove(worklist.size() - 1);
+      for (NNode s : successors(n)) {
+        addReachable(s, worklist, result);
+      }
+    }
+  }
+
+  // Adds s to result, with the nodes it reaches if it is known; a new node
+  // goes to the worklist instead
+  private void addReachable(NNode s, List<NNode> worklist, Set<NNode> result) {
+    if (result.contains(s)) {
+      return;
+    }
+    if (s instanceof NOpNode) {
+      result.add(s);
+    } else if (isKnown(s)) {
+      result.addAll(new NodeSet(nodes, memo(componentOf[s.id])));
+    } else {
+      result.add(s);
+      worklist.add(s);
+    }
+  }
+
+  /**
+   * Returns the nodes reachable from start, given the set reachable over
+   * the edges known at build(): the set itself if it has no delta source,
+   * otherwise a copy extended along the edges added since. An op node
+   * only counts as a delta source if it is start.
+   */
+  private synchronized Set<NNode> withDeltaEdges(NNode start, Set<NNode> reachable) {
+    if (!hasDeltaSource(start, reachable)) {
+      return reachable;
+    }
+    numDeltaQueries++;
+    Set<NNode> result = Sets.newHashSet(reachable);
+    List<NNode> worklist = Lists.newArrayList();
+    boolean[] done = new boolean[deltaSources.length];
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int i = 0; i < deltaSources.length; i++) {
+        NNode n = nodes[deltaSources[i]];
+        if (done[i] || (isOpNode[n.id] && n != start) || !result.contains(n)) {
+          continue;
+        }
+        done[i] = true;
+        changed = true;
+        for (NNode s : n.getAddedSuccessors()) {
+          addReachable(s, worklist, result);
+        }
+        walk(worklist, result);
+      }
+    }
+    return result;
+  }
+
+  private boolean hasDeltaSource(NNode start, Set<NNode> reachable) {
+    for (int id : deltaSources) {
+      NNode n = nodes[id];
+      if ((!isOpNode[id] || n == start) && reachable.contains(n)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the nodes reachable from each of the sources, as
+   * reachableNodes(NNode) would. Several threads may call this at once, as
+   * long as no edges are added meanwhile. The BFS runs over the successor
+   * arrays of build(); the edges added since are followed afterwards, by
+   * withDeltaEdges().
+   */
+  List<Set<NNode>> reachableNodes(List<? extends NNode> sources) {
+    NNode[] idToNode;
+    boolean[] opNodes;
+    int[][] successors;
+    synchronized (this) {
+      update();
+      idToNode = nodes;
+      opNodes = isOpNode;
+      successors = succ;
+      numQueries += sources.size();
+      numBatches++;
+    }
+    BitSets bits = scratch.poll();
+    if (bits == null || bits.seen.length != idToNode.length) {
+      bits = new BitSets(idToNode.length);
+    }
+    List<Set<NNode>> result = Lists.newArrayList(Collections.<Set<NNode>>nCopies(sources.size(), null));
+    int[] batch = new int[Long.SIZE];
+    int[] positions = new int[Long.SIZE];
+    int size = 0;
+    for (int i = 0; i < sources.size(); i++) {
+      NNode n = sources.get(i);
+      if (!(n.id < idToNode.length && idToNode[n.id] == n)) {
+        result.set(i, reachableNodes(n));
+        continue;
+      }
+      batch[size] = n.id;
+      positions[size] = i;
+      size++;
+      if (size == batch.length) {
+        multiSourceBFS(idToNode, opNodes, successors, bits, batch, positions, size, result);
+        size = 0;
+      }
+    }
+    if (size > 0) {
+      multiSourceBFS(idToNode, opNodes, successors, bits, batch, positions, size, result);
+    }
+    scratch.offer(bits);
+    for (int i = 0; i < result.size(); i++) {
+      result.set(i, withDeltaEdges(sources.get(i), result.get(i)));
+    }
+    return result;
+  }
+
+  // The bit sets of a multi-source BFS, all zero between batches. Bit j of
+  // seen[v] is set once v is reached from source j, and of visit[v] while v
+  // is still to be expanded for source j; own[v] has the bits of the
+  // sources that are v.
+  private static class BitSets {
+    long[] seen;
+    long[] visit;
+    long[] visitNext;
+    long[] own;
+
+    BitSets(int size) {
+      seen = new long[size];
+      visit = new long[size];
+      visitNext = new long[size];
+      own = new long[size];
+    }
+  }
+
+  // An op node is only expanded for the sources it is itself
+  private static void multiSourceBFS(NNode[] idToNode, boolean[] opNodes, int[][] successors,
+      BitSets bits, int[] batch, int[] positions, int size, List<Set<NNode>> result) {
+    long[] seen = bits.seen;
+    long[] visit = bits.visit;
+    long[] visitNext = bits.visitNext;
+    long[] own = bits.own;
+    int[] touched = new int[64];
+    int numTouched = 0;
+    int[] frontier = new int[size];
+    int frontierSize = 0;
+    for (int j = 0; j < size; j++) {
+      int id = batch[j];
+      if (seen[id] == 0) {
+        touched[numTouched++] = id;
+        frontier[frontierSize++] = id;
+      }
+      seen[id] |= 1L << j;
+      visit[id] |= 1L << j;
+      own[id] |= 1L << j;
+    }
+    int[] next = new int[64];
+    while (frontierSize > 0) {
+      int nextSize = 0;
+      for (int f = 0; f < frontierSize; f++) {
+        int v = frontier[f];
+        long vBits = visit[v];
+        visit[v] = 0;
+        if (opNodes[v]) {
+          vBits &= own[v];
+        }
+        if (vBits == 0) {
+          continue;
+        }
+        for (int w : successors[v]) {
+          long newBits = vBits & ~seen[w];
+          if (newBits == 0) {
+            continue;
+          }
+          if (seen[w] == 0) {
+            if (numTouched == touched.length) {
+              touched = Arrays.copyOf(touched, numTouched * 2);
+            }
+            touched[numTouched++] = w;
+          }
+          seen[w] |= newBits;
+          if (visitNext[w] == 0) {
+            if (nextSize == next.length) {
+              next = Arrays.copyOf(next, nextSize * 2);
+            }
+            next[nextSize++] = w;
+          }
+          visitNext[w] |= newBits;
+        }
+      }
+      long[] t = visit;
+      visit = visitNext;
+      visitNext = t;
+      int[] u = frontier;
+      frontier = next;
+      next = u;
+      frontierSize = nextSize;
+    }
+    bits.visit = visit;
+    bits.visitNext = visitNext;
+
+    // split the bits into the sorted id arrays of each source
+    Arrays.sort(touched, 0, numTouched);
+    int[] counts = new int[size];
+    for (int i = 0; i < numTouched; i++) {
+      for (long b = seen[touched[i]]; b != 0; b &= b - 1) {
+        counts[Long.numberOfTrailingZeros(b)]++;
+      }
+    }
+    int[][] ids = new int[size][];
+    for (int j = 0; j < size; j++) {
+      ids[j] = new int[counts[j]];
+      counts[j] = 0;
+    }
+    for (int i = 0; i < numTouched; i++) {
+      int id = touched[i];
+      for (long b = seen[id]; b != 0; b &= b - 1) {
+        int j = Long.numberOfTrailingZeros(b);
+        ids[j][counts[j]++] = id;
+      }
+      seen[id] = 0;
+      own[id] = 0;
+    }
+    for (int j = 0; j < size; j++) {
+      result.set(positions[j], new NodeSet(idToNode, ids[j]));
+    }
+  }
+
+  synchronized String getStatistics() {
+    int numMemos = 0;
+    long memoSize = 0;
+    if (memo != null) {
+      for (int[] m : memo) {
+        if (m != null) {
+          numMemos++;
+          memoSize += m.length;
+        }
+      }
+    }
+    return String.format("%d queries (%d batches, %d over added edges), %d builds, %d components, "
+        + "%d memoized (%d ids)", numQueries, numBatches, numDeltaQueries, numBuilds,
+        memo == null ? 0 : memo.length, numMemos, memoSize);
+  }
+
+  private boolean isKnown(NNode n) {
+    return n.id < nodes.length && nodes[n.id] == n;
+  }
+
+  // Records the known nodes that got edges since the last query as delta
+  // sources, and computes the components again if there are too many
+  private void update() {
+    if (nodes == null) {
+      build();
+      return;
+    }
+    List<NNode> sources = NNode.getAddedEdgeSources();
+    int numDeltaSources = deltaSources.length;
+    int[] added = Arrays.copyOf(deltaSources, numDeltaSources + sources.size() - numAddedEdgesSeen);
+    for (int i = numAddedEdgesSeen; i < sources.size(); i++) {
+      NNode n = sources.get(i);
+      if (isKnown(n) && !isDeltaSource[n.id]) {
+        isDeltaSource[n.id] = true;
+        added[numDeltaSources++] = n.id;
+      }
+    }
+    numAddedEdgesSeen = sources.size();
+    if (numDeltaSources > Math.max(MIN_DELTA_SOURCES, memo.length / 32)) {
+      build();
+    } else if (numDeltaSources > deltaSources.length) {
+      deltaSources = Arrays.copyOf(added, numDeltaSources);
+    }
+  }
+
+  private Collection<NNode> successors(NNode n) {
+    if (!edges.contains(n)) {
+      return n.getSuccessors();
+    }
+    int from = edges.succOffsets[n.id], to = edges.succOffsets[n.id + 1];
+    List<NNode> added = n.getAddedSuccessors();
+    List<NNode> result = Lists.newArrayListWithCapacity(to - from + added.size());
+    for (int i = from; i < to; i++) {
+      result.add(edges.nodes[edges.succTargets[i]]);
+    }
+    result.addAll(added);
+    return result;
+  }
+
+  // Computes the components of the frozen nodes and of all nodes reached
+  // from them since.
+  private void build() {
+    numBuilds++;
+    numAddedEdgesSeen = NNode.getAddedEdgeSources().size();
+    deltaSources = new int[0];
+    nodes = new NNode[NNode.nextId + 1];
+    isDeltaSource = new boolean[nodes.length];
+    List<NNode> worklist = Lists.newArrayList();
+    for (NNode n : edges.nodes) {
+      if (n != null) {
+        nodes[n.id] = n;
+        worklist.add(n);
+      }
+    }
+    int numNodes = worklist.size();
+    succ = new int[nodes.length][];
+    isOpNode = new boolean[nodes.length];
+    while (!worklist.isEmpty()) {
+      NNode n = worklist.remove(worklist.size() - 1);
+      isOpNode[n.id] = n instanceof NOpNode;
+      Collection<NNode> successors = successors(n);
+      int[] ids = new int[successors.size()];
+      int i = 0;
+      for (NNode s : successors) {
+        if (nodes[s.id] == null) {
+          nodes[s.id] = s;
+          worklist.add(s);
+          numNodes++;
+        }
+        ids[i++] = s.id;
+      }
+      succ[n.id] = ids;
+    }
+
+    tarjan(numNodes);
+
+    // successor components, without duplicates
+    int numComponents = memberOffsets.length - 1;
+    succOffsets = new int[numComponents + 1];
+    numPreds = new int[numComponents];
+    int[] addedFrom = new int[numComponents];
+    Arrays.fill(addedFrom, -1);
+    List<int[]> componentSuccs = Lists.newArrayListWithCapacity(numComponents);
+    for (int c = 0; c < numComponents; c++) {
+      int[] buffer = new int[8];
+      int k = 0;
+      for (int m = memberOffsets[c]; m < memberOffsets[c + 1]; m++) {
+        if (isOpNode[members[m]]) {
+          continue;
+        }
+        for (int s : succ[members[m]]) {
+          int d = componentOf[s];
+          if (d == c || addedFrom[d] == c) {
+            continue;
+          }
+          addedFrom[d] = c;
+          if (k == buffer.length) {
+            buffer = Arrays.copyOf(buffer, k * 2);
+          }
+          buffer[k++] = d;
+          numPreds[d]++;
+        }
+      }
+      componentSuccs.add(Arrays.copyOf(buffer, k));
+      succOffsets[c + 1] = succOffsets[c] + k;
+    }
+    succComponents = new int[succOffsets[numComponents]];
+    for (int c = 0; c < numComponents; c++) {
+      int[] s = componentSuccs.get(c);
+      System.arraycopy(s, 0, succComponents, succOffsets[c], s.length);
+    }
+
+    memo = new int[numComponents][];
+    nodeMarks = new int[nodes.length];
+    componentMarks = new int[numComponents];
+    mark = 0;
+    scratch.clear();
+  }
+
+  // Iterative Tarjan over the known nodes, not going out of op nodes;
+  // fills componentOf and the member arrays
+  private void tarjan(int numNodes) {
+    componentOf = new int[nodes.length];
+    Arrays.fill(componentOf, -1);
+    int[] index = new int[nodes.length];
+    int[] lowlink = new int[nodes.length];
+    boolean[] onStack = new boolean[nodes.length];
+    int[] stack = new int[numNodes];
+    int sp = 0;
+    int[] callNode = new int[numNodes];
+    int[] callEdge = new int[numNodes];
+    members = new int[numNodes];
+    int numMembers = 0;
+    int[] offsets = new int[numNodes + 1];
+    int numComponents = 0;
+    int nextIndex = 1;
+
+    for (int root = 0; root < nodes.length; root++) {
+      if (nodes[root] == null || index[root] != 0) {
+        continue;
+      }
+      int depth = 0;
+      callNode[0] = root;
+      callEdge[0] = 0;
+      index[root] = lowlink[root] = nextIndex++;
+      stack[sp++] = root;
+      onStack[root] = true;
+      while (depth >= 0) {
+        int v = callNode[depth];
+        int[] vs = isOpNode[v] ? NO_SUCCESSORS : succ[v];
+        if (callEdge[depth] < vs.length) {
+          int w = vs[callEdge[depth]++];
+          if (index[w] == 0) {
+            index[w] = lowlink[w] = nextIndex++;
+            stack[sp++] = w;
+            onStack[w] = true;
+            depth++;
+            callNode[depth] = w;
+            callEdge[depth] = 0;
+          } else if (onStack[w]) {
+            lowlink[v] = Math.min(lowlink[v], index[w]);
+          }
+          continue;
+        }
+        if (lowlink[v] == index[v]) {
+          int w;
+          do {
+            w = stack[--sp];
+            onStack[w] = false;
+            componentOf[w] = numComponents;
+            members[numMembers++] = w;
+          } while (w != v);
+          numComponents++;
+          offsets[numComponents] = numMembers;
+        }
+        depth--;
+        if (depth >= 0) {
+          int u = callNode[depth];
+          lowlink[u] = Math.min(lowlink[u], lowlink[v]);
+        }
+      }
+    }
+    memberOffsets = Arrays.copyOf(offsets, numComponents + 1);
+  }
+
+  // The sorted ids of the nodes reachable from component c
+  private int[] memo(int c) {
+    if (memo[c] != null) {
+      return memo[c];
+    }
+    // Shared components below c are memoized first, smallest number first,
+    // so that each of them finds the shared ones below it memoized.
+    List<Integer> shared = Lists.newArrayList();
+    mark++;
+    List<Integer> worklist = Lists.newArrayList();
+    worklist.add(c);
+    componentMarks[c] = mark;
+    while (!worklist.isEmpty()) {
+      int d = worklist.remove(worklist.size() - 1);
+      for (int i = succOffsets[d]; i < succOffsets[d + 1]; i++) {
+        int e = succComponents[i];
+        if (componentMarks[e] == mark || memo[e] != null) {
+          continue;
+        }
+        componentMarks[e] = mark;
+        if (numPreds[e] > 1) {
+          shared.add(e);
+        }
+        worklist.add(e);
+      }
+    }
+    int[] order = new int[shared.size()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = shared.get(i);
+    }
+    Arrays.sort(order);
+    for (int d : order) {
+      memo[d] = collect(d);
+    }
+    int[] result = collect(c);
+    memo[c] = result;
+    return result;
+  }
+
+  // Walks the components below c down to memoized ones
+  private int[] collect(int c) {
+    mark++;
+    int[] result = new int[16];
+    int size = 0;
+    List<Integer> worklist = Lists.newArrayList();
+    worklist.add(c);
+    componentMarks[c] = mark;
+    while (!worklist.isEmpty()) {
+      int d = worklist.remove(worklist.size() - 1);
+      int[] ids;
+      int from;
+      int to;
+      if (d != c && memo[d] != null) {
+        ids = memo[d];
+        from = 0;
+        to = ids.length;
+      } else {
+        ids = members;
+        from = memberOffsets[d];
+        to = memberOffsets[d + 1];
+        for (int i = succOffsets[d]; i < succOffsets[d + 1]; i++) {
+          int e = succComponents[i];
+          if (componentMarks[e] != mark) {
+            componentMarks[e] = mark;
+            worklist.add(e);
+          }
+        }
+      }
+      for (int i = from; i < to; i++) {
+        int id = ids[i];
+        if (nodeMarks[id] == mark) {
+          continue;
+        }
+        nodeMarks[id] = mark;
+        if (size == result.length) {
+          result = Arrays.copyOf(result, size * 2);
+        }
+        result[size++] = id;
+      }
+    }
+    result = Arrays.copyOf(result, size);
+    Arrays.sort(result);
+    return result;
+  }
+
+  // A read-only set of nodes given by sorted ids
+  private static class NodeSet extends AbstractSet<NNode> {
+    private final NNode[] idToNode;
+    private final int[] ids;
+
+    NodeSet(NNode[] idToNode, int[] ids) {
+      this.idToNode = idToNode;
+      this.ids = ids;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      if (!(o instanceof NNode)) {
+        return false;
+      }
+      NNode n = (NNode) o;
+      return n.id < idToNode.length && idToNode[n.id] == n && Arrays.binarySearch(ids, n.id) >= 0;
+    }
+
+    @Override
+    public Iterator<NNode> iterator() {
+      return new Iterator<NNode>() {
+        int i = 0;
+
+        @Override
+        public boolean hasNext() {
+          return i < ids.length;
+        }
+
+        @Override
+        public NNode next() {
+          if (i >= ids.length) {
+            throw new NoSuchElementException();
+          }
+          return idToNode[ids[i++]];
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    @Override
+    public int size() {
+      return ids.length;
+    }
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * FrozenEdges.java - part of the GATOR project
+ *
+ * Copyright (c) 2014, 2015 The Ohio State University
+ *
+ * This file is distributed under the terms described in LICENSE in the
+ * root directory.
+ */
+package presto.android.gui.graph;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import soot.jimple.Stmt;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * The edges of the flow graph in compressed sparse row form, built by
+ * NNode.freezeEdges() once the graph is constructed. Nodes are indexed by
+ * their ids, which are dense. The successors of node n are
+ * nodes[succTargets[i]] for succOffsets[n.id] <= i < succOffsets[n.id + 1],
+ * in the order the edges were added, and sites[succSites[i]] is the
+ * statement of each edge (site 0 stands for none). Predecessors are stored
+ * the same way. In slim mode (NNode.recordSites off) there are no site
+ * arrays, and every edge has no statement.
+ *
+ * The arrays are never modified, so they are read without locking. Edges
+ * added after freezing, e.g. from listeners to event handlers during
+ * solving, stay in the lists of NNode and come after the frozen ones.
+ */
+public final class FrozenEdges {
+	public final NNode[] nodes;
+	public final int[] succOffsets;
+	public final int[] succTargets;
+	public final int[] succSites;
+	public final int[] predOffsets;
+	public final int[] predTargets;
+	public final int[] predSites;
+	public final Stmt[] sites;
+
+	// Takes the edges of the given nodes and of all nodes connected to them
+	FrozenEdges(Collection<NNode> roots) {
+		nodes = new NNode[NNode.nextId + 1];
+		ArrayDeque<NNode> worklist = new ArrayDeque<NNode>();
+		for (NNode n : roots) {
+			visit(n, worklist);
+		}
+		while (!worklist.isEmpty()) {
+			NNode n = worklist.remove();
+			if (n.succ != null) {
+				for (NNode s : n.succ) {
+					visit(s, worklist);
+				}
+			}
+			if (n.pred != null) {
+				for (NNode p : n.pred) {
+					visit(p, worklist);
+				}
+			}
+		}
+
+		succOffsets = new int[nodes.length + 1];
+		predOffsets = new int[nodes.length + 1];
+		for (int id = 0; id < nodes.length; id++) {
+			NNode n = nodes[id];
+			succOffsets[id + 1] = succOffsets[id] + (n == null || n.succ == null ? 0 : n.succ.size());
+			predOffsets[id + 1] = predOffsets[id] + (n == null || n.pred == null ? 0 : n.pred.size());
+		}
+		succTargets = new int[succOffsets[nodes.length]];
+		succSites = NNode.recordSites ? new int[succTargets.length] : null;
+		predTargets = new int[predOffsets[nodes.length]];
+		predSites = NNode.recordSites ? new int[predTargets.length] : null;
+
+		Map<Stmt, Integer> siteIds = Maps.newHashMap();
+		List<Stmt> siteList = Lists.newArrayList();
+		siteList.add(null);
+		for (int id = 0; id < nodes.length; id++) {
+			NNode n = nodes[id];
+			if (n == null) {
+				continue;
+			}
+			if (n.succ != null) {
+				fill(n.succ, n.succSites, succOffsets[id], succTargets, succSites, siteIds, siteList);
+			}
+			if (n.pred != null) {
+				fill(n.pred, n.predSites, predOffsets[id], predTargets, predSites, siteIds, siteList);
+			}
+		}
+		sites = siteList.toArray(new Stmt[siteList.size()]);
+	}
+
+	private void visit(NNode n, ArrayDeque<NNode> worklist) {
+		if (nodes[n.id] == null) {
+			nodes[n.id] = n;
+			worklist.add(n);
+		}
+	}
+
+	// The site list can be shorter than the node list: the x.SetListener(x)
+	// hack in NSetListenerOpNode adds a predecessor without a site.
+	private static void fill(List<NNode> targets, List<Stmt> targetSites, int offset, int[] targetIds,
+			int[] siteIds, Map<Stmt, Integer> siteIdMap, List<Stmt> siteList) {
+		for (int i = 0; i < targets.size(); i++) {
+			targetIds[offset + i] = targets.get(i).id;
+			Stmt s = targetSites != null && i < targetSites.size() ? targetSites.get(i) : null;
+			if (s == null || siteIds == null) {
+				continue;
+			}
+			Integer siteId = siteIdMap.get(s);
+			if (siteId == null) {
+				siteId = siteList.size();
+				siteIdMap.put(s, siteId);
+				siteList.add(s);
+			}
+			siteIds[offset + i] = siteId;
+		}
+	}
+
+	// The statement of the i-th successor edge, or null
+	public Stmt successorSite(int i) {
+		return succSites == null ? null : sites[succSites[i]];
+	}
+
+	public Stmt predecessorSite(int i) {
+		return predSites == null ? null : sites[predSites[i]];
+	}
+
+	/**
+	 * Estimates the heap taken by the arrays in bytes, with or without the
+	 * sites, assuming 4-byte ints and references.
+	 */
+	public long footprint(boolean withSites) {
+		long bytes = 4L * (succOffsets.length + predOffsets.length + succTargets.length
+				+ predTargets.length + nodes.length);
+		if (withSites) {
+			bytes += 4L * (succTargets.length + predTargets.length + sites.length);
+		}
+		return bytes;
+	}
+
+	public boolean contains(NNode n) {
+		return n.id < nodes.length && nodes[n.id] == n;
+	}
+
+	public int numberOfSuccessors(NNode n) {
+		return succOffsets[n.id + 1] - succOffsets[n.id];
+	}
+
+	public int numberOfPredecessors(NNode n) {
+		return predOffsets[n.id + 1] - predOffsets[n.id];
+	}
+
+	public boolean hasSuccessor(NNode n, NNode x) {
+		for (int i = succOffsets[n.id], end = succOffsets[n.id + 1]; i < end; i++) {
+			if (succTargets[i] == x.id) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public boolean hasPredecessor(NNode n, NNode x) {
+		for (int i = predOffsets[n.id], end = predOffsets[n.id + 1]; i < end; i++) {
+			if (predTargets[i] == x.id) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
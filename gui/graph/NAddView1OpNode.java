@@ -23,7 +23,7 @@ public class NAddView1OpNode extends NOpNode {
 
   @Override
   public NVarNode getReceiver() {
-    return (NVarNode) this.pred.get(1);
+    return (NVarNode) this.getPredecessor(1);
   }
 
   @Override
@@ -33,7 +33,7 @@ public class NAddView1OpNode extends NOpNode {
 
   @Override
   public NNode getParameter() {
-    return this.pred.get(0);
+    return this.getPredecessor(0);
   }
 
   @Override
@@ -30,7 +30,7 @@ public class NInflate1OpNode extends NOpNode {
 
   @Override
   public NNode getParameter() {
-    return this.pred.get(0);
+    return this.getPredecessor(0);
   }
 
   @Override
@@ -9,9 +9,11 @@
 package presto.android.gui.graph;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 import soot.jimple.Stmt;
@@ -22,6 +24,9 @@ import com.google.common.collect.Sets;
 
 public abstract class NNode {
 	public static boolean verbose = false;
+	// Whether edges record their statements in succSites/predSites; off in
+	// slim mode (Configs.slim), where the site lists stay null
+	public static boolean recordSites = true;
 	public static int nextId = 0;
 	public static int numberOfEdges = 0;
 	public int id;
@@ -30,9 +35,70 @@ public abstract class NNode {
 	// or null for nodes without ids (or sometimes, weirdly, NLayoutIdNode)
 	public NIdNode idNode;
 
+	// The node of each id; ids are dense, so id-keyed sets such as
+	// NodeBitSet map them back through this table
+	private static NNode[] nodesById = new NNode[1024];
+
     public NNode() {
 		nextId++;
 		id = nextId;
+		if (id == nodesById.length) {
+			nodesById = Arrays.copyOf(nodesById, 2 * id);
+		}
+		nodesById[id] = this;
+	}
+
+	public static NNode forId(int id) {
+		return nodesById[id];
+	}
+
+	public static void resetCounters() {
+		nextId = 0;
+		nodesById = new NNode[1024];
+		numberOfEdges = 0;
+		frozenEdges = null;
+		addedEdgeSources = null;
+	}
+
+	// The edges of the constructed flow graph; null before freezeEdges()
+	static FrozenEdges frozenEdges;
+
+	// The source of every edge added after freezing, in order
+	static ArrayList<NNode> addedEdgeSources;
+
+	/**
+	 * Moves the edges of the given nodes, and of all nodes connected to them,
+	 * into a FrozenEdges. For these nodes, the lists below afterwards hold only
+	 * the edges added later.
+	 */
+	public static synchronized FrozenEdges freezeEdges(Collection<NNode> nodes) {
+		FrozenEdges edges = new FrozenEdges(nodes);
+		for (NNode n : edges.nodes) {
+			if (n != null) {
+				synchronized (n) {
+					n.succ = null;
+					n.succSites = null;
+					n.pred = null;
+					n.predSites = null;
+					n.succIds = null;
+					n.predIds = null;
+				}
+			}
+		}
+		frozenEdges = edges;
+		addedEdgeSources = Lists.newArrayList();
+		return edges;
+	}
+
+	public static FrozenEdges getFrozenEdges() {
+		return frozenEdges;
+	}
+
+	// Lets readers of the frozen graph find out which nodes got new
+	// successors, by remembering how far they have read
+	public static synchronized List<NNode> getAddedEdgeSources() {
+		return addedEdgeSources == null ? Collections.<NNode>emptyList()
+				: Collections.unmodifiableList(addedEdgeSources);
 	}
 
 	// NOTE(tony): "alias" nodes/paths
@@ -41,29 +107,90 @@ public abstract class NNode {
 	protected ArrayList<NNode> pred;
 	public ArrayList<Stmt> predSites;
 
+	// Once a list has more than ID_SET_THRESHOLD nodes, their ids are also
+	// kept in a hash set, so that adding edges to hubs stays linear
+	static final int ID_SET_THRESHOLD = 16;
+	private NodeIdSet succIds;
+	private NodeIdSet predIds;
+
 	// Anyone whose 'parent' is this obj. Used only in
 	// NViewAllocNode, NInflNode, and NActivityNode
 	protected Set<NNode> children;
 	protected Set<NNode> parents;
 
 	public synchronized Collection<NNode> getSuccessors() {
-		if (succ == null || succ.isEmpty()) {
-			return Collections.emptyList();
-		} else {
-			return Lists.newArrayList(succ);
+		FrozenEdges edges = frozenEdges;
+		if (edges == null || !edges.contains(this)) {
+			if (succ == null || succ.isEmpty()) {
+				return Collections.emptyList();
+			} else {
+				return Lists.newArrayList(succ);
+			}
+		}
+		ArrayList<NNode> result = Lists.newArrayList();
+		for (int i = edges.succOffsets[id], end = edges.succOffsets[id + 1]; i < end; i++) {
+			result.add(edges.nodes[edges.succTargets[i]]);
+		}
+		if (succ != null) {
+			result.addAll(succ);
 		}
+		return result;
 	}
 
 	public synchronized NNode getSuccessor(int index) {
+		FrozenEdges edges = frozenEdges;
+		if (edges != null && edges.contains(this)) {
+			int frozen = edges.numberOfSuccessors(this);
+			if (index < frozen) {
+				return edges.nodes[edges.succTargets[edges.succOffsets[id] + index]];
+			}
+			index -= frozen;
+		}
 		return succ.get(index);
 	}
 
 	public synchronized Collection<NNode> getPredecessors() {
-		if (pred == null || pred.isEmpty()) {
-			return Collections.emptyList();
-		} else {
-			return Lists.newArrayList(pred);
+		FrozenEdges edges = frozenEdges;
+		if (edges == null || !edges.contains(this)) {
+			if (pred == null || pred.isEmpty()) {
+				return Collections.emptyList();
+			} else {
+				return Lists.newArrayList(pred);
+			}
+		}
+		ArrayList<NNode> result = Lists.newArrayList();
+		for (int i = edges.predOffsets[id], end = edges.predOffsets[id + 1]; i < end; i++) {
+			result.add(edges.nodes[edges.predTargets[i]]);
 		}
+		if (pred != null) {
+			result.addAll(pred);
+		}
+		return result;
+	}
+
+	public synchronized NNode getPredecessor(int index) {
+		FrozenEdges edges = frozenEdges;
+		if (edges != null && edges.contains(this)) {
+			int frozen = edges.numberOfPredecessors(this);
+			if (index < frozen) {
+				return edges.nodes[edges.predTargets[edges.predOffsets[id] + index]];
+			}
+			index -= frozen;
+		}
+		return pred.get(index);
+	}
+
+	// For a frozen node, the successors and predecessors not in FrozenEdges.
+	// Edges are only added after freezing by the thread running the solver,
+	// which is also the one traversing the graph, so no lock is taken.
+	public List<NNode> getAddedSuccessors() {
+		List<NNode> result = succ;
+		return result == null ? Collections.<NNode>emptyList() : result;
+	}
+
+	public List<NNode> getAddedPredecessors() {
+		List<NNode> result = pred;
+		return result == null ? Collections.<NNode>emptyList() : result;
 	}
 
 	public synchronized boolean hasChild(NNode child) {
@@ -96,26 +223,59 @@ public abstract class NNode {
 	public synchronized void addEdgeTo(NNode x, Stmt s) {
 		if (succ == null) {
 			succ = Lists.newArrayListWithCapacity(4);
-			succSites = Lists.newArrayListWithCapacity(4);
+			if (recordSites) {
+				succSites = Lists.newArrayListWithCapacity(4);
+			}
 		}
-		if (!succ.contains(x)) {
+		FrozenEdges edges = frozenEdges;
+		if (!contains(succ, succIds, x) && !(edges != null && edges.contains(this) && edges.hasSuccessor(this, x))) {
 			succ.add(x);
+			succIds = addId(succ, succIds, x);
 			numberOfEdges++;
+			if (edges != null) {
+				synchronized (NNode.class) {
+					addedEdgeSources.add(this);
+				}
+			}
 		} else {
 			return;
 		}
-		succSites.add(s);
+		if (succSites != null) {
+			succSites.add(s);
+		}
 
 		// predecessors
 		if (x.pred == null) {
 			x.pred = Lists.newArrayListWithCapacity(4);
-			x.predSites = Lists.newArrayListWithCapacity(4);
+			if (recordSites) {
+				x.predSites = Lists.newArrayListWithCapacity(4);
+			}
 		}
-		if (x.pred.contains(this)) {
+		if (contains(x.pred, x.predIds, this) || (edges != null && edges.contains(x) && edges.hasPredecessor(x, this))) {
 			throw new RuntimeException();
 		}
 		x.pred.add(this);
-		x.predSites.add(s);
+		x.predIds = addId(x.pred, x.predIds, this);
+		if (x.predSites != null) {
+			x.predSites.add(s);
+		}
+	}
+
+	private static boolean contains(ArrayList<NNode> list, NodeIdSet ids, NNode x) {
+		return ids != null ? ids.contains(x.id) : list.contains(x);
+	}
+
+	// Records the id of x, just added to list; returns the id set of the list
+	private static NodeIdSet addId(ArrayList<NNode> list, NodeIdSet ids, NNode x) {
+		if (ids != null) {
+			ids.add(x.id);
+		} else if (list.size() > ID_SET_THRESHOLD) {
+			ids = new NodeIdSet(list.size());
+			for (NNode n : list) {
+				ids.add(n.id);
+			}
+		}
+		return ids;
 	}
 
 	public synchronized void addParent(NNode p) {
@@ -161,6 +161,11 @@ public abstract class NOpNode extends NNode {
             + callSite.getO2());
   }
 
+  public static void reset() {
+    opNodes.clear();
+    stmtAndNodes.clear();
+  }
+
   public static Set<NOpNode> getNodes(Class<? extends NOpNode> klass) {
     String type = klass.getSimpleName();
     Set<NOpNode> result = opNodes.get(type);
@@ -29,6 +29,10 @@ public abstract class NWindowNode extends NObjectNode {
     windowNodes.add(this);
   }
 
+  public static void reset() {
+    windowNodes = Sets.newHashSet();
+  }
+
   @Override
   public SootClass getClassType() {
     return c;
@@ -0,0 +1,230 @@
+/*
+ * NodeBitSet.java - part of the GATOR project
+ *
+ * Copyright (c) 2014, 2015 The Ohio State University
+ *
+ * This file is distributed under the terms described in LICENSE in the
+ * root directory.
+ */
+package presto.android.gui.graph;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A set of nodes as a sparse bit set over their ids: only the 64-bit words
+ * with members are kept, in arrays sorted by word index. Membership is a
+ * search over the words, and addAll() of another NodeBitSet merges the
+ * words. It iterates in id order, mapping ids back with NNode.forId(), and
+ * can be used wherever a Set of nodes is expected.
+ */
+public final class NodeBitSet<T extends NNode> extends AbstractSet<T> {
+	private static final int[] NO_KEYS = new int[0];
+	private static final long[] NO_WORDS = new long[0];
+
+	// keys[i] is the word index (id / 64) of words[i]
+	private int[] keys = NO_KEYS;
+	private long[] words = NO_WORDS;
+	private int numWords;
+	private int size;
+	private int modCount;
+
+	public NodeBitSet() {
+	}
+
+	public NodeBitSet(Collection<? extends T> nodes) {
+		addAll(nodes);
+	}
+
+	// Position of the word with index key, or (-(insertion point) - 1)
+	private int find(int key) {
+		// nodes tend to be added in id order, and sets to cover few id
+		// ranges; check the ends first
+		if (numWords == 0 || key < keys[0]) {
+			return -1;
+		}
+		if (keys[numWords - 1] <= key) {
+			return keys[numWords - 1] == key ? numWords - 1 : -(numWords + 1);
+		}
+		return Arrays.binarySearch(keys, 0, numWords, key);
+	}
+
+	public boolean containsId(int id) {
+		int i = find(id >>> 6);
+		return i >= 0 && (words[i] & (1L << id)) != 0;
+	}
+
+	public boolean addId(int id) {
+		int i = find(id >>> 6);
+		long bit = 1L << id;
+		if (i >= 0) {
+			if ((words[i] & bit) != 0) {
+				return false;
+			}
+			words[i] |= bit;
+		} else {
+			insertWord(-(i + 1), id >>> 6, bit);
+		}
+		size++;
+		modCount++;
+		return true;
+	}
+
+	private void insertWord(int i, int key, long word) {
+		if (numWords == keys.length) {
+			int capacity = Math.max(4, 2 * numWords);
+			keys = Arrays.copyOf(keys, capacity);
+			words = Arrays.copyOf(words, capacity);
+		}
+		System.arraycopy(keys, i, keys, i + 1, numWords - i);
+		System.arraycopy(words, i, words, i + 1, numWords - i);
+		keys[i] = key;
+		words[i] = word;
+		numWords++;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return o instanceof NNode && containsId(((NNode) o).id);
+	}
+
+	@Override
+	public boolean add(T n) {
+		return addId(n.id);
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		if (!(o instanceof NNode)) {
+			return false;
+		}
+		int id = ((NNode) o).id;
+		int i = find(id >>> 6);
+		long bit = 1L << id;
+		if (i < 0 || (words[i] & bit) == 0) {
+			return false;
+		}
+		// an emptied word stays until the next merge
+		words[i] &= ~bit;
+		size--;
+		modCount++;
+		return true;
+	}
+
+	@Override
+	public boolean addAll(Collection<? extends T> c) {
+		if (!(c instanceof NodeBitSet)) {
+			return super.addAll(c);
+		}
+		NodeBitSet<?> other = (NodeBitSet<?>) c;
+		if (other == this || other.size == 0) {
+			return false;
+		}
+		// merge the two word lists
+		int[] mergedKeys = new int[numWords + other.numWords];
+		long[] mergedWords = new long[mergedKeys.length];
+		int i = 0;
+		int j = 0;
+		int k = 0;
+		int mergedSize = 0;
+		while (i < numWords || j < other.numWords) {
+			int key;
+			long word;
+			if (j == other.numWords || (i < numWords && keys[i] < other.keys[j])) {
+				key = keys[i];
+				word = words[i++];
+			} else if (i == numWords || other.keys[j] < keys[i]) {
+				key = other.keys[j];
+				word = other.words[j++];
+			} else {
+				key = keys[i];
+				word = words[i++] | other.words[j++];
+			}
+			if (word != 0) {
+				mergedKeys[k] = key;
+				mergedWords[k] = word;
+				k++;
+				mergedSize += Long.bitCount(word);
+			}
+		}
+		if (mergedSize == size) {
+			return false;
+		}
+		keys = mergedKeys;
+		words = mergedWords;
+		numWords = k;
+		size = mergedSize;
+		modCount++;
+		return true;
+	}
+
+	@Override
+	public void clear() {
+		keys = NO_KEYS;
+		words = NO_WORDS;
+		numWords = 0;
+		size = 0;
+		modCount++;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	// Rough heap taken by the set in bytes
+	public long footprint() {
+		return 48 + 4L * keys.length + 8L * words.length;
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		return new Iterator<T>() {
+			int expectedModCount = modCount;
+			int wordIndex = -1;
+			long remaining = 0;
+			int last = -1;
+
+			@Override
+			public boolean hasNext() {
+				while (remaining == 0 && wordIndex + 1 < numWords) {
+					wordIndex++;
+					remaining = words[wordIndex];
+				}
+				return remaining != 0;
+			}
+
+			@Override
+			@SuppressWarnings("unchecked")
+			public T next() {
+				if (expectedModCount != modCount) {
+					throw new ConcurrentModificationException();
+				}
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				int bit = Long.numberOfTrailingZeros(remaining);
+				remaining &= remaining - 1;
+				last = keys[wordIndex] * 64 + bit;
+				return (T) NNode.forId(last);
+			}
+
+			@Override
+			public void remove() {
+				if (last < 0) {
+					throw new IllegalStateException();
+				}
+				if (expectedModCount != modCount) {
+					throw new ConcurrentModificationException();
+				}
+				NodeBitSet.this.remove(NNode.forId(last));
+				expectedModCount = modCount;
+				last = -1;
+			}
+		};
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * NodeIdSet.java - part of the GATOR project
+ *
+ * Copyright (c) 2014, 2015 The Ohio State University
+ *
+ * This file is distributed under the terms described in LICENSE in the
+ * root directory.
+ */
+package presto.android.gui.graph;
+
+/**
+ * A set of node ids with open addressing and linear probing. Node ids start
+ * at 1, so 0 marks a free slot. Used by NNode to look up the neighbors of
+ * high-degree nodes while the flow graph is built.
+ */
+final class NodeIdSet {
+	private int[] slots;
+	private int size;
+
+	NodeIdSet(int expectedSize) {
+		int capacity = 16;
+		while (capacity < expectedSize * 2) {
+			capacity <<= 1;
+		}
+		slots = new int[capacity];
+	}
+
+	boolean contains(int id) {
+		int mask = slots.length - 1;
+		for (int i = mix(id) & mask; slots[i] != 0; i = (i + 1) & mask) {
+			if (slots[i] == id) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Returns false if the id was already in the set
+	boolean add(int id) {
+		int mask = slots.length - 1;
+		int i = mix(id) & mask;
+		for (; slots[i] != 0; i = (i + 1) & mask) {
+			if (slots[i] == id) {
+				return false;
+			}
+		}
+		slots[i] = id;
+		if (++size * 2 > slots.length) {
+			grow();
+		}
+		return true;
+	}
+
+	private void grow() {
+		int[] old = slots;
+		slots = new int[old.length * 2];
+		int mask = slots.length - 1;
+		for (int id : old) {
+			if (id != 0) {
+				int i = mix(id) & mask;
+				while (slots[i] != 0) {
+					i = (i + 1) & mask;
+				}
+				slots[i] = id;
+			}
+		}
+	}
+
+	// Node ids are consecutive; spread them over the table
+	private static int mix(int id) {
+		int h = id * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
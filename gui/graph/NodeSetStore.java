@@ -0,0 +1,132 @@
+/*
+ * NodeSetStore.java - part of the GATOR project
+ *
+ * Copyright (c) 2014, 2015 The Ohio State University
+ *
+ * This file is distributed under the terms described in LICENSE in the
+ * root directory.
+ */
+package presto.android.gui.graph;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import com.google.common.collect.Sets;
+
+/**
+ * Hash-consing of node sets: every set given to intern() comes back as the
+ * SortedNodeSet shared by all equal sets of this store. The sets never
+ * change; with() returns the interned set with the added node instead,
+ * copying on write. The store only holds its sets weakly, so the versions
+ * that with() replaced are collected once their maps drop them.
+ */
+public final class NodeSetStore {
+	private static final Comparator<NNode> BY_ID = (a, b) -> Integer.compare(a.id, b.id);
+
+	private final Map<SortedNodeSet<?>, WeakReference<SortedNodeSet<?>>> sets = new WeakHashMap<>();
+	private final SortedNodeSet<?> empty = new SortedNodeSet<NNode>(new NNode[0]);
+
+	// what intern() has been given, for getStatistics()
+	private long numInterned;
+	private long numInternedNodes;
+	private long internedBytes;
+
+	public synchronized <T extends NNode> Set<T> intern(Set<T> set) {
+		if (set == empty || set instanceof SortedNodeSet && get((SortedNodeSet<?>) set) == set) {
+			return set;
+		}
+		numInterned++;
+		numInternedNodes += set.size();
+		if (set instanceof NodeBitSet) {
+			internedBytes += ((NodeBitSet<?>) set).footprint();
+		} else if (set instanceof HashSet) {
+			internedBytes += hashSetBytes(set.size());
+		} else {
+			internedBytes += 16 + 4L * set.size();
+		}
+		NNode[] nodes = set.toArray(new NNode[set.size()]);
+		Arrays.sort(nodes, BY_ID);
+		return canonical(nodes);
+	}
+
+	// The set with n added
+	public synchronized <T extends NNode> Set<T> with(Set<T> set, T n) {
+		SortedNodeSet<T> s = asSorted(set);
+		int i = s.indexOf(n);
+		if (i >= 0) {
+			return s;
+		}
+		i = -(i + 1);
+		NNode[] nodes = new NNode[s.nodes.length + 1];
+		System.arraycopy(s.nodes, 0, nodes, 0, i);
+		nodes[i] = n;
+		System.arraycopy(s.nodes, i, nodes, i + 1, s.nodes.length - i);
+		return canonical(nodes);
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T extends NNode> SortedNodeSet<T> asSorted(Set<T> set) {
+		if (set == null) {
+			return canonical(new NNode[0]);
+		}
+		return (SortedNodeSet<T>) intern(set);
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T extends NNode> SortedNodeSet<T> canonical(NNode[] nodes) {
+		if (nodes.length == 0) {
+			return (SortedNodeSet<T>) empty;
+		}
+		SortedNodeSet<T> set = new SortedNodeSet<T>(nodes);
+		SortedNodeSet<?> existing = get(set);
+		if (existing != null) {
+			return (SortedNodeSet<T>) existing;
+		}
+		sets.put(set, new WeakReference<SortedNodeSet<?>>(set));
+		return set;
+	}
+
+	// The interned set equal to set, or null
+	private SortedNodeSet<?> get(SortedNodeSet<?> set) {
+		WeakReference<SortedNodeSet<?>> ref = sets.get(set);
+		return ref == null ? null : ref.get();
+	}
+
+	// Rough heap of a HashSet: the map, its table at the default load
+	// factor, and one entry per element
+	private static long hashSetBytes(int size) {
+		int capacity = 16;
+		while (capacity * 3 / 4 < size) {
+			capacity <<= 1;
+		}
+		return 64 + 4L * capacity + 32L * size;
+	}
+
+	// Counts the distinct sets of this store that the given maps hold; the
+	// garbage ones the store may still know of are left out
+	public synchronized String getStatistics(Collection<? extends Map<?, ? extends Set<?>>> maps) {
+		Set<SortedNodeSet<?>> live = Sets.newIdentityHashSet();
+		for (Map<?, ? extends Set<?>> map : maps) {
+			for (Set<?> set : map.values()) {
+				if (set instanceof SortedNodeSet && get((SortedNodeSet<?>) set) == set) {
+					live.add((SortedNodeSet<?>) set);
+				}
+			}
+		}
+		long nodes = 0;
+		long bytes = 0;
+		for (SortedNodeSet<?> s : live) {
+			nodes += s.size();
+			bytes += 24 + 16 + 4L * s.size();
+		}
+		return String.format("%d sets of %d nodes interned as %d distinct sets of %d nodes, "
+				+ "about %.1f KB instead of %.1f KB", numInterned, numInternedNodes, live.size(), nodes,
+				bytes / 1024.0, internedBytes / 1024.0);
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * SortedNodeSet.java - part of the GATOR project
+ *
+ * Copyright (c) 2014, 2015 The Ohio State University
+ *
+ * This file is distributed under the terms described in LICENSE in the
+ * root directory.
+ */
+package presto.android.gui.graph;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable set of nodes kept in an array sorted by node id. Membership
+ * is a binary search over the ids. Instances are made by NodeSetStore, which
+ * shares one instance among equal sets, so two sets of the same store are
+ * equal exactly when they are the same object.
+ */
+public final class SortedNodeSet<T extends NNode> extends AbstractSet<T> {
+	final NNode[] nodes;
+	private final int hash;
+
+	// nodes must be sorted by id, without duplicates
+	SortedNodeSet(NNode[] nodes) {
+		this.nodes = nodes;
+		int h = 0;
+		for (NNode n : nodes) {
+			h += n.hashCode();
+		}
+		this.hash = h;
+	}
+
+	@Override
+	public int size() {
+		return nodes.length;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return o instanceof NNode && indexOf((NNode) o) >= 0;
+	}
+
+	// The position of n, or (-(insertion point) - 1) as in Arrays.binarySearch
+	int indexOf(NNode n) {
+		int low = 0;
+		int high = nodes.length - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int id = nodes[mid].id;
+			if (id < n.id) {
+				low = mid + 1;
+			} else if (id > n.id) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -(low + 1);
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		return new Iterator<T>() {
+			int i = 0;
+
+			@Override
+			public boolean hasNext() {
+				return i < nodes.length;
+			}
+
+			@Override
+			@SuppressWarnings("unchecked")
+			public T next() {
+				if (i >= nodes.length) {
+					throw new NoSuchElementException();
+				}
+				return (T) nodes[i++];
+			}
+		};
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o == this) {
+			return true;
+		}
+		if (o instanceof SortedNodeSet) {
+			SortedNodeSet<?> other = (SortedNodeSet<?>) o;
+			return hash == other.hash && Arrays.equals(nodes, other.nodes);
+		}
+		return super.equals(o);
+	}
+}
@@ -8,6 +8,7 @@
  */
 package presto.android.gui.listener;
 
+import java.io.File;
 import java.util.Map;
 import java.util.Set;
 
@@ -62,6 +63,10 @@ public class ListenerSpecification {
 
     private static ListenerSpecification theInstance;
 
+    // Parsed specification files, kept across the jobs of a resident process.
+    // Only the DOM can be kept: resolving it needs the current Scene.
+    private static final Map<String, Document> parsedSpecFiles = Maps.newHashMap();
+
     private ListenerSpecification() {
         rawSpecs = Maps.newHashMap();
         viewAndRegistrations = Maps.newHashMap();
@@ -83,6 +88,10 @@ public class ListenerSpecification {
         return theInstance;
     }
 
+    public static synchronized void reset() {
+        theInstance = null;
+    }
+
     public void saveRegAndEvents(Stmt regStmt, EventType type) {
         regAndEvents.put(regStmt, type);
     }
@@ -257,15 +266,25 @@ public class ListenerSpecification {
         return regSet.add(reg);
     }
 
-    void readFromSpecificationFile(String fn) {
-        DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-        Document doc;
-        try {
-            DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-            doc = dBuilder.parse(fn);
-        } catch (Exception ex) {
-            throw new RuntimeException(ex);
+    static synchronized Document parseSpecificationFile(String fn) {
+        File f = new File(fn);
+        String key = f.getAbsolutePath() + "@" + f.lastModified();
+        Document doc = parsedSpecFiles.get(key);
+        if (doc == null) {
+            DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
+            try {
+                DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
+                doc = dBuilder.parse(fn);
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+            parsedSpecFiles.put(key, doc);
         }
+        return doc;
+    }
+
+    void readFromSpecificationFile(String fn) {
+        Document doc = parseSpecificationFile(fn);
 
         NodeList guis = doc.getElementsByTagName("gui");
         for (int i = 0; i < guis.getLength(); i++) {
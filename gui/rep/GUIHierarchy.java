@@ -15,6 +15,10 @@ import com.google.common.collect.Lists;
 public class GUIHierarchy {
     // Data
     public String app;
+    // false if the analysis ran out of budget; then incompletePhase is the
+    // phase it stopped in, and the hierarchy is what was found until then
+    public boolean complete = true;
+    public String incompletePhase;
     public ArrayList<Activity> activities = Lists.newArrayList();
     public ArrayList<Dialog> dialogs = Lists.newArrayList();
 
@@ -53,6 +53,8 @@ public class StaticGUIHierarchy extends GUIHierarchy {
 
     void build() {
         app = Configs.benchmarkName;
+        complete = analysisOutput.isComplete();
+        incompletePhase = analysisOutput.getIncompletePhase();
         buildActivities();
         buildDialogs();
     }
@@ -72,6 +72,27 @@ class DefaultXMLParser extends AbstractXMLParser {
 		return res;
 	}
 
+	@Override
+	public Set<SootClass> getInflatedClasses() {
+		Set<SootClass> result = Sets.newHashSet();
+		LinkedList<AndroidView> work = Lists.newLinkedList();
+		work.addAll(id2View.values());
+		work.addAll(sysId2View.values());
+		while (!work.isEmpty()) {
+			AndroidView view = work.remove();
+			if (view.getSootClass() != null) {
+				result.add(view.getSootClass());
+			}
+			for (int i = 0; i < view.getNumberOfChildren(); i++) {
+				IAndroidView child = view.getChildInternal(i);
+				if (child instanceof AndroidView) {
+					work.add((AndroidView) child);
+				}
+			}
+		}
+		return result;
+	}
+
 	@Override
 	public Set<Integer> getApplicationLayoutIdValues() {
 		return invRGeneralIdMap.get("layout").keySet();
@@ -150,6 +171,11 @@ class DefaultXMLParser extends AbstractXMLParser {
 		return theInst;
 	}
 
+	static synchronized void reset() {
+		theInst = null;
+		nonRId = NON_R_ID_BASE;
+	}
+
 	// === implementation details
 	private void doIt() {
 		rGeneralIdMap = Maps.newHashMap();
@@ -427,7 +453,8 @@ class DefaultXMLParser extends AbstractXMLParser {
 	private static final String TEXT_ATTR =  FLOW_DROID_LAYOUT? "text": "android:text";
 	private static final String TITLE_ATTR =  FLOW_DROID_LAYOUT? "title": "android:title";
 
-	private static int nonRId = -0x7f040000;
+	private static final int NON_R_ID_BASE = -0x7f040000;
+	private static int nonRId = NON_R_ID_BASE;
 
 	private HashMap<Integer, AndroidView> id2View;
 	private HashMap<Integer, AndroidView> sysId2View;
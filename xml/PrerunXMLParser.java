@@ -87,6 +87,10 @@ public class PrerunXMLParser {
     return theInst;
   }
 
+  public static synchronized void reset() {
+    theInst = null;
+  }
+
   // === implementation details
   private void doIt() {
     readLayout();
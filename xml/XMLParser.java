@@ -61,6 +61,11 @@ public interface XMLParser {
     public static XMLParser getXMLParser() {
       return DefaultXMLParser.v();
     }
+
+    public static void reset() {
+      DefaultXMLParser.reset();
+      PrerunXMLParser.reset();
+    }
   }
   // layout, id, string, menu xml files
 
@@ -114,4 +119,7 @@ public interface XMLParser {
 
   // Given a view id, find static abstraction of the matched view.
   AndroidView findViewById(Integer id);
+
+  // Classes of all views and menu items in the layout and menu files
+  Set<SootClass> getInflatedClasses();
 }